@@ -0,0 +1,53 @@
+package tech.simard.thinkon.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.User;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building and binding the insert/update statements (and mapping what comes back), without a database in the way
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccessorWriteBenchmark {
+    private UserAccessor accessor;
+    private Connection connection;
+    private UUID id;
+    private User fullUser;
+    private User partialUser;
+
+    @Setup
+    public void setup() throws Exception {
+        List<Object[]> rows = RowMappingBenchmark.rows(1);
+        this.id = (UUID) rows.get(0)[0];
+        this.accessor = new UserAccessor();
+        this.connection = StubJdbc.connection(RowMappingBenchmark.COLUMNS, rows);
+        this.fullUser = new User(null, "someone", "Some", "One", "someone@example.com", "555-0199");
+        this.partialUser = new User(null, null, null, null, "someone.else@example.com", null);
+    }
+
+    @Benchmark
+    public Object create() {
+        return this.accessor.create(new DBConnection(this.connection), this.fullUser);
+    }
+
+    @Benchmark
+    public Object updateAllFields() {
+        return this.accessor.update(new DBConnection(this.connection), this.id, this.fullUser);
+    }
+
+    @Benchmark
+    public Object updateSomeFields() {
+        return this.accessor.update(new DBConnection(this.connection), this.id, this.partialUser);
+    }
+}
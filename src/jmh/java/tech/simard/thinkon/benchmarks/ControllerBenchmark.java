@@ -0,0 +1,117 @@
+package tech.simard.thinkon.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import tech.simard.thinkon.ThinkonApplication;
+import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+import tech.simard.thinkon.models.User;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end cost of the /users endpoints: HTTP, controller, accessor and a real (embedded) MariaDB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ControllerBenchmark {
+    private static final int SEED_USERS = 1000;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private EmbeddedDatabase database;
+    private ConfigurableApplicationContext context;
+    private HttpClient client;
+    private String baseUrl;
+    private List<UUID> ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.database = EmbeddedDatabase.start();
+        this.context = SpringApplication.run(ThinkonApplication.class, "--server.port=0");
+        this.baseUrl = String.format("http://localhost:%s", this.context.getEnvironment().getProperty("local.server.port"));
+        this.client = HttpClient.newHttpClient();
+
+        // Seed the users the reads and updates work on
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < SEED_USERS; i++) {
+            users.add(newUser("seed"));
+        }
+        try (DBConnection db = new DBConnection()) {
+            this.ids = new ArrayList<>();
+            for (DBTable record : this.context.getBean(UserAccessor.class).createBatch(db, users).records) {
+                this.ids.add(((User) record).id);
+            }
+            db.finish(true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.context.close();
+        this.database.close();
+    }
+
+    @Benchmark
+    public String getUserById() throws Exception {
+        return send(HttpRequest.newBuilder(uri("/users/" + randomId())).GET());
+    }
+
+    @Benchmark
+    public String getUsersPage() throws Exception {
+        return send(HttpRequest.newBuilder(uri("/users?limit=100")).GET());
+    }
+
+    @Benchmark
+    public String createUser() throws Exception {
+        return send(HttpRequest.newBuilder(uri("/users"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json(newUser("bench")))));
+    }
+
+    @Benchmark
+    public String updateUser() throws Exception {
+        User user = newUser("update");
+        return send(HttpRequest.newBuilder(uri("/users/" + randomId()))
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofString(json(user))));
+    }
+
+    private String send(HttpRequest.Builder request) throws Exception {
+        return this.client.send(request.build(), HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    private URI uri(String path) {
+        return URI.create(this.baseUrl + path);
+    }
+
+    private UUID randomId() {
+        return this.ids.get(ThreadLocalRandom.current().nextInt(this.ids.size()));
+    }
+
+    private User newUser(String prefix) {
+        // Usernames and emails are unique, so every user gets its own
+        String name = String.format("%s%d-%d", prefix, System.nanoTime(), this.sequence.incrementAndGet());
+        return new User(null, name, "Bench", "Mark", name + "@example.com", "555-0100");
+    }
+
+    private static String json(User user) {
+        return String.format("{\"username\":\"%s\",\"firstname\":\"%s\",\"lastname\":\"%s\",\"email\":\"%s\",\"phone\":\"%s\"}",
+                user.username, user.firstname, user.lastname, user.email, user.phone);
+    }
+}
@@ -0,0 +1,59 @@
+package tech.simard.thinkon.benchmarks;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import tech.simard.thinkon.config.Env;
+
+/**
+ * A throwaway MariaDB server with the thinkon schema loaded, for benchmarks (and the load test) that need a real database.
+ * If DB_CONNECTION_URL is already set, that database is used instead (it must already have the schema).
+ */
+public final class EmbeddedDatabase implements AutoCloseable {
+    private static final String DB_NAME = "thinkon";
+
+    // The application treats a blank password as unset, so it connects as a user that has one
+    private static final String DB_USER = "thinkon";
+    private static final String DB_PASSWORD = "thinkon";
+
+    private final DB db;
+
+    private EmbeddedDatabase(DB db) {
+        this.db = db;
+    }
+
+    /**
+     * Start the database and point the application's connection settings at it
+     * @return the running database
+     * @throws Exception if the database couldn't be started
+     */
+    public static EmbeddedDatabase start() throws Exception {
+        if (!Env.getString("DB_CONNECTION_URL", "").isEmpty()) {
+            return new EmbeddedDatabase(null);
+        }
+
+        // Port 0 picks a free port
+        DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        config.setPort(0);
+
+        DB db = DB.newEmbeddedDB(config.build());
+        db.start();
+        db.createDB(DB_NAME);
+        db.source("db/schema.sql", DB_NAME);
+        db.run(String.format("CREATE USER '%1$s'@'%%' IDENTIFIED BY '%2$s'; CREATE USER '%1$s'@'localhost' IDENTIFIED BY '%2$s'; "
+                + "GRANT ALL ON %3$s.* TO '%1$s'@'%%'; GRANT ALL ON %3$s.* TO '%1$s'@'localhost';", DB_USER, DB_PASSWORD, DB_NAME));
+
+        // The connection settings are read when the first connection is requested
+        System.setProperty("DB_CONNECTION_URL", config.getURL(DB_NAME));
+        System.setProperty("DB_USER", DB_USER);
+        System.setProperty("DB_PASSWORD", DB_PASSWORD);
+
+        return new EmbeddedDatabase(db);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (this.db != null) {
+            this.db.stop();
+        }
+    }
+}
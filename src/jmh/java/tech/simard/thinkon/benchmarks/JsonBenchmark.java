@@ -0,0 +1,46 @@
+package tech.simard.thinkon.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import tech.simard.thinkon.models.User;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading and writing User JSON the way the controller does
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    private ObjectMapper sharedMapper;
+    private User user;
+    private String json;
+
+    @Setup
+    public void setup() throws Exception {
+        this.sharedMapper = new ObjectMapper();
+        this.user = new User(UUID.randomUUID(), "someone", "Some", "One", "someone@example.com", "555-0199");
+        this.json = this.sharedMapper.writeValueAsString(this.user);
+    }
+
+    @Benchmark
+    public String serialize() throws Exception {
+        return this.sharedMapper.writeValueAsString(this.user);
+    }
+
+    @Benchmark
+    public User deserializeSharedMapper() throws Exception {
+        return this.sharedMapper.readValue(this.json, User.class);
+    }
+
+    @Benchmark
+    public User deserializeNewMapper() throws Exception {
+        // A new mapper per request, which is how the POST/PUT handlers used to read their body
+        return (new ObjectMapper()).readValue(this.json, User.class);
+    }
+}
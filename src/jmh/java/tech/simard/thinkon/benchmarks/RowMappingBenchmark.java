@@ -0,0 +1,89 @@
+package tech.simard.thinkon.benchmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.simard.thinkon.accessors.ModelMetadata;
+import tech.simard.thinkon.accessors.RowMapper;
+import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.User;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning result set rows into User instances (or straight into JSON), without a database in the way
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowMappingBenchmark {
+    static final String[] COLUMNS = {"id", "username", "firstname", "lastname", "email", "phone"};
+
+    @Param({"1", "1000"})
+    public int rowCount;
+
+    private List<Object[]> rows;
+    private UserAccessor accessor;
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setup() throws Exception {
+        this.rows = rows(this.rowCount);
+        this.accessor = new UserAccessor();
+        this.objectMapper = new ObjectMapper();
+    }
+
+    @Benchmark
+    public void mapRows(Blackhole blackhole) throws SQLException {
+        ResultSet dbResults = StubJdbc.resultSet(COLUMNS, this.rows);
+        RowMapper mapper = ModelMetadata.of(User.class).mapperFor(dbResults.getMetaData());
+        while (dbResults.next()) {
+            blackhole.consume(mapper.map(dbResults));
+        }
+    }
+
+    @Benchmark
+    public Object getAll() {
+        // The accessor's full read path: statement, result set and mapping
+        DBConnection db = new DBConnection(StubJdbc.connection(COLUMNS, this.rows));
+        return this.accessor.getAll(db);
+    }
+
+    @Benchmark
+    public void getAllAndSerialize() throws IOException {
+        // Map every row to a User, then have Jackson write the list
+        DBConnection db = new DBConnection(StubJdbc.connection(COLUMNS, this.rows));
+        this.objectMapper.writeValue(OutputStream.nullOutputStream(), this.accessor.getAll(db));
+    }
+
+    @Benchmark
+    public void writeAll() throws IOException {
+        // Write the rows straight to JSON, the way the list endpoint does
+        DBConnection db = new DBConnection(StubJdbc.connection(COLUMNS, this.rows));
+        try (JsonGenerator generator = this.objectMapper.getFactory().createGenerator(OutputStream.nullOutputStream())) {
+            generator.writeStartArray();
+            this.accessor.writeAll(db, null, generator);
+            generator.writeEndArray();
+        }
+    }
+
+    static List<Object[]> rows(int count) {
+        List<Object[]> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new Object[]{UUID.randomUUID(), "user" + i, "First" + i, "Last" + i, "user" + i + "@example.com", "555-0100"});
+        }
+        return rows;
+    }
+}
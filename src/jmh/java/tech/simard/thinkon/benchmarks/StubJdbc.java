@@ -0,0 +1,84 @@
+package tech.simard.thinkon.benchmarks;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.List;
+
+/**
+ * In-memory stand-ins for the JDBC objects used by the accessors, so the mapping and SQL building code can be
+ * benchmarked without a database getting in the way. Only the methods the accessors call do anything.
+ */
+final class StubJdbc {
+    private StubJdbc() {}
+
+    /**
+     * Create a connection whose statements always return the given rows
+     * @param columns column labels of the rows
+     * @param rows the rows returned by every query
+     * @return the stub connection
+     */
+    static Connection connection(String[] columns, List<Object[]> rows) {
+        return proxy(Connection.class, (method, args) -> switch (method.getName()) {
+            case "prepareStatement" -> statement(columns, rows);
+            default -> null;
+        });
+    }
+
+    /**
+     * Create a result set over the given rows
+     * @param columns column labels of the rows
+     * @param rows the rows of the result set
+     * @return the stub result set
+     */
+    static ResultSet resultSet(String[] columns, List<Object[]> rows) {
+        ResultSetMetaData meta = proxy(ResultSetMetaData.class, (method, args) -> switch (method.getName()) {
+            case "getColumnCount" -> columns.length;
+            case "getColumnLabel", "getColumnName" -> columns[(int) args[0] - 1];
+            default -> null;
+        });
+
+        int[] position = {-1};
+        return proxy(ResultSet.class, (method, args) -> switch (method.getName()) {
+            case "next" -> ++position[0] < rows.size();
+            case "getMetaData" -> meta;
+            case "getString", "getObject" -> rows.get(position[0])[(int) args[0] - 1];
+            default -> null;
+        });
+    }
+
+    private static PreparedStatement statement(String[] columns, List<Object[]> rows) {
+        return proxy(PreparedStatement.class, (method, args) -> switch (method.getName()) {
+            case "executeQuery" -> resultSet(columns, rows);
+            case "executeUpdate" -> rows.size();
+            default -> null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object invoke(Method method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(StubJdbc.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object result = handler.invoke(method, args);
+            if (result == null && method.getReturnType().isPrimitive()) {
+                // Calls we don't care about still need to return something sensible for primitives
+                Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) {
+                    return false;
+                }
+                if (returnType == void.class) {
+                    return null;
+                }
+                return returnType == long.class ? 0L : returnType == double.class ? 0d : returnType == float.class ? 0f : 0;
+            }
+            return result;
+        });
+    }
+}
@@ -0,0 +1,163 @@
+package tech.simard.thinkon.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and outcomes of the requests of one run of the load test, per operation.
+ * Latencies go in HdrHistograms (in nanoseconds, with 3 significant digits) so high percentiles are exact enough to
+ * compare, and are reported in milliseconds.
+ */
+final class LoadReport {
+    // Percentiles written to the report, by their name in it
+    private static final Map<String, Double> PERCENTILES = Map.of(
+            "p50", 50.0, "p90", 90.0, "p99", 99.0, "p99.9", 99.9, "p99.99", 99.99);
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    private final Map<Workload.Operation, Histogram> latencies = new EnumMap<>(Workload.Operation.class);
+    private final Map<Workload.Operation, ConcurrentMap<Integer, LongAdder>> statuses = new EnumMap<>(Workload.Operation.class);
+    private final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    LoadReport() {
+        for (Workload.Operation operation : Workload.Operation.values()) {
+            this.latencies.put(operation, new ConcurrentHistogram(3));
+            this.statuses.put(operation, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Record a request
+     * @param operation the operation of the request
+     * @param status the HTTP status of the response (0 if the request failed without one)
+     * @param latencyNanos time from when the request was due to when its response was read
+     */
+    void record(Workload.Operation operation, int status, long latencyNanos) {
+        this.latencies.get(operation).recordValue(Math.max(latencyNanos, 0));
+        this.statuses.get(operation).computeIfAbsent(status, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Write the report: report.json with the settings, throughput and latency percentiles of each operation, and a
+     * percentile distribution (.hgrm) per operation that HdrHistogram's plotter can chart
+     * @param dir where the report goes
+     * @param settings the settings of the run
+     * @param elapsedSeconds how long the measured run took
+     * @return the report
+     * @throws IOException if the report can't be written
+     */
+    JsonNode write(Path dir, Map<String, Object> settings, double elapsedSeconds) throws IOException {
+        Files.createDirectories(dir);
+
+        ObjectNode report = this.objectMapper.createObjectNode();
+        report.putPOJO("settings", settings);
+        report.put("elapsedSeconds", elapsedSeconds);
+
+        Histogram overall = new Histogram(3);
+        long overallErrors = 0;
+        ObjectNode operations = report.putObject("operations");
+        for (Workload.Operation operation : Workload.Operation.values()) {
+            Histogram histogram = this.latencies.get(operation);
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            overall.add(histogram);
+
+            long errors = errors(operation);
+            overallErrors += errors;
+            ObjectNode result = summarize(operations.putObject(operation.getName()), histogram, errors, elapsedSeconds);
+            ObjectNode statusCounts = result.putObject("statuses");
+            new TreeMap<>(this.statuses.get(operation)).forEach((status, count) -> statusCounts.put(status.toString(), count.sum()));
+
+            try (PrintStream out = new PrintStream(Files.newOutputStream(dir.resolve(operation.getName() + ".hgrm")))) {
+                histogram.outputPercentileDistribution(out, NANOS_PER_MILLI);
+            }
+        }
+        summarize(report.putObject("overall"), overall, overallErrors, elapsedSeconds);
+
+        this.objectMapper.writeValue(dir.resolve("report.json").toFile(), report);
+        return report;
+    }
+
+    /**
+     * Print the results of a report, side by side with a baseline report if there is one
+     * @param report the report
+     * @param baseline an earlier report to compare with, or null
+     * @param out where the results are printed
+     */
+    static void print(JsonNode report, JsonNode baseline, PrintStream out) {
+        out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99 ms");
+        printRow(out, "overall", report.path("overall"), baseline == null ? null : baseline.path("overall"));
+        report.path("operations").fields().forEachRemaining(entry -> printRow(out, entry.getKey(), entry.getValue(),
+                baseline == null ? null : baseline.path("operations").path(entry.getKey())));
+    }
+
+    private static void printRow(PrintStream out, String name, JsonNode result, JsonNode baseline) {
+        JsonNode latency = result.path("latencyMs");
+        out.printf("%-8s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n", name,
+                result.path("requests").asLong(), result.path("errors").asLong(), result.path("throughput").asDouble(),
+                latency.path("p50").asDouble(), latency.path("p90").asDouble(), latency.path("p99").asDouble(),
+                latency.path("p99.9").asDouble(), latency.path("p99.99").asDouble());
+
+        // Changes from the baseline, in percent (lower is better for latencies, higher for throughput)
+        if (baseline != null && !baseline.isMissingNode()) {
+            JsonNode baselineLatency = baseline.path("latencyMs");
+            out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s %10s%n", "  vs base", "", "",
+                    change(result.path("throughput"), baseline.path("throughput")),
+                    change(latency.path("p50"), baselineLatency.path("p50")),
+                    change(latency.path("p90"), baselineLatency.path("p90")),
+                    change(latency.path("p99"), baselineLatency.path("p99")),
+                    change(latency.path("p99.9"), baselineLatency.path("p99.9")),
+                    change(latency.path("p99.99"), baselineLatency.path("p99.99")));
+        }
+    }
+
+    private static String change(JsonNode value, JsonNode baseline) {
+        if (!baseline.isNumber() || baseline.asDouble() == 0) {
+            return "-";
+        }
+        return String.format("%+.1f%%", (value.asDouble() - baseline.asDouble()) * 100 / baseline.asDouble());
+    }
+
+    private static ObjectNode summarize(ObjectNode result, Histogram histogram, long errors, double elapsedSeconds) {
+        result.put("requests", histogram.getTotalCount());
+        result.put("errors", errors);
+        result.put("throughput", histogram.getTotalCount() / elapsedSeconds);
+
+        ObjectNode latency = result.putObject("latencyMs");
+        latency.put("mean", histogram.getMean() / NANOS_PER_MILLI);
+        new TreeMap<>(PERCENTILES).forEach((name, percentile) ->
+                latency.put(name, histogram.getValueAtPercentile(percentile) / NANOS_PER_MILLI));
+        latency.put("max", histogram.getMaxValue() / NANOS_PER_MILLI);
+        return result;
+    }
+
+    /**
+     * @return the number of requests of an operation that failed (no response, or a 4xx/5xx status)
+     */
+    private long errors(Workload.Operation operation) {
+        long errors = 0;
+        for (Map.Entry<Integer, LongAdder> entry : this.statuses.get(operation).entrySet()) {
+            if (entry.getKey() == 0 || entry.getKey() >= 400) {
+                errors += entry.getValue().sum();
+            }
+        }
+        return errors;
+    }
+}
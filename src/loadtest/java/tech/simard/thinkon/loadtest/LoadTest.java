@@ -0,0 +1,219 @@
+package tech.simard.thinkon.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import tech.simard.thinkon.ThinkonApplication;
+import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.benchmarks.EmbeddedDatabase;
+import tech.simard.thinkon.config.Env;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+import tech.simard.thinkon.models.User;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test of the /users endpoints. Starts the application against an embedded MariaDB (see EmbeddedDatabase),
+ * seeds users through the accessor, then sends a mix of requests at a set rate: a warm up run that isn't measured,
+ * followed by the measured run. The latencies and throughput of each operation are written to a report.
+ * <p>
+ * Requests are sent open loop (see Schedule) by a fixed number of workers, and each latency is measured from when the
+ * request was due rather than from when a worker got round to sending it. If the application falls behind, requests
+ * wait for a free worker and that wait counts towards their latency, like it would for real clients (this is what
+ * avoids coordinated omission). Set the rate above what the application can handle and the latencies grow for as long
+ * as the run lasts.
+ * <p>
+ * Settings (environment variables or system properties, see the loadtest Gradle task):
+ * LOADTEST_RATE (requests per second, default 200), LOADTEST_ARRIVALS (fixed or poisson, default fixed),
+ * LOADTEST_CONCURRENCY (workers, i.e. the most requests in flight, default 64), LOADTEST_WARMUP_S (default 10),
+ * LOADTEST_DURATION_S (default 60), LOADTEST_SEED_USERS (default 10000), LOADTEST_MIX (default
+ * get=60,list=10,create=10,update=15,delete=5), LOADTEST_REPORT_DIR (default build/results/loadtest) and
+ * LOADTEST_BASELINE (an earlier report.json to compare with).
+ */
+public final class LoadTest {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String DEFAULT_MIX = "get=60,list=10,create=10,update=15,delete=5";
+
+    // Users seeded per committed batch
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    // How long in-flight requests get to finish once a run is over (past the request timeout)
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        double rate = Double.parseDouble(Env.getString("LOADTEST_RATE", "200"));
+        String arrivals = Env.getString("LOADTEST_ARRIVALS", "fixed");
+        int concurrency = Env.getInt("LOADTEST_CONCURRENCY", 64);
+        long warmupSeconds = Env.getLong("LOADTEST_WARMUP_S", 10);
+        long durationSeconds = Env.getLong("LOADTEST_DURATION_S", 60);
+        int seedUsers = Env.getInt("LOADTEST_SEED_USERS", 10000);
+        String mix = Env.getString("LOADTEST_MIX", DEFAULT_MIX);
+        Path reportDir = Path.of(Env.getString("LOADTEST_REPORT_DIR", "build/results/loadtest"));
+        String baselinePath = Env.getString("LOADTEST_BASELINE", "");
+
+        if (!arrivals.equals("fixed") && !arrivals.equals("poisson")) {
+            throw new IllegalArgumentException("LOADTEST_ARRIVALS must be fixed or poisson");
+        }
+        boolean poisson = arrivals.equals("poisson");
+        Map<Workload.Operation, Integer> weights = Workload.parseMix(mix);
+
+        // The settings go in the report, so reports are only compared with runs of the same kind
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("startedAt", Instant.now().toString());
+        settings.put("rate", rate);
+        settings.put("arrivals", arrivals);
+        settings.put("concurrency", concurrency);
+        settings.put("warmupSeconds", warmupSeconds);
+        settings.put("durationSeconds", durationSeconds);
+        settings.put("seedUsers", seedUsers);
+        settings.put("mix", mix);
+        settings.put("javaVersion", System.getProperty("java.version"));
+        settings.put("processors", Runtime.getRuntime().availableProcessors());
+
+        // The context is closed before the database (resources are closed in reverse order)
+        try (EmbeddedDatabase database = EmbeddedDatabase.start();
+             ConfigurableApplicationContext context = SpringApplication.run(ThinkonApplication.class, "--server.port=0")) {
+            String baseUrl = String.format("http://localhost:%s", context.getEnvironment().getProperty("local.server.port"));
+
+            LOG.info("Seeding {} users", seedUsers);
+            List<UUID> ids = seed(context.getBean(UserAccessor.class), seedUsers);
+
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            Workload workload = new Workload(client, baseUrl, weights, ids);
+
+            LOG.info("Warming up for {}s at {} requests/s", warmupSeconds, rate);
+            run(workload, rate, poisson, concurrency, warmupSeconds);
+
+            LOG.info("Measuring for {}s at {} requests/s ({} arrivals, {} workers)", durationSeconds, rate, arrivals, concurrency);
+            long startedAt = System.nanoTime();
+            LoadReport report = run(workload, rate, poisson, concurrency, durationSeconds);
+            double elapsedSeconds = (System.nanoTime() - startedAt) / 1_000_000_000d;
+
+            JsonNode result = report.write(reportDir, settings, elapsedSeconds);
+            JsonNode baseline = baselinePath.isEmpty() ? null : readBaseline(Path.of(baselinePath));
+            LoadReport.print(result, baseline, System.out);
+            LOG.info("Report written to {}", reportDir.resolve("report.json").toAbsolutePath());
+        }
+    }
+
+    /**
+     * Send requests on schedule for a while
+     * @param workload the requests to send
+     * @param rate requests per second
+     * @param poisson true for random arrivals, false for evenly spaced ones
+     * @param concurrency the number of workers sending requests
+     * @param seconds how long requests are scheduled for
+     * @return the latencies and outcomes of the requests
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    private static LoadReport run(Workload workload, double rate, boolean poisson, int concurrency, long seconds) throws InterruptedException {
+        LoadReport report = new LoadReport();
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        Schedule schedule = new Schedule(rate, poisson, startNanos);
+
+        AtomicLong threadCount = new AtomicLong();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, String.format("loadtest-%d", threadCount.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                while (true) {
+                    // Stop once the schedule runs past the end of the run
+                    long due = schedule.next();
+                    if (due >= endNanos) {
+                        return;
+                    }
+
+                    // Wait until the request is due (it already is if we're behind)
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    Workload.Operation operation = workload.pick();
+                    int status;
+                    try {
+                        status = workload.send(operation);
+                    } catch (IOException e) {
+                        status = 0;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+
+                    // Measured from when the request was due, so time spent waiting for a worker counts
+                    report.record(operation, status, System.nanoTime() - due);
+                }
+            });
+        }
+
+        workers.shutdown();
+        if (!workers.awaitTermination(seconds + DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            LOG.warn("Requests were still in flight at the end of the run");
+            workers.shutdownNow();
+        }
+        return report;
+    }
+
+    /**
+     * Create the users the requests work on, through the accessor rather than the API
+     * @param accessor the user accessor of the application
+     * @param count the number of users to create
+     * @return the ids of the users
+     * @throws Exception if the users can't be created
+     */
+    private static List<UUID> seed(UserAccessor accessor, int count) throws Exception {
+        List<UUID> ids = new ArrayList<>(count);
+        try (DBConnection db = new DBConnection()) {
+            List<User> users = new ArrayList<>(SEED_BATCH_SIZE);
+            for (int i = 0; i < count; i++) {
+                // Usernames and emails are unique, so every user gets its own
+                String name = String.format("seed%d-%d", System.nanoTime(), i);
+                users.add(new User(null, name, "Seed", "User", name + "@example.com", "555-0100"));
+
+                if (users.size() == SEED_BATCH_SIZE || i == count - 1) {
+                    for (DBTable record : accessor.createBatch(db, users).records) {
+                        if (record != null) {
+                            ids.add(((User) record).id);
+                        }
+                    }
+                    db.commit();
+                    users.clear();
+                }
+            }
+            db.finish(true);
+        }
+        return ids;
+    }
+
+    private static JsonNode readBaseline(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            LOG.warn("Baseline report {} doesn't exist, nothing to compare with", path);
+            return null;
+        }
+        return new ObjectMapper().readTree(path.toFile());
+    }
+}
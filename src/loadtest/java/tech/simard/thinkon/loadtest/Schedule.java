@@ -0,0 +1,49 @@
+package tech.simard.thinkon.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When each request of the load test is meant to start. The schedule is open loop: requests are due at a set rate
+ * whether or not the earlier ones have finished, so a slow server can't slow down the arrival of requests (and hide
+ * its own slowness by doing so).
+ * <p>
+ * Requests are either evenly spaced (fixed) or arrive at random with the same average rate (poisson), which is closer
+ * to independent clients and gives bursts the server has to absorb.
+ */
+final class Schedule {
+    private final double intervalNanos;
+    private final boolean poisson;
+    private final long startNanos;
+
+    // Offset of the next request from the start, guarded by synchronizing on the schedule
+    private double nextOffsetNanos;
+
+    /**
+     * @param rate requests per second
+     * @param poisson true for random arrivals, false for evenly spaced ones
+     * @param startNanos when the first request is due (System.nanoTime)
+     */
+    Schedule(double rate, boolean poisson, long startNanos) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("The request rate must be positive");
+        }
+        this.intervalNanos = 1_000_000_000d / rate;
+        this.poisson = poisson;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Take the next request off the schedule
+     * @return when the request is due (System.nanoTime)
+     */
+    synchronized long next() {
+        long due = this.startNanos + (long) this.nextOffsetNanos;
+        if (this.poisson) {
+            // Exponentially distributed gaps between arrivals
+            this.nextOffsetNanos += -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * this.intervalNanos;
+        } else {
+            this.nextOffsetNanos += this.intervalNanos;
+        }
+        return due;
+    }
+}
@@ -0,0 +1,265 @@
+package tech.simard.thinkon.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.simard.thinkon.benchmarks.EmbeddedDatabase;
+import tech.simard.thinkon.config.Env;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Startup benchmark of the application. Starts it in its own JVM several times in each startup mode and measures:
+ * the startup time Spring Boot logs (until the context is refreshed and the server listening), and the time from
+ * launching the JVM to the first successful GET /users (which includes the JVM's own startup and the warm up, see
+ * StartupWarmup). The modes are:
+ * <ul>
+ *     <li>jar: the boot jar as built</li>
+ *     <li>extracted: the boot jar extracted by the extractBootJar Gradle task</li>
+ *     <li>aot: the extracted jar with the AOT processed context (spring.aot.enabled)</li>
+ *     <li>aot-cds: the same with a class data sharing archive, recorded with a training run before the benchmark</li>
+ * </ul>
+ * The application runs against an embedded MariaDB (see EmbeddedDatabase). The median of each mode is written to a
+ * report, along with every sample and the log of each start.
+ * <p>
+ * Settings (environment variables or system properties, see the startupBenchmark Gradle task):
+ * STARTUP_JAR (the boot jar), STARTUP_APP_DIR (where it was extracted), STARTUP_JAVA (the java executable, default
+ * the one running the benchmark), STARTUP_RUNS (starts of each mode, default 5) and STARTUP_REPORT_DIR (default
+ * build/results/startup).
+ */
+public final class StartupBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(StartupBenchmark.class);
+
+    // Spring Boot's startup line, e.g. "Started ThinkonApplication in 2.345 seconds (process running for 2.789)"
+    private static final Pattern STARTED = Pattern.compile("Started ThinkonApplication in ([0-9.]+) seconds \\(process running for ([0-9.]+)\\)");
+
+    // How long the application gets to answer its first request, and how often we check
+    private static final long START_TIMEOUT_SECONDS = 120;
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    private static final String ARCHIVE = "application.jsa";
+
+    /**
+     * A way of starting the application
+     * @param name the name of the mode in the report
+     * @param jar the jar that's started
+     * @param jvmArgs JVM options of the mode
+     * @param mainClass the class whose main is ran, or null for the jar's own
+     */
+    private record Mode(String name, Path jar, List<String> jvmArgs, String mainClass) {
+        private Mode(String name, Path jar, List<String> jvmArgs) {
+            this(name, jar, jvmArgs, null);
+        }
+    }
+
+    /**
+     * The measurements of one start
+     * @param startupSeconds the startup time logged by Spring Boot
+     * @param processSeconds how long the JVM had been running when Spring Boot logged its startup time
+     * @param firstRequestMillis time from launching the JVM to the first successful request
+     */
+    private record Sample(double startupSeconds, double processSeconds, double firstRequestMillis) {}
+
+    private StartupBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        Path bootJar = Path.of(Env.getString("STARTUP_JAR", "build/libs/thinkon-0.0.1-SNAPSHOT.jar")).toAbsolutePath();
+        Path appDir = Path.of(Env.getString("STARTUP_APP_DIR", "build/fast-startup")).toAbsolutePath();
+        String java = Env.getString("STARTUP_JAVA", Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        int runs = Env.getInt("STARTUP_RUNS", 5);
+        Path reportDir = Path.of(Env.getString("STARTUP_REPORT_DIR", "build/results/startup")).toAbsolutePath();
+        Files.createDirectories(reportDir);
+
+        // The extracted jar has the same name as the boot jar
+        Path extractedJar = appDir.resolve(bootJar.getFileName());
+        if (!Files.exists(bootJar) || !Files.exists(extractedJar)) {
+            throw new IllegalStateException(String.format("%s and %s must exist, run ./gradlew extractBootJar first", bootJar, extractedJar));
+        }
+
+        Path archive = reportDir.resolve(ARCHIVE);
+        List<Mode> modes = List.of(
+                new Mode("jar", bootJar, List.of()),
+                new Mode("extracted", extractedJar, List.of()),
+                new Mode("aot", extractedJar, List.of("-Dspring.aot.enabled=true")),
+                new Mode("aot-cds", extractedJar, List.of("-Dspring.aot.enabled=true", "-XX:SharedArchiveFile=" + archive)));
+
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        ObjectNode report = objectMapper.createObjectNode();
+        ObjectNode settings = report.putObject("settings");
+        settings.put("startedAt", Instant.now().toString());
+        settings.put("runs", runs);
+        settings.put("javaVersion", System.getProperty("java.version"));
+        settings.put("processors", Runtime.getRuntime().availableProcessors());
+
+        try (EmbeddedDatabase database = EmbeddedDatabase.start()) {
+            // Record the archive against this database, so the training run doesn't need one of its own
+            LOG.info("Recording the class data sharing archive");
+            Files.deleteIfExists(archive);
+            Process training = launch(java, new Mode("training", extractedJar, List.of("-XX:ArchiveClassesAtExit=" + archive,
+                    "-Dspring.aot.enabled=true", "-Dserver.port=0"), "tech.simard.thinkon.startup.TrainingRun"), appDir, reportDir.resolve("training.log"));
+            if (!training.waitFor(START_TIMEOUT_SECONDS, TimeUnit.SECONDS) || training.exitValue() != 0) {
+                training.destroyForcibly();
+                throw new IllegalStateException(String.format("The training run failed, see %s", reportDir.resolve("training.log")));
+            }
+
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(1))
+                    .build();
+            ObjectNode results = report.putObject("modes");
+            for (Mode mode : modes) {
+                List<Sample> samples = new ArrayList<>(runs);
+                for (int i = 0; i < runs; i++) {
+                    Sample sample = measure(client, java, mode, appDir, reportDir.resolve(String.format("%s-%d.log", mode.name(), i)));
+                    LOG.info("{} run {}: started in {}s, first request after {} ms", mode.name(), i + 1, sample.startupSeconds(), sample.firstRequestMillis());
+                    samples.add(sample);
+                }
+                summarize(results.putObject(mode.name()), samples);
+            }
+        }
+
+        objectMapper.writeValue(reportDir.resolve("report.json").toFile(), report);
+        print(report);
+        LOG.info("Report written to {}", reportDir.resolve("report.json"));
+    }
+
+    /**
+     * Start the application once, wait for it to answer a request, and stop it
+     * @param client the HTTP client the application is polled with
+     * @param java the java executable
+     * @param mode how the application is started
+     * @param workingDir the working directory of the application
+     * @param log where the output of the application goes
+     * @return the measurements of the start
+     * @throws Exception if the application doesn't answer in time, or its startup line can't be found
+     */
+    private static Sample measure(HttpClient client, String java, Mode mode, Path workingDir, Path log) throws Exception {
+        int port = freePort();
+        List<String> jvmArgs = new ArrayList<>(mode.jvmArgs());
+        jvmArgs.add("-Dserver.port=" + port);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(String.format("http://localhost:%d/users?limit=1", port)))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+
+        long launchedAt = System.nanoTime();
+        Process process = launch(java, new Mode(mode.name(), mode.jar(), jvmArgs), workingDir, log);
+        try {
+            long deadline = launchedAt + TimeUnit.SECONDS.toNanos(START_TIMEOUT_SECONDS);
+            while (true) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException(String.format("The application exited with %d, see %s", process.exitValue(), log));
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException(String.format("The application didn't answer within %ds, see %s", START_TIMEOUT_SECONDS, log));
+                }
+
+                try {
+                    if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // Not listening yet
+                }
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+            double firstRequestMillis = (System.nanoTime() - launchedAt) / 1_000_000d;
+
+            // The startup line is logged before the first request can be answered
+            Matcher matcher = STARTED.matcher(Files.readString(log));
+            if (!matcher.find()) {
+                throw new IllegalStateException(String.format("Startup time not found in %s", log));
+            }
+            return new Sample(Double.parseDouble(matcher.group(1)), Double.parseDouble(matcher.group(2)), firstRequestMillis);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    /**
+     * Launch the application in its own JVM, pointed at the database the benchmark started
+     * @param java the java executable
+     * @param mode how the application is started
+     * @param workingDir the working directory of the application
+     * @param log where the output of the application goes
+     * @return the process of the application
+     * @throws IOException if the JVM can't be launched
+     */
+    private static Process launch(String java, Mode mode, Path workingDir, Path log) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(mode.jvmArgs());
+        for (String name : Arrays.asList("DB_CONNECTION_URL", "DB_USER", "DB_PASSWORD")) {
+            command.add(String.format("-D%s=%s", name, Env.getString(name, "")));
+        }
+        if (mode.mainClass() == null) {
+            command.add("-jar");
+            command.add(mode.jar().toString());
+        } else {
+            command.add("-cp");
+            command.add(mode.jar().toString());
+            command.add(mode.mainClass());
+        }
+
+        return new ProcessBuilder(command)
+                .directory(workingDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void summarize(ObjectNode result, List<Sample> samples) {
+        result.put("startupSeconds", median(samples.stream().mapToDouble(Sample::startupSeconds).toArray()));
+        result.put("processSeconds", median(samples.stream().mapToDouble(Sample::processSeconds).toArray()));
+        result.put("firstRequestMs", median(samples.stream().mapToDouble(Sample::firstRequestMillis).toArray()));
+
+        ArrayNode all = result.putArray("samples");
+        for (Sample sample : samples) {
+            all.addObject()
+                    .put("startupSeconds", sample.startupSeconds())
+                    .put("processSeconds", sample.processSeconds())
+                    .put("firstRequestMs", sample.firstRequestMillis());
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static void print(ObjectNode report) {
+        System.out.printf("%-10s %12s %12s %16s%n", "", "startup s", "process s", "first request ms");
+        report.path("modes").fields().forEachRemaining(entry -> System.out.printf("%-10s %12.3f %12.3f %16.1f%n", entry.getKey(),
+                entry.getValue().path("startupSeconds").asDouble(), entry.getValue().path("processSeconds").asDouble(),
+                entry.getValue().path("firstRequestMs").asDouble()));
+    }
+}
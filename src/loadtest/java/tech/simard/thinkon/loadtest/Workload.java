@@ -0,0 +1,237 @@
+package tech.simard.thinkon.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The requests the load test sends: a weighted mix of operations on the /users endpoints. Operations on existing users
+ * pick from a shared pool of ids, which is seeded up front, grown by creates and shrunk by deletes.
+ */
+final class Workload {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    // Users per page of list requests
+    private static final int LIST_LIMIT = 100;
+
+    /**
+     * The operations of the mix, by the names used in LOADTEST_MIX
+     */
+    enum Operation {
+        GET("get"), LIST("list"), CREATE("create"), UPDATE("update"), DELETE("delete");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of the operation in the mix and the report
+         */
+        String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return whether the operation works on an existing user
+         */
+        boolean needsId() {
+            return this == GET || this == UPDATE || this == DELETE;
+        }
+    }
+
+    private final HttpClient client;
+    private final String baseUrl;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // The operations of the mix, each with the running total of the weights up to it
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+
+    // Ids of the users that exist, guarded by synchronizing on the list
+    private final List<UUID> ids;
+
+    // Makes the usernames and emails of new users unique
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param client the HTTP client requests are sent with
+     * @param baseUrl where the application is listening, e.g. http://localhost:8080
+     * @param mix the weight of each operation
+     * @param ids ids of the users that already exist
+     */
+    Workload(HttpClient client, String baseUrl, Map<Operation, Integer> mix, List<UUID> ids) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.ids = new ArrayList<>(ids);
+
+        this.operations = mix.keySet().toArray(Operation[]::new);
+        this.cumulativeWeights = new int[this.operations.length];
+        int total = 0;
+        for (int i = 0; i < this.operations.length; i++) {
+            total += mix.get(this.operations[i]);
+            this.cumulativeWeights[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The mix needs at least one operation with a positive weight");
+        }
+    }
+
+    /**
+     * Read a mix of operations, e.g. get=60,list=10,create=10,update=15,delete=5
+     * @param mix the operations and their weights
+     * @return the weight of each operation
+     * @throws IllegalArgumentException if the mix names an unknown operation or has an invalid weight
+     */
+    static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(String.format("Invalid mix entry %s (expected operation=weight)", entry));
+            }
+
+            Operation operation = null;
+            for (Operation candidate : Operation.values()) {
+                if (candidate.getName().equals(parts[0].trim())) {
+                    operation = candidate;
+                }
+            }
+            if (operation == null) {
+                throw new IllegalArgumentException(String.format("Unknown operation %s in the mix", parts[0]));
+            }
+
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException(String.format("Weight of %s can't be negative", parts[0]));
+            }
+            weights.put(operation, weight);
+        }
+        return weights;
+    }
+
+    /**
+     * Pick the next operation at random, by weight (an operation on an existing user becomes a create if there aren't any)
+     * @return the operation
+     */
+    Operation pick() {
+        int value = ThreadLocalRandom.current().nextInt(this.cumulativeWeights[this.cumulativeWeights.length - 1]);
+        for (int i = 0; i < this.operations.length; i++) {
+            if (value < this.cumulativeWeights[i]) {
+                Operation operation = this.operations[i];
+                return operation.needsId() && size() == 0 ? Operation.CREATE : operation;
+            }
+        }
+        throw new IllegalStateException("Weights don't add up");
+    }
+
+    /**
+     * Send a request for an operation and wait for the response
+     * @param operation the operation
+     * @return the HTTP status of the response (0 if another thread took the last user before we could pick one)
+     * @throws IOException if the request fails
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    int send(Operation operation) throws IOException, InterruptedException {
+        switch (operation) {
+            case GET -> {
+                UUID id = randomId(false);
+                return id == null ? 0 : send(request("/users/" + id).GET()).statusCode();
+            }
+            case LIST -> {
+                // Pages start after a random user, so they're spread over the table
+                UUID after = randomId(false);
+                String query = after == null ? "" : "&after=" + after;
+                return send(request("/users?limit=" + LIST_LIMIT + query).GET()).statusCode();
+            }
+            case CREATE -> {
+                HttpResponse<String> response = send(request("/users")
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(newUser("load"))));
+                if (response.statusCode() == 200) {
+                    JsonNode id = this.objectMapper.readTree(response.body()).path("id");
+                    if (id.isTextual()) {
+                        synchronized (this.ids) {
+                            this.ids.add(UUID.fromString(id.asText()));
+                        }
+                    }
+                }
+                return response.statusCode();
+            }
+            case UPDATE -> {
+                UUID id = randomId(false);
+                return id == null ? 0 : send(request("/users/" + id)
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString(newUser("update")))).statusCode();
+            }
+            case DELETE -> {
+                UUID id = randomId(true);
+                return id == null ? 0 : send(request("/users/" + id).DELETE()).statusCode();
+            }
+            default -> throw new IllegalArgumentException(String.format("Unknown operation %s", operation));
+        }
+    }
+
+    /**
+     * @return the number of users that exist
+     */
+    int size() {
+        synchronized (this.ids) {
+            return this.ids.size();
+        }
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return this.client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(this.baseUrl + path)).timeout(REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Pick an existing user at random
+     * @param remove true to take the user out of the pool (it's being deleted)
+     * @return the id of the user, or null if there aren't any
+     */
+    private UUID randomId(boolean remove) {
+        synchronized (this.ids) {
+            if (this.ids.isEmpty()) {
+                return null;
+            }
+            int index = ThreadLocalRandom.current().nextInt(this.ids.size());
+            UUID id = this.ids.get(index);
+            if (remove) {
+                // Move the last id into the gap rather than shifting everything after it
+                this.ids.set(index, this.ids.get(this.ids.size() - 1));
+                this.ids.remove(this.ids.size() - 1);
+            }
+            return id;
+        }
+    }
+
+    private String newUser(String prefix) throws IOException {
+        // Usernames and emails are unique, so every user gets its own
+        String name = String.format("%s%d-%d", prefix, System.nanoTime(), this.sequence.incrementAndGet());
+        return this.objectMapper.writeValueAsString(Map.of(
+                "username", name,
+                "firstname", "Load",
+                "lastname", "Test",
+                "email", name + "@example.com",
+                "phone", "555-0100"));
+    }
+}
@@ -1,7 +1,13 @@
 package tech.simard.thinkon;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
+import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.accessors.WriteBehindQueue;
+import tech.simard.thinkon.config.Env;
+import tech.simard.thinkon.controllers.ChangeFeed;
 
 @SpringBootApplication
 public class ThinkonApplication {
@@ -9,4 +15,31 @@ public class ThinkonApplication {
 	public static void main(String[] args) {
         SpringApplication.run(ThinkonApplication.class, args);
 	}
+
+    /**
+     * Queue used by POST /users/async to create users in the background (closed, and drained, on shutdown)
+     */
+    @Bean(destroyMethod = "close")
+    public WriteBehindQueue userWriteQueue(UserAccessor userAccessor) {
+        return new WriteBehindQueue(userAccessor,
+                Env.getInt("WRITE_BEHIND_QUEUE_SIZE", 10000),
+                Env.getInt("WRITE_BEHIND_BATCH_SIZE", 500),
+                Env.getLong("WRITE_BEHIND_FLUSH_MS", 50),
+                Env.getLong("WRITE_BEHIND_STATUS_TTL_MS", 600000),
+                Env.getInt("WRITE_BEHIND_STATUS_MAX_SIZE", 100000),
+                Env.getLong("WRITE_BEHIND_DRAIN_TIMEOUT_MS", 30000));
+    }
+
+    /**
+     * Sends the changes to users to the clients following GET /users/changes (closing their streams on shutdown)
+     */
+    @Bean(destroyMethod = "close")
+    public ChangeFeed userChangeFeed(UserAccessor userAccessor, ObjectMapper objectMapper) {
+        return new ChangeFeed(userAccessor.getChanges(), objectMapper,
+                Env.getInt("CHANGE_FEED_MAX_FOLLOWERS", 1000),
+                Env.getInt("CHANGE_FEED_THREADS", 2),
+                Env.getLong("CHANGE_FEED_STREAM_MS", 25000),
+                Env.getLong("CHANGE_FEED_HEARTBEAT_MS", 10000),
+                Env.getLong("CHANGE_FEED_WRITE_TIMEOUT_MS", 5000));
+    }
 }
@@ -0,0 +1,110 @@
+package tech.simard.thinkon.accessors;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters for the operations of an accessor, tagged with the operation and table.
+ * Meters are registered with Micrometer's global registry, which Spring Boot publishes on /actuator/prometheus.
+ */
+final class AccessorMetrics {
+    private static final ConcurrentMap<String, AccessorMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String tableName;
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DistributionSummary> rows = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> errors = new ConcurrentHashMap<>();
+
+    private AccessorMetrics(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * @param tableName the table the accessor works with
+     * @return the metrics of the table's accessor
+     */
+    static AccessorMetrics forTable(String tableName) {
+        return REGISTRY.computeIfAbsent(tableName, AccessorMetrics::new);
+    }
+
+    /**
+     * Start timing an operation
+     * @param operation name of the operation (e.g. getById)
+     * @return the running operation, which must be stopped
+     */
+    Operation start(String operation) {
+        return new Operation(operation, System.nanoTime());
+    }
+
+    private Timer timer(String operation) {
+        return this.timers.computeIfAbsent(operation, key -> Timer.builder("thinkon.accessor")
+                .description("Time taken by accessor operations, including mapping the results")
+                .tag("operation", key)
+                .tag("table", this.tableName)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry));
+    }
+
+    private DistributionSummary rowSummary(String operation) {
+        return this.rows.computeIfAbsent(operation, key -> DistributionSummary.builder("thinkon.accessor.rows")
+                .description("Records returned or written by accessor operations")
+                .tag("operation", key)
+                .tag("table", this.tableName)
+                .register(Metrics.globalRegistry));
+    }
+
+    private Counter errorCounter(String operation, String sqlState) {
+        return this.errors.computeIfAbsent(operation + "/" + sqlState, key -> Counter.builder("thinkon.accessor.errors")
+                .description("Accessor operations that failed, by SQLState")
+                .tag("operation", operation)
+                .tag("table", this.tableName)
+                .tag("sqlstate", sqlState)
+                .register(Metrics.globalRegistry));
+    }
+
+    /**
+     * A single timed run of an operation
+     */
+    final class Operation {
+        private final String operation;
+        private final long start;
+        private long rowCount;
+
+        private Operation(String operation, long start) {
+            this.operation = operation;
+            this.start = start;
+        }
+
+        /**
+         * @param rowCount number of records the operation returned or wrote
+         */
+        void rows(long rowCount) {
+            this.rowCount = rowCount;
+        }
+
+        /**
+         * Count a failure of the operation
+         * @param e the error from the database
+         * @return the error wrapped in a RuntimeException, ready to be thrown
+         */
+        RuntimeException failed(SQLException e) {
+            errorCounter(this.operation, e.getSQLState() == null ? "unknown" : e.getSQLState()).increment();
+            return new RuntimeException(e);
+        }
+
+        /**
+         * Record how long the operation took and how many rows it saw
+         */
+        void stop() {
+            timer(this.operation).record(System.nanoTime() - this.start, TimeUnit.NANOSECONDS);
+            rowSummary(this.operation).record(this.rowCount);
+        }
+    }
+}
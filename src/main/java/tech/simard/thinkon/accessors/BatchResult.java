@@ -0,0 +1,90 @@
+package tech.simard.thinkon.accessors;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import tech.simard.thinkon.models.DBTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of inserting (or upserting) a batch of records. Rows that failed don't stop the rest of the batch from being inserted.
+ */
+public class BatchResult {
+    @JsonProperty("created")
+    public int created;
+
+    @JsonProperty("updated")
+    public int updated;
+
+    @JsonProperty("failed")
+    public int failed;
+
+    @JsonProperty("failures")
+    public List<Failure> failures = new ArrayList<>();
+
+    // The created (or updated) records, in the same order as the incoming rows (null where the row failed)
+    @JsonIgnore
+    public List<DBTable> records = new ArrayList<>();
+
+    /**
+     * Record a row that was inserted
+     * @param record the newly created record
+     */
+    public void addCreated(DBTable record) {
+        this.created++;
+        this.records.add(record);
+    }
+
+    /**
+     * Record a row that updated an existing record (see ModelAccessor.upsertBatch)
+     * @param record the updated record
+     */
+    public void addUpdated(DBTable record) {
+        this.updated++;
+        this.records.add(record);
+    }
+
+    /**
+     * Record a row that couldn't be inserted
+     * @param index position of the row within the batch
+     * @param sqlState the SQLState reported by the database (e.g. 23000 for a unique key violation)
+     * @param message the error reported by the database
+     */
+    public void addFailure(int index, String sqlState, String message) {
+        this.failed++;
+        this.failures.add(new Failure(index, sqlState, message));
+        this.records.add(null);
+    }
+
+    /**
+     * Add the counts and failures of another batch to this one (the records of the other batch aren't kept)
+     * @param other the other batch
+     * @param offset position of the other batch's first row within this batch
+     */
+    public void merge(BatchResult other, int offset) {
+        this.created += other.created;
+        this.updated += other.updated;
+        this.failed += other.failed;
+        for (Failure failure : other.failures) {
+            this.failures.add(new Failure(failure.index + offset, failure.sqlState, failure.message));
+        }
+    }
+
+    public static class Failure {
+        @JsonProperty("index")
+        public int index;
+
+        @JsonProperty("sqlState")
+        public String sqlState;
+
+        @JsonProperty("message")
+        public String message;
+
+        public Failure(int index, String sqlState, String message) {
+            this.index = index;
+            this.sqlState = sqlState;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package tech.simard.thinkon.accessors;
+
+/**
+ * Point-in-time statistics of an entity cache
+ * @param enabled whether the cache is turned on
+ * @param size number of entries currently in the cache (including negative entries)
+ * @param maxSize the most entries the cache will hold
+ * @param hits lookups answered with a record from the cache
+ * @param negativeHits lookups answered from the cache with "this record doesn't exist"
+ * @param misses lookups that had to go to the database
+ * @param evictions entries dropped because the cache was full or the entry expired
+ */
+public record CacheStats(boolean enabled, int size, int maxSize, long hits, long negativeHits, long misses, long evictions) {
+}
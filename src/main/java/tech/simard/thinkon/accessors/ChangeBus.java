@@ -0,0 +1,154 @@
+package tech.simard.thinkon.accessors;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import tech.simard.thinkon.config.Env;
+import tech.simard.thinkon.models.DBTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process feed of the committed changes to the records of a model class, for anyone who wants to follow them
+ * instead of polling. Each change gets the next sequence number, and the latest CHANGE_FEED_BUFFER_SIZE (default 10000)
+ * changes are kept in a ring buffer that followers read from at their own pace, starting after the last sequence they saw.
+ * <p>
+ * Publishing never waits on followers. A follower that falls so far behind that the changes it hasn't seen yet have been
+ * overwritten (or that asks for a sequence from before the application restarted) is told to resync instead:
+ * read the records again, then follow from the latest sequence.
+ * <p>
+ * Followers either wait for changes with poll, or register a listener that's told when there are new changes and then
+ * reads them with poll without waiting (so following doesn't tie up a thread per follower).
+ */
+public final class ChangeBus {
+    private static final ConcurrentMap<Class<?>, ChangeBus> REGISTRY = new ConcurrentHashMap<>();
+
+    private final ChangeEvent[] buffer;
+
+    // Guards the buffer and the latest sequence, followers wait on the condition for new changes
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = this.lock.newCondition();
+
+    // Sequence of the newest change, 0 until something changes
+    private long latest;
+
+    // Told after each change is published, on the publishing thread
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private final Counter published;
+    private final Counter resyncs;
+
+    ChangeBus(String model, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("The change feed must keep at least one change");
+        }
+        this.buffer = new ChangeEvent[bufferSize];
+
+        // Publish how many changes go through the feed, and how often followers can't keep up
+        this.published = Counter.builder("thinkon.changes.published").tag("model", model).register(Metrics.globalRegistry);
+        this.resyncs = Counter.builder("thinkon.changes.resyncs").tag("model", model).register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.changes.sequence", this, ChangeBus::getLatestSequence).tag("model", model).register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Get the change feed of a model class, creating it the first time it's requested
+     * @param cls the model class
+     * @return the change feed of the class
+     */
+    public static ChangeBus forModel(Class<?> cls) {
+        return REGISTRY.computeIfAbsent(cls, key -> new ChangeBus(key.getSimpleName().toLowerCase(), Env.getInt("CHANGE_FEED_BUFFER_SIZE", 10000)));
+    }
+
+    /**
+     * Publish a committed change
+     * @param type what happened to the record
+     * @param id the id of the record
+     * @param record the record after the change (which mustn't be changed afterwards), or null if it was deleted
+     */
+    public void publish(ChangeEvent.Type type, UUID id, DBTable record) {
+        this.lock.lock();
+        try {
+            this.latest++;
+            this.buffer[(int) (this.latest % this.buffer.length)] = new ChangeEvent(this.latest, type, id, record);
+            this.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.published.increment();
+
+        for (Runnable listener : this.listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Be told whenever a change is published. The listener runs on the publishing thread (after the change is in the
+     * feed), so it must only hand the work off, e.g. schedule a task that reads the changes with poll
+     * @param listener the listener
+     */
+    public void addListener(Runnable listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Stop telling a listener about changes
+     * @param listener the listener passed to addListener
+     */
+    public void removeListener(Runnable listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * @return the sequence of the newest change (follow from here to only get changes from now on)
+     */
+    public long getLatestSequence() {
+        this.lock.lock();
+        try {
+            return this.latest;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the changes after a sequence, waiting for one if there aren't any yet
+     * @param after the sequence of the last change the follower has seen
+     * @param max the most changes to return
+     * @param timeoutMillis how long to wait for a change (0 to return straight away)
+     * @return the changes in sequence order (empty if nothing changed in time),
+     * or null if some of the changes after the sequence aren't kept anymore and the follower must resync
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<ChangeEvent> poll(long after, int max, long timeoutMillis) throws InterruptedException {
+        this.lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (this.latest == after && remaining > 0) {
+                remaining = this.changed.awaitNanos(remaining);
+            }
+
+            // Either the follower is too far behind, or the sequence is from before a restart
+            if (after < 0 || after > this.latest || after < this.latest - this.buffer.length) {
+                this.resyncs.increment();
+                return null;
+            }
+
+            long last = Math.min(this.latest, after + max);
+            List<ChangeEvent> events = new ArrayList<>((int) (last - after));
+            for (long sequence = after + 1; sequence <= last; sequence++) {
+                events.add(this.buffer[(int) (sequence % this.buffer.length)]);
+            }
+            return events;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
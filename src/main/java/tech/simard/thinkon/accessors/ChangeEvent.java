@@ -0,0 +1,20 @@
+package tech.simard.thinkon.accessors;
+
+import tech.simard.thinkon.models.DBTable;
+
+import java.util.UUID;
+
+/**
+ * A change to a record, published once the change has been committed (see ChangeBus)
+ * @param sequence position of the change in the feed (starts at 1 when the application starts)
+ * @param type what happened to the record
+ * @param id the id of the record
+ * @param record the record after the change, or null if it was deleted
+ */
+public record ChangeEvent(long sequence, Type type, UUID id, DBTable record) {
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED
+    }
+}
@@ -0,0 +1,236 @@
+package tech.simard.thinkon.accessors;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import tech.simard.thinkon.config.Env;
+import tech.simard.thinkon.models.DBTable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process, size and TTL bounded cache of records by id for a single model class.
+ * Records that don't exist can also be cached (negative caching) so repeated lookups of a missing id skip the database.
+ * <p>
+ * Each model class is configured with environment variables named after the class (e.g. for User):
+ * ENTITY_CACHE_USER_ENABLED (default false), ENTITY_CACHE_USER_MAX_SIZE (default 10000),
+ * ENTITY_CACHE_USER_TTL_MS (default 60000) and ENTITY_CACHE_USER_NEGATIVE_TTL_MS (default 5000, 0 turns negative caching off).
+ */
+public class EntityCache {
+    private static final ConcurrentMap<Class<?>, EntityCache> REGISTRY = new ConcurrentHashMap<>();
+
+    private final ModelMetadata metadata;
+    private final boolean enabled;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    // Least recently used entries come first, guarded by synchronizing on the map
+    private final LinkedHashMap<UUID, Entry> entries;
+
+    // Bumped on every invalidation, loads that started before an invalidation aren't allowed to populate the cache
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    EntityCache(ModelMetadata metadata, boolean enabled, int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.metadata = metadata;
+        this.enabled = enabled && maxSize > 0;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+                if (size() > EntityCache.this.maxSize) {
+                    EntityCache.this.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        // Publish the cache's statistics
+        String model = metadata.getModelClass().getSimpleName().toLowerCase();
+        FunctionCounter.builder("thinkon.cache.hits", this.hits, LongAdder::sum).tag("model", model).register(Metrics.globalRegistry);
+        FunctionCounter.builder("thinkon.cache.negative.hits", this.negativeHits, LongAdder::sum).tag("model", model).register(Metrics.globalRegistry);
+        FunctionCounter.builder("thinkon.cache.misses", this.misses, LongAdder::sum).tag("model", model).register(Metrics.globalRegistry);
+        FunctionCounter.builder("thinkon.cache.evictions", this.evictions, LongAdder::sum).tag("model", model).register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.cache.size", this, cache -> cache.getStats().size()).tag("model", model).register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Get the cache of a model class, creating it from the environment's configuration the first time it's requested
+     * @param cls the model class
+     * @return the cache for the class (which may be turned off)
+     */
+    public static EntityCache forModel(Class<?> cls) {
+        return REGISTRY.computeIfAbsent(cls, key -> {
+            String prefix = String.format("ENTITY_CACHE_%s_", key.getSimpleName().toUpperCase());
+            return new EntityCache(ModelMetadata.of(key),
+                    Env.getBoolean(prefix + "ENABLED", false),
+                    Env.getInt(prefix + "MAX_SIZE", 10000),
+                    Env.getLong(prefix + "TTL_MS", 60000),
+                    Env.getLong(prefix + "NEGATIVE_TTL_MS", 5000));
+        });
+    }
+
+    /**
+     * @return whether the cache is turned on
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Look up a record in the cache
+     * @param id the id of the record
+     * @return null if the cache doesn't know about the record, otherwise an entry holding a copy of the record
+     * (or no record if it's known not to exist)
+     */
+    public Entry get(UUID id) {
+        if (!this.enabled) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(id);
+            if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+                this.entries.remove(id);
+                this.evictions.increment();
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            this.misses.increment();
+            return null;
+        }
+        if (entry.value == null) {
+            this.negativeHits.increment();
+            return entry;
+        }
+        this.hits.increment();
+
+        // Hand out a copy so callers can't change what's cached
+        return new Entry(this.metadata.copy(entry.value), entry.expiresAt);
+    }
+
+    /**
+     * Get a stamp to pass to put/putMissing once the record has been loaded from the database.
+     * If the record is invalidated while it's being loaded, the stale load won't be cached.
+     * @return the load stamp
+     */
+    public long startLoad() {
+        return this.invalidations.get();
+    }
+
+    /**
+     * Cache a record loaded from the database
+     * @param id the id of the record
+     * @param value the record
+     * @param stamp the stamp from startLoad, taken before the record was read
+     */
+    public void put(UUID id, DBTable value, long stamp) {
+        store(id, this.metadata.copy(value), this.ttlNanos, stamp);
+    }
+
+    /**
+     * Cache the fact that a record doesn't exist
+     * @param id the id of the record
+     * @param stamp the stamp from startLoad, taken before the record was looked for
+     */
+    public void putMissing(UUID id, long stamp) {
+        if (this.negativeTtlNanos > 0) {
+            store(id, null, this.negativeTtlNanos, stamp);
+        }
+    }
+
+    /**
+     * Remove a record from the cache
+     * @param id the id of the record
+     */
+    public void invalidate(UUID id) {
+        if (!this.enabled) {
+            return;
+        }
+
+        synchronized (this.entries) {
+            this.invalidations.incrementAndGet();
+            this.entries.remove(id);
+        }
+    }
+
+    /**
+     * @return the current statistics of the cache
+     */
+    public CacheStats getStats() {
+        int size;
+        synchronized (this.entries) {
+            size = this.entries.size();
+        }
+        return new CacheStats(this.enabled, size, this.maxSize, this.hits.sum(), this.negativeHits.sum(),
+                this.misses.sum(), this.evictions.sum());
+    }
+
+    private void store(UUID id, DBTable value, long ttlNanos, long stamp) {
+        if (!this.enabled) {
+            return;
+        }
+
+        synchronized (this.entries) {
+            // Something was invalidated while this was being loaded, what we have might be stale
+            if (this.invalidations.get() != stamp) {
+                return;
+            }
+
+            this.entries.put(id, new Entry(value, System.nanoTime() + ttlNanos));
+            removeExpired();
+        }
+    }
+
+    /**
+     * Drop a few expired entries from the least recently used end of the cache (must be called while synchronized)
+     */
+    private void removeExpired() {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        for (int i = 0; i < 4 && iterator.hasNext(); i++) {
+            if (iterator.next().expiresAt - now <= 0) {
+                iterator.remove();
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * A cached record, or the absence of one
+     */
+    public static final class Entry {
+        private final DBTable value;
+        private final long expiresAt;
+
+        private Entry(DBTable value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return the cached record, or null if the record is known not to exist
+         */
+        public DBTable getValue() {
+            return this.value;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package tech.simard.thinkon.accessors;
+
+/**
+ * A condition on an indexed column of a model, used to find records without scanning the whole table.
+ * Create filters with ModelAccessor.filter, which checks the column can be filtered on.
+ * @param column the column being filtered on
+ * @param prefix true to match values starting with the value, false to match the value exactly
+ * @param value the value to compare the column with
+ */
+public record Filter(ModelMetadata.Column column, boolean prefix, Object value) {
+    /**
+     * @return the SQL condition of the filter, with a single bind value
+     */
+    String condition() {
+        // The prefix is matched with LIKE, which can still use the column's index since the wildcard is only at the end
+        return this.prefix
+                ? String.format("%s LIKE ? ESCAPE '!'", this.column.getName())
+                : String.format("%s = ?", this.column.getName());
+    }
+
+    /**
+     * @return the value to bind for the condition of the filter
+     */
+    Object bindValue() {
+        if (!this.prefix) {
+            return this.value;
+        }
+
+        // Escape the LIKE wildcards in the prefix so they're matched literally (! is used since \ depends on the SQL mode)
+        String escaped = this.value.toString().replace("!", "!!").replace("%", "!%").replace("_", "!_");
+        return escaped + "%";
+    }
+}
@@ -0,0 +1,90 @@
+package tech.simard.thinkon.accessors;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Writes rows of a result set straight to JSON, without creating an instance of the DBTable class for each row.
+ * Like RowMapper, a writer is compiled once for a given result set shape. Field names are encoded up front,
+ * and the fields are written in the same order (and with the same names) as Jackson would write the class.
+ */
+public final class JsonRowWriter {
+    private final int[] resultIndexes;
+    private final ModelMetadata.Column[] columns;
+    private final SerializableString[] fieldNames;
+    private final int idIndex;
+
+    JsonRowWriter(ModelMetadata metadata, String[] columnLabels) {
+        // Find the result set column of each field, columns the class doesn't have are skipped (see RowMapper)
+        int[] resultIndexes = new int[metadata.getColumns().size()];
+        for (int i = 0; i < columnLabels.length; i++) {
+            ModelMetadata.Column column = metadata.getColumn(columnLabels[i]);
+            if (column != null) {
+                resultIndexes[column.getIndex()] = i + 1;
+            }
+        }
+
+        // Keep the fields that are in the result set, in declaration order
+        this.columns = metadata.getColumns().stream()
+                .filter(column -> resultIndexes[column.getIndex()] != 0)
+                .toArray(ModelMetadata.Column[]::new);
+        this.resultIndexes = Arrays.stream(this.columns).mapToInt(column -> resultIndexes[column.getIndex()]).toArray();
+        this.fieldNames = Arrays.stream(this.columns).map(column -> new SerializedString(column.getJsonName())).toArray(SerializableString[]::new);
+
+        ModelMetadata.Column id = metadata.getColumn("id");
+        this.idIndex = id == null ? 0 : resultIndexes[id.getIndex()];
+    }
+
+    /**
+     * Write the current row of the result set as a JSON object
+     * @param dbResults the result set, positioned on a row
+     * @param generator where the JSON is written
+     * @throws SQLException
+     * @throws IOException if the JSON can't be written
+     */
+    public void write(ResultSet dbResults, JsonGenerator generator) throws SQLException, IOException {
+        generator.writeStartObject();
+        for (int i = 0; i < this.columns.length; i++) {
+            generator.writeFieldName(this.fieldNames[i]);
+            writeValue(generator, this.columns[i].read(dbResults, this.resultIndexes[i]));
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * @param dbResults the result set, positioned on a row
+     * @return the id of the current row, or null if the result set has no id column
+     * @throws SQLException
+     */
+    public UUID readId(ResultSet dbResults) throws SQLException {
+        return this.idIndex == 0 ? null : dbResults.getObject(this.idIndex, UUID.class);
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        // The common column types are written directly, anything else is left to Jackson
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String string) {
+            generator.writeString(string);
+        } else if (value instanceof UUID uuid) {
+            generator.writeString(uuid.toString());
+        } else if (value instanceof Long number) {
+            generator.writeNumber(number);
+        } else if (value instanceof Integer number) {
+            generator.writeNumber(number);
+        } else if (value instanceof Double number) {
+            generator.writeNumber(number);
+        } else if (value instanceof Boolean bool) {
+            generator.writeBoolean(bool);
+        } else {
+            generator.writeObject(value);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package tech.simard.thinkon.accessors;
+
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Combines lookups by id that happen at the same time into a single query.
+ * Lookups for an id that's already being looked up wait for that lookup rather than querying again,
+ * and lookups arriving within a short window of each other are sent together as one IN query.
+ * <p>
+ * No extra threads are involved. A lookup that comes in while no other query of the coalescer is running is sent
+ * straight away, so a lone lookup doesn't wait for anything. Otherwise, the first lookup of a batch waits out the window,
+ * then runs the query for the whole batch on its own connection. If the batch fills up before then, the lookup that
+ * filled it runs it straight away.
+ * <p>
+ * Every caller gets its own copy of the record, like EntityCache hands out, so callers sharing a lookup can't see each
+ * other's changes to it.
+ */
+final class LookupCoalescer {
+    private final ModelAccessor accessor;
+    private final Loader loader;
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    // Lookups by id that haven't finished yet (whether they've been sent to the DB or are still waiting in a batch)
+    private final ConcurrentMap<UUID, CompletableFuture<DBTable>> inFlight = new ConcurrentHashMap<>();
+
+    // The batch new lookups join, guarded by synchronizing on the coalescer
+    private Batch current = new Batch();
+
+    // Batches that have been claimed and not finished yet, guarded by synchronizing on the coalescer
+    private int running;
+
+    LookupCoalescer(ModelAccessor accessor, long windowMillis, int maxBatchSize) {
+        this(accessor, ids -> {
+            // Borrow a read only connection (from a replica if there are any)
+            try (DBConnection db = DBConnection.forRead()) {
+                Map<UUID, DBTable> records = accessor.loadByIds(db, ids);
+                db.finish(true);
+                return records;
+            }
+        }, windowMillis, maxBatchSize);
+    }
+
+    /**
+     * @param accessor the accessor of the records (used to copy them)
+     * @param loader runs the query for a batch
+     * @param windowMillis how long the first lookup of a batch waits for others to join it
+     * @param maxBatchSize the most ids in a batch
+     */
+    LookupCoalescer(ModelAccessor accessor, Loader loader, long windowMillis, int maxBatchSize) {
+        this.accessor = accessor;
+        this.loader = loader;
+        this.windowNanos = windowMillis * 1_000_000;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Look up a record by id, sharing the query with any other lookups happening at the same time
+     * @param id the UUID of the record to be found
+     * @return the record, or null if there's no such record
+     */
+    DBTable get(UUID id) {
+        CompletableFuture<DBTable> result;
+        Batch batch = null;
+        boolean leader = false;
+        boolean runNow = false;
+        synchronized (this) {
+            // Someone is already looking for this record, we'll wait for their result (outside the lock)
+            result = this.inFlight.get(id);
+            if (result == null) {
+                result = new CompletableFuture<>();
+                this.inFlight.put(id, result);
+
+                batch = this.current;
+                batch.lookups.put(id, result);
+                leader = batch.lookups.size() == 1;
+
+                // Nobody else can join a full batch, and there's nobody to wait for if no other query is running
+                runNow = batch.lookups.size() >= this.maxBatchSize || (leader && this.running == 0);
+                if (runNow) {
+                    claim(batch);
+                }
+            }
+        }
+
+        if (runNow) {
+            run(batch);
+        } else if (leader) {
+            // Give other lookups a chance to join the batch, then run it (unless it filled up in the meantime)
+            if (this.windowNanos > 0) {
+                LockSupport.parkNanos(this.windowNanos);
+            }
+
+            boolean claimed;
+            synchronized (this) {
+                claimed = !batch.claimed;
+                if (claimed) {
+                    claim(batch);
+                }
+            }
+            if (claimed) {
+                run(batch);
+            }
+        }
+
+        return copy(join(result));
+    }
+
+    /**
+     * Stop sharing an in-flight lookup of a record (e.g. because it's being changed),
+     * so lookups from now on query the database again rather than getting a result that may be stale
+     * @param id the UUID of the record
+     */
+    void forget(UUID id) {
+        this.inFlight.remove(id);
+    }
+
+    /**
+     * Take responsibility for running a batch, so nobody else joins or runs it (the caller holds the coalescer's lock)
+     * @param batch the batch
+     */
+    private void claim(Batch batch) {
+        batch.claimed = true;
+        if (this.current == batch) {
+            this.current = new Batch();
+        }
+        this.running++;
+    }
+
+    private void run(Batch batch) {
+        Map<UUID, DBTable> records = null;
+        Exception failure = null;
+        try {
+            records = this.loader.load(batch.lookups.keySet());
+        } catch (SQLException | RuntimeException e) {
+            failure = e;
+        } finally {
+            // Lookups from now on query again, so none of them is handed this batch's result once it's done
+            // (or its failure, which may well be over by then)
+            batch.lookups.forEach(this.inFlight::remove);
+            synchronized (this) {
+                this.running--;
+            }
+        }
+
+        for (Map.Entry<UUID, CompletableFuture<DBTable>> lookup : batch.lookups.entrySet()) {
+            if (failure != null) {
+                lookup.getValue().completeExceptionally(failure);
+            } else {
+                lookup.getValue().complete(records.get(lookup.getKey()));
+            }
+        }
+    }
+
+    private DBTable copy(DBTable record) {
+        return record == null ? null : this.accessor.metadata.copy(record);
+    }
+
+    private static DBTable join(CompletableFuture<DBTable> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            // Rethrow what the query failed with, rather than the wrapper
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs the query for a batch of lookups
+     */
+    @FunctionalInterface
+    interface Loader {
+        /**
+         * @param ids the ids of the records
+         * @return the records found, by id
+         * @throws SQLException
+         */
+        Map<UUID, DBTable> load(Collection<UUID> ids) throws SQLException;
+    }
+
+    /**
+     * Lookups that are sent to the database together
+     */
+    private static final class Batch {
+        private final Map<UUID, CompletableFuture<DBTable>> lookups = new LinkedHashMap<>();
+
+        // Set once someone has taken responsibility for running the batch
+        private boolean claimed;
+    }
+}
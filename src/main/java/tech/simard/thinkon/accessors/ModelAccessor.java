@@ -1,61 +1,163 @@
 package tech.simard.thinkon.accessors;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import tech.simard.thinkon.config.Env;
 import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.db.UuidOrder;
 import tech.simard.thinkon.models.DBTable;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.UUID;
 
 public class ModelAccessor {
+    // Ids are looked up with IN queries of these sizes (padded up to the next size), so only a few distinct statements are prepared
+    private static final int[] ID_BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+    private static final int MAX_IDS_PER_QUERY = ID_BUCKETS[ID_BUCKETS.length - 1];
+
     protected Class<?> cls;
     protected String tableName;
+    protected ModelMetadata metadata;
+    protected EntityCache cache;
+    protected AccessorMetrics metrics;
+    protected LookupCoalescer coalescer;
+    protected ChangeBus changes;
+    protected UniqueKeys uniqueKeys;
 
-    public ModelAccessor(Class<?> cls) throws NoSuchFieldException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+    /**
+     * Create the accessor of a model class. Accessors are singletons, see ModelRegistry.
+     * @param cls a DBTable subclass
+     */
+    public ModelAccessor(Class<?> cls) {
         this.cls = cls;
 
-        // Figure out the table name based on the field
-        this.tableName = this.cls.getDeclaredField("TABLE_NAME").get(this.cls.getDeclaredConstructor().newInstance()).toString();
+        // Look up the table name and the fields/columns of the class once, rather than on every request
+        this.metadata = ModelMetadata.of(this.cls);
+        this.tableName = this.metadata.getTableName();
+
+        // Records by id are cached if the cache is turned on for this class
+        this.cache = EntityCache.forModel(this.cls);
+
+        // Timers and counters for each operation on the table
+        this.metrics = AccessorMetrics.forTable(this.tableName);
+
+        // Concurrent lookups by id share queries, lookups within the window of each other are sent as one query
+        this.coalescer = new LookupCoalescer(this, Env.getLong("DB_COALESCE_WINDOW_MS", 1), Env.getInt("DB_COALESCE_MAX_BATCH", 100));
+
+        // Committed changes are published for anyone following them
+        this.changes = ChangeBus.forModel(this.cls);
+
+        // Unique fields have to be checked across shards if the database is sharded
+        this.uniqueKeys = new UniqueKeys(this.metadata);
     }
 
     /**
-     * Dynamically create an instance of the accessor's class and populate its fields using the data from the database result.
-     * @param dbResults the results provided from DBConnection.query
-     * @param meta database metadata (contains column names)
-     * @return an instance of the class provided to the accessor
+     * @return the model class of the accessor
      */
-    private DBTable dynamicSet(ResultSet dbResults, ResultSetMetaData meta) {
-        DBTable returnObject = null;
+    public Class<?> getModelClass() {
+        return this.cls;
+    }
 
-        try {
-            // Create an instance of our dbtable class so we can populate the field values from the DB
-            returnObject = (DBTable) this.cls.getDeclaredConstructor().newInstance();
-
-            // Go through each field in the resulting dataset
-            for (int i = 1; i <= meta.getColumnCount(); i++) {
-                // Figure out the name of the column and its value from the db
-                String columnName = meta.getColumnName(i);
-                Object columnValue = dbResults.getObject(columnName);
-
-                // Assign the column's value to the object instance
-                // NOTE: If the column names don't match the object field names, it'll throw an exception
-                // TODO: It'd probably be better to output a warning if a field isn't found rather than an exception
-                Field field = this.cls.getDeclaredField(columnName);
-                field.set(returnObject, columnValue);
-            }
-        } catch (NoSuchFieldException | InvocationTargetException | InstantiationException | IllegalAccessException |
-                 NoSuchMethodException | SQLException e) {
-            throw new RuntimeException(e);
+    /**
+     * Get the set of columns to read for a projection (the id, and the version if the class has one, are always included)
+     * @param jsonNames the JSON names of the fields wanted, or null for every field
+     * @return bitmask of the columns (see SqlTemplates)
+     * @throws IllegalArgumentException if the class has no field with one of the names
+     */
+    public long getColumnSet(Collection<String> jsonNames) {
+        if (jsonNames == null) {
+            return this.metadata.getColumnSet();
         }
+        return this.metadata.getColumnSet(jsonNames) | fixedColumns();
+    }
 
-        return returnObject;
+    /**
+     * Get the JSON names of a set of columns, in the order their fields are written (see JsonRowWriter)
+     * @param columnSet bitmask of the columns (see SqlTemplates)
+     * @return the JSON names of the columns
+     */
+    public List<String> getJsonNames(long columnSet) {
+        List<String> jsonNames = new ArrayList<>();
+        for (ModelMetadata.Column column : this.metadata.getColumns()) {
+            if ((columnSet & SqlTemplates.bit(column)) != 0) {
+                jsonNames.add(column.getJsonName());
+            }
+        }
+        return jsonNames;
+    }
+
+    /**
+     * Get a unique field of the class, which records can be matched on (see upsertBatch)
+     * @param jsonName the JSON name of the field
+     * @return the column of the field
+     * @throws IllegalArgumentException if there's no such field, or it isn't unique
+     */
+    public ModelMetadata.Column getUniqueKey(String jsonName) {
+        ModelMetadata.Column column = this.metadata.getColumnByJsonName(jsonName);
+        if (column == null) {
+            throw new IllegalArgumentException(String.format("Unknown field %s", jsonName));
+        }
+        if (!column.isUnique()) {
+            throw new IllegalArgumentException(String.format("Field %s isn't unique", jsonName));
+        }
+        return column;
+    }
+
+    /**
+     * @return the column holding the version of a record (see RowVersion), or null if the class isn't versioned
+     */
+    public ModelMetadata.Column getVersionColumn() {
+        return this.metadata.getVersionColumn();
+    }
+
+    /**
+     * @return the feed of committed changes to the records of the class
+     */
+    public ChangeBus getChanges() {
+        return this.changes;
+    }
+
+    /**
+     * Get the per-class work of the first request out of the way (e.g. before the application takes traffic): the row
+     * mapper and JSON writer for whole records are compiled, and the insert and update statements built. No records are read.
+     * @param db A DBConnection instance
+     * @throws SQLException
+     */
+    public void warmUp(DBConnection db) throws SQLException {
+        // Select nothing, we only want the shape of whole records (from every shard if the database is sharded)
+        for (ResultSet dbResults : queryTable(db, String.format("SELECT * FROM %s WHERE 1 = 0", this.tableName), false, stmt -> {})) {
+            this.metadata.mapperFor(dbResults.getMetaData());
+            this.metadata.writerFor(dbResults.getMetaData());
+        }
+
+        // Statements for creating and replacing whole records
+        long allColumns = this.metadata.getColumnSet() & ~fixedColumns();
+        SqlTemplates templates = this.metadata.getSqlTemplates();
+        templates.insert(allColumns);
+        templates.update(allColumns);
+        templates.updateIfChanged(allColumns);
+    }
+
+    /**
+     * @return statistics of the record cache for the class of the accessor
+     */
+    public CacheStats getCacheStats() {
+        return this.cache.getStats();
     }
 
     /**
@@ -65,56 +167,592 @@ public class ModelAccessor {
      * @return an instance of the class provided to the accessor
      */
     public DBTable getById(DBConnection db, UUID id) {
+        // Check the cache first (if it's turned on for this class)
+        EntityCache.Entry cached = this.cache.get(id);
+        if (cached != null) {
+            return cached.getValue();
+        }
+
+        // Records read from a replica aren't cached, the replica may not have caught up with a write that was just committed
+        // (the cache would keep serving the stale record for its whole TTL, rather than for as long as the replica lags)
+        long cacheStamp = this.cache.startLoad();
+        boolean fromReplica = false;
+        AccessorMetrics.Operation operation = this.metrics.start("getById");
         try {
-            // Build the select by id statement
-            PreparedStatement stmt = db.prepareStatement(String.format("SELECT * FROM %s WHERE id = ?", this.tableName));
+            // Build the select by id statement (on the record's shard if the database is sharded)
+            DBConnection target = db.forId(id);
+            fromReplica = target.isReplica();
+            PreparedStatement stmt = target.prepareStatement(String.format("SELECT * FROM %s WHERE id = ?", this.tableName));
             stmt.setObject(1, id);
 
             // Execute the select all statement
-            ResultSet dbResults = db.query(stmt);
+            ResultSet dbResults = target.query(stmt);
 
-            // Get the metadata from the database results (we'll use this to dynamically find and assign fields to our object instance)
-            ResultSetMetaData meta = dbResults.getMetaData();
+            // Get the row mapper for the shape of the results (compiled the first time this shape is seen)
+            RowMapper mapper = this.metadata.mapperFor(dbResults.getMetaData());
 
             // If there's a result, create the resulting DBTable object and return them
             if (dbResults.next()) {
-                return dynamicSet(dbResults, meta);
+                DBTable record = mapper.map(dbResults);
+                operation.rows(1);
+                if (!fromReplica) {
+                    this.cache.put(id, record, cacheStamp);
+                }
+                return record;
             }
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
         }
 
+        // Remember that there's no such record, so the next lookup for it doesn't have to go to the DB
+        if (!fromReplica) {
+            this.cache.putMissing(id, cacheStamp);
+        }
         return null;
     }
 
     /**
-     * Find all records for the class of the accessor
+     * Provided with a UUID for the record desired, return the entire record from the database.
+     * The lookup runs on a connection of its own and is combined with any other lookups happening at the same time
+     * (see LookupCoalescer), so use getById instead if the record needs to be read as part of a transaction.
+     * @param id The UUID of the record to be found
+     * @return an instance of the class provided to the accessor, or null if there's no such record
+     */
+    public DBTable getByIdCoalesced(UUID id) {
+        // Check the cache first (if it's turned on for this class), no need to wait on anyone else
+        EntityCache.Entry cached = this.cache.get(id);
+        if (cached != null) {
+            return cached.getValue();
+        }
+
+        return this.coalescer.get(id);
+    }
+
+    /**
+     * Provided with UUIDs of the records desired, return the records using as few queries as possible
+     * @param db A DBConnection instance
+     * @param ids The UUIDs of the records to be found
+     * @return instances of the class provided to the accessor, in the order of the ids (ids without a record are skipped)
+     */
+    public List<DBTable> getByIds(DBConnection db, Collection<UUID> ids) {
+        Map<UUID, DBTable> records = loadByIds(db, new LinkedHashSet<>(ids));
+
+        List<DBTable> returnObjects = new ArrayList<>(records.size());
+        for (UUID id : new LinkedHashSet<>(ids)) {
+            DBTable record = records.get(id);
+            if (record != null) {
+                returnObjects.add(record);
+            }
+        }
+        return returnObjects;
+    }
+
+    /**
+     * Load records by id, from the cache where possible and otherwise with IN queries
+     * @param db A DBConnection instance
+     * @param ids The UUIDs of the records to be found (no duplicates)
+     * @return the records found, by id
+     */
+    Map<UUID, DBTable> loadByIds(DBConnection db, Collection<UUID> ids) {
+        Map<UUID, DBTable> records = new HashMap<>();
+
+        // Check the cache first (if it's turned on for this class)
+        List<UUID> remaining = new ArrayList<>();
+        for (UUID id : ids) {
+            EntityCache.Entry cached = this.cache.get(id);
+            if (cached == null) {
+                remaining.add(id);
+            } else if (cached.getValue() != null) {
+                records.put(id, cached.getValue());
+            }
+        }
+        if (remaining.isEmpty()) {
+            return records;
+        }
+
+        // Like getById, records read from a replica aren't cached
+        long cacheStamp = this.cache.startLoad();
+        boolean fromReplica = false;
+        AccessorMetrics.Operation operation = this.metrics.start("getByIds");
+        try {
+            // Group the ids by the connection they're read with (only one group unless the database is sharded)
+            Map<DBConnection, List<UUID>> idsByConnection = new LinkedHashMap<>();
+            for (UUID id : remaining) {
+                idsByConnection.computeIfAbsent(db.forId(id), key -> new ArrayList<>()).add(id);
+            }
+
+            for (Map.Entry<DBConnection, List<UUID>> group : idsByConnection.entrySet()) {
+                DBConnection target = group.getKey();
+                List<UUID> groupIds = group.getValue();
+                fromReplica |= target.isReplica();
+                for (int start = 0; start < groupIds.size(); start += MAX_IDS_PER_QUERY) {
+                    List<UUID> chunk = groupIds.subList(start, Math.min(start + MAX_IDS_PER_QUERY, groupIds.size()));
+
+                    // Pad the ids up to the bucket size by repeating the last one (IN doesn't care about duplicates)
+                    int bucket = idBucket(chunk.size());
+                    PreparedStatement stmt = target.prepareStatement(this.metadata.getSqlTemplates().selectByIds(bucket));
+                    for (int i = 0; i < bucket; i++) {
+                        stmt.setObject(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                    }
+
+                    // Execute the select statement
+                    ResultSet dbResults = target.query(stmt);
+
+                    // Get the row mapper for the shape of the results (compiled the first time this shape is seen)
+                    RowMapper mapper = this.metadata.mapperFor(dbResults.getMetaData());
+                    while (dbResults.next()) {
+                        DBTable record = mapper.map(dbResults);
+                        records.put(this.metadata.getId(record), record);
+                    }
+                }
+            }
+            operation.rows(records.size());
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+
+        // Cache what we found, and remember which records don't exist
+        if (fromReplica) {
+            return records;
+        }
+        for (UUID id : remaining) {
+            DBTable record = records.get(id);
+            if (record == null) {
+                this.cache.putMissing(id, cacheStamp);
+            } else {
+                this.cache.put(id, record, cacheStamp);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Provided with a UUID for the record desired, return some of the fields of the record.
+     * Only the columns asked for are read from the database (unless the whole record is already cached).
+     * @param db A DBConnection instance
+     * @param id The UUID of the record to be found
+     * @param columnSet bitmask of the columns to return (see getColumnSet)
+     * @return the record's values by JSON name (in declaration order), or null if there's no such record
+     */
+    public Map<String, Object> getById(DBConnection db, UUID id, long columnSet) {
+        // A cached record has every field, so we can pick the ones we want from it
+        EntityCache.Entry cached = this.cache.get(id);
+        if (cached != null) {
+            return cached.getValue() == null ? null : project(cached.getValue(), columnSet);
+        }
+
+        AccessorMetrics.Operation operation = this.metrics.start("getByIdProjected");
+        try {
+            // Build the select by id statement for only the columns we want (on the record's shard if the database is sharded)
+            String selectList = this.metadata.getSqlTemplates().selectList(columnSet);
+            DBConnection target = db.forId(id);
+            PreparedStatement stmt = target.prepareStatement(String.format("SELECT %s FROM %s WHERE id = ?", selectList, this.tableName));
+            stmt.setObject(1, id);
+
+            // Execute the select statement
+            ResultSet dbResults = target.query(stmt);
+            if (!dbResults.next()) {
+                return null;
+            }
+
+            // The row holds the columns asked for, read them in declaration order
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (ModelMetadata.Column column : this.metadata.getColumns()) {
+                if ((columnSet & SqlTemplates.bit(column)) != 0) {
+                    values.put(column.getJsonName(), column.read(dbResults, dbResults.findColumn(column.getName())));
+                }
+            }
+            operation.rows(1);
+            return values;
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+    }
+
+    /**
+     * Pick some of the fields of a record
+     * @param record the record
+     * @param columnSet bitmask of the columns wanted
+     * @return the record's values by JSON name (in declaration order)
+     */
+    public Map<String, Object> project(DBTable record, long columnSet) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (ModelMetadata.Column column : this.metadata.getColumns()) {
+            if ((columnSet & SqlTemplates.bit(column)) != 0) {
+                values.put(column.getJsonName(), column.get(record));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the version of a record (see RowVersion) without reading the rest of it
+     * @param db A DBConnection instance
+     * @param id The UUID of the record
+     * @return the version of the record, or null if there's no such record (or the class isn't versioned)
+     */
+    public Long getVersion(DBConnection db, UUID id) {
+        ModelMetadata.Column versionColumn = this.metadata.getVersionColumn();
+        if (versionColumn == null) {
+            return null;
+        }
+
+        // A cached record knows its version
+        EntityCache.Entry cached = this.cache.get(id);
+        if (cached != null) {
+            return cached.getValue() == null ? null : (Long) versionColumn.get(cached.getValue());
+        }
+
+        AccessorMetrics.Operation operation = this.metrics.start("getVersion");
+        try {
+            DBConnection target = db.forId(id);
+            PreparedStatement stmt = target.prepareStatement(String.format("SELECT %s FROM %s WHERE id = ?", versionColumn.getName(), this.tableName));
+            stmt.setObject(1, id);
+
+            ResultSet dbResults = target.query(stmt);
+            if (!dbResults.next()) {
+                return null;
+            }
+            operation.rows(1);
+            return dbResults.getLong(1);
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+    }
+
+    /**
+     * Get a tag that changes whenever the records of a page (or of the whole table) change, without reading the records.
+     * The tag is the number of records along with the XOR of a hash of each record's id and version, worked out by the
+     * database, so any record being created, changed or deleted gives a different tag.
+     * If the database is sharded, each shard works out its part and the parts are combined (a page's tag then covers
+     * the first records after the cursor on every shard, which is more than the page itself, so it changes more often).
+     * @param db A DBConnection instance
+     * @param after the cursor of the page (see writePage), or null to start from the beginning
+     * @param limit the size of the page, or null for every record
+     * @return the tag, or null if the class isn't versioned
+     */
+    public String getCollectionTag(DBConnection db, UUID after, Integer limit) {
+        ModelMetadata.Column versionColumn = this.metadata.getVersionColumn();
+        if (versionColumn == null) {
+            return null;
+        }
+
+        AccessorMetrics.Operation operation = this.metrics.start("getCollectionTag");
+        try {
+            // Pages are read with one extra record (see writePage), so the tag changes if the next page appears or goes away too
+            String rows = String.format("SELECT id, %s FROM %s%s ORDER BY id%s", versionColumn.getName(), this.tableName,
+                    after == null ? "" : " WHERE id > ?", limit == null ? "" : " LIMIT ?");
+            String sql = String.format(
+                    "SELECT COUNT(*), HEX(BIT_XOR(CAST(CONV(LEFT(MD5(CONCAT(id, ':', %s)), 16), 16, 10) AS UNSIGNED))) FROM (%s) page",
+                    versionColumn.getName(), rows);
+
+            long count = 0;
+            long hash = 0;
+            for (ResultSet dbResults : queryTable(db, sql, false, stmt -> bindPage(stmt, after, limit == null ? null : limit + 1))) {
+                dbResults.next();
+                count += dbResults.getLong(1);
+                hash ^= Long.parseUnsignedLong(dbResults.getString(2), 16);
+            }
+            return String.format("%d-%x", count, hash);
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+    }
+
+    /**
+     * Find all records for the class of the accessor, ordered by id
      * @param db A DBConnection instance
      * @return instance(s) of the class provided to the accessor
      */
     public List<DBTable> getAll(DBConnection db) {
         List<DBTable> returnObjects = new ArrayList<>();
+        AccessorMetrics.Operation operation = this.metrics.start("getAll");
         try {
-            // Build the select all statement
-            PreparedStatement stmt = db.prepareStatement(String.format("SELECT * FROM %s", this.tableName));
+            // Execute the select all statement (on every shard, merging the results in id order, if the database is sharded)
+            RowCursor rows = queryById(db, String.format("SELECT * FROM %s ORDER BY id", this.tableName), false, stmt -> {});
 
-            // Execute the select all statement
-            ResultSet dbResults = db.query(stmt);
+            // Get the row mapper for the shape of the results (compiled the first time this shape is seen)
+            RowMapper mapper = this.metadata.mapperFor(rows.getMetaData());
+
+            // Iterate over results, create resulting DBTable objects and return them
+            while (rows.next()) {
+                returnObjects.add(mapper.map(rows.current()));
+            }
+            operation.rows(returnObjects.size());
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+
+        return returnObjects;
+    }
+
+    /**
+     * Write every record for the class of the accessor (ordered by id) as JSON, straight from the result set.
+     * Rows are streamed from the database and written as they're read, no instances of the class are created.
+     * Each record is written as a separate value, so the caller decides what surrounds them (e.g. an array).
+     * @param db A DBConnection instance
+     * @param after only records with an id after this one are written, or null for all records
+     * @param generator where the records are written
+     * @return the number of records written
+     * @throws IOException if the JSON can't be written
+     */
+    public long writeAll(DBConnection db, UUID after, JsonGenerator generator) throws IOException {
+        return writeAll(db, after, this.metadata.getColumnSet(), generator);
+    }
 
-            // Get the metadata from the database results (we'll use this to dynamically find and assign fields to our object instance)
-            ResultSetMetaData meta = dbResults.getMetaData();
+    /**
+     * Write some of the fields of every record for the class of the accessor (ordered by id) as JSON.
+     * Only the columns asked for are read from the database, see writeAll.
+     * @param db A DBConnection instance
+     * @param after only records with an id after this one are written, or null for all records
+     * @param columnSet bitmask of the columns to write (see getColumnSet)
+     * @param generator where the records are written
+     * @return the number of records written
+     * @throws IOException if the JSON can't be written
+     */
+    public long writeAll(DBConnection db, UUID after, long columnSet, JsonGenerator generator) throws IOException {
+        String selectList = this.metadata.getSqlTemplates().selectList(columnSet);
+        long rowCount = 0;
+        AccessorMetrics.Operation operation = this.metrics.start("writeAll");
+        try {
+            // Build a select statement that streams its results rather than buffering them all
+            String sql = after == null
+                    ? String.format("SELECT %s FROM %s ORDER BY id", selectList, this.tableName)
+                    : String.format("SELECT %s FROM %s WHERE id > ? ORDER BY id", selectList, this.tableName);
+
+            // Execute the select statement (on every shard, merging the results in id order, if the database is sharded)
+            RowCursor rows = queryById(db, sql, true, stmt -> bindPage(stmt, after, null));
+
+            // Get the JSON writer for the shape of the results (compiled the first time this shape is seen)
+            JsonRowWriter writer = this.metadata.writerFor(rows.getMetaData());
+
+            // Write each record as soon as it's read
+            while (rows.next()) {
+                writer.write(rows.current(), generator);
+                operation.rows(++rowCount);
+            }
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Write one page of records for the class of the accessor as JSON, ordered by id (keyset pagination).
+     * Like writeAll, each record is written as a separate value straight from the result set.
+     * @param db A DBConnection instance
+     * @param after the id of the last record of the previous page, or null for the first page
+     * @param limit the maximum number of records in the page
+     * @param generator where the records are written
+     * @return the cursor for the next page, or null if this was the last page
+     * @throws IOException if the JSON can't be written
+     */
+    public UUID writePage(DBConnection db, UUID after, int limit, JsonGenerator generator) throws IOException {
+        return writePage(db, after, limit, this.metadata.getColumnSet(), generator);
+    }
+
+    /**
+     * Write some of the fields of one page of records for the class of the accessor as JSON, ordered by id.
+     * Only the columns asked for are read from the database, see writePage.
+     * @param db A DBConnection instance
+     * @param after the id of the last record of the previous page, or null for the first page
+     * @param limit the maximum number of records in the page
+     * @param columnSet bitmask of the columns to write (see getColumnSet, it must include the id)
+     * @param generator where the records are written
+     * @return the cursor for the next page, or null if this was the last page
+     * @throws IOException if the JSON can't be written
+     */
+    public UUID writePage(DBConnection db, UUID after, int limit, long columnSet, JsonGenerator generator) throws IOException {
+        String selectList = this.metadata.getSqlTemplates().selectList(columnSet);
+        UUID next = null;
+        AccessorMetrics.Operation operation = this.metrics.start("writePage");
+        try {
+            // Build the select statement, starting after the cursor if there is one
+            // We ask for one extra record so that we know whether there's another page
+            String sql = after == null
+                    ? String.format("SELECT %s FROM %s ORDER BY id LIMIT ?", selectList, this.tableName)
+                    : String.format("SELECT %s FROM %s WHERE id > ? ORDER BY id LIMIT ?", selectList, this.tableName);
+
+            // Execute the select statement (on every shard, merging the results in id order, if the database is sharded)
+            RowCursor rows = queryById(db, sql, false, stmt -> bindPage(stmt, after, limit + 1));
+
+            // Get the JSON writer for the shape of the results (compiled the first time this shape is seen)
+            JsonRowWriter writer = this.metadata.writerFor(rows.getMetaData());
+
+            int rowCount = 0;
+            UUID lastId = null;
+            while (rows.next()) {
+                if (rowCount == limit) {
+                    // There's more after this page, the last record we wrote is the cursor for the next one
+                    next = lastId;
+                    break;
+                }
+                writer.write(rows.current(), generator);
+                lastId = writer.readId(rows.current());
+                rowCount++;
+            }
+            operation.rows(rowCount);
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+
+        return next;
+    }
+
+    /**
+     * Create a filter on a field of the class of the accessor
+     * @param jsonName the JSON name of the field
+     * @param prefix true to match values starting with the value, false to match the value exactly
+     * @param value the value to compare the field with
+     * @return the filter
+     * @throws IllegalArgumentException if there's no such field, or it isn't indexed
+     */
+    public Filter filter(String jsonName, boolean prefix, Object value) {
+        ModelMetadata.Column column = this.metadata.getColumnByJsonName(jsonName);
+        if (column == null) {
+            throw new IllegalArgumentException(String.format("Unknown field %s", jsonName));
+        }
+        if (!column.isIndexed()) {
+            throw new IllegalArgumentException(String.format("Field %s can't be filtered on", jsonName));
+        }
+        if (prefix && column.getType() != String.class) {
+            throw new IllegalArgumentException(String.format("Field %s can't be filtered by prefix", jsonName));
+        }
+        return new Filter(column, prefix, value);
+    }
+
+    /**
+     * Find the records whose field has the given value (the field must be indexed)
+     * @param db A DBConnection instance
+     * @param jsonName the JSON name of the field
+     * @param value the value to look for
+     * @return instance(s) of the class provided to the accessor, ordered by id
+     * @throws IllegalArgumentException if there's no such field, or it isn't indexed
+     */
+    public List<DBTable> findBy(DBConnection db, String jsonName, Object value) {
+        List<DBTable> returnObjects = new ArrayList<>();
+        AccessorMetrics.Operation operation = this.metrics.start("findBy");
+        try {
+            Filter filter = filter(jsonName, false, value);
+
+            // Build the select statement using the filter, and execute it (on every shard if the database is sharded)
+            String sql = String.format("SELECT * FROM %s WHERE %s ORDER BY id", this.tableName, filter.condition());
+            RowCursor rows = queryById(db, sql, false, stmt -> stmt.setObject(1, filter.bindValue()));
+
+            // Get the row mapper for the shape of the results (compiled the first time this shape is seen)
+            RowMapper mapper = this.metadata.mapperFor(rows.getMetaData());
 
             // Iterate over results, create resulting DBTable objects and return them
-            while (dbResults.next()) {
-                returnObjects.add(dynamicSet(dbResults, meta));
+            while (rows.next()) {
+                returnObjects.add(mapper.map(rows.current()));
             }
+            operation.rows(returnObjects.size());
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
         }
 
         return returnObjects;
     }
 
+    /**
+     * Write the records matching every filter as JSON, straight from the result set (see writeAll).
+     * Records are ordered by the prefix filter's field if there is one (so they come back alphabetically, ties by id), otherwise by id.
+     * @param db A DBConnection instance
+     * @param filters the filters the records must match (at least one)
+     * @param limit the maximum number of records to write
+     * @param columnSet bitmask of the columns to write (see getColumnSet)
+     * @param generator where the records are written
+     * @return the number of records written
+     * @throws IOException if the JSON can't be written
+     */
+    public long writeWhere(DBConnection db, List<Filter> filters, int limit, long columnSet, JsonGenerator generator) throws IOException {
+        String selectList = this.metadata.getSqlTemplates().selectList(columnSet);
+        long rowCount = 0;
+        AccessorMetrics.Operation operation = this.metrics.start("writeWhere");
+        try {
+            // Prefix filters are ordered by the filtered column
+            String orderBy = "id";
+            for (Filter filter : filters) {
+                if (filter.prefix()) {
+                    orderBy = filter.column().getName();
+                }
+            }
+
+            // Build the select statement, every filter has to match
+            // If the database is sharded, the rows of the shards are merged in the order the database sorted them in.
+            // Text is sorted by the column's collation, which no Java comparator reproduces (case and accent folding,
+            // expansions, padding...), so each shard also sends the collation's binary sort key for the column
+            // (WEIGHT_STRING), and the merge compares those bytes. Ties are broken by id, on the shards and in the merge.
+            // Both are selected under names the JSON writer skips (the projection might not include the columns).
+            boolean mergeBySortKey = DBConnection.isSharded() && !orderBy.equals("id");
+            String sortKey = mergeBySortKey ? String.format(", WEIGHT_STRING(%s) AS sort_key, id AS sort_id", orderBy) : "";
+            StringBuilder queryString = new StringBuilder(String.format("SELECT %s%s FROM %s WHERE ", selectList, sortKey, this.tableName));
+            for (int i = 0; i < filters.size(); i++) {
+                if (i > 0) {
+                    queryString.append(" AND ");
+                }
+                queryString.append(filters.get(i).condition());
+            }
+            queryString.append(orderBy.equals("id") ? " ORDER BY id LIMIT ?" : String.format(" ORDER BY %s, id LIMIT ?", orderBy));
+
+            // Execute the select statement, binding the filter values followed by the limit (on every shard if the database is sharded)
+            List<ResultSet> results = queryTable(db, queryString.toString(), false, stmt -> {
+                for (int i = 0; i < filters.size(); i++) {
+                    stmt.setObject(i + 1, filters.get(i).bindValue());
+                }
+                stmt.setInt(filters.size() + 1, limit);
+            });
+
+            // Merge the results of the shards in the same order
+            RowCursor rows = mergeBySortKey
+                    ? RowCursor.merge(results, dbResults -> new SortKey(dbResults.getBytes("sort_key"), dbResults.getObject("sort_id", UUID.class)), SortKey.COMPARATOR)
+                    : RowCursor.merge(results, dbResults -> dbResults.getObject("id", UUID.class), UuidOrder.COMPARATOR);
+
+            // Get the JSON writer for the shape of the results (compiled the first time this shape is seen)
+            JsonRowWriter writer = this.metadata.writerFor(rows.getMetaData());
+
+            while (rowCount < limit && rows.next()) {
+                writer.write(rows.current(), generator);
+                operation.rows(++rowCount);
+            }
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Where a row sorts when ordered by a text column then id: the collation's sort key for the column (compared byte by
+     * byte, like the database compares them) then the id (in MariaDB's order)
+     */
+    private record SortKey(byte[] weight, UUID id) {
+        private static final Comparator<SortKey> COMPARATOR = Comparator
+                .comparing(SortKey::weight, Arrays::compareUnsigned)
+                .thenComparing(SortKey::id, UuidOrder.COMPARATOR);
+    }
+
     /**
      * Given a local instance of the class of the accessor, insert the record data into the related database table
      * @param db A DBConnection instance
@@ -122,160 +760,771 @@ public class ModelAccessor {
      * @return the newly created record as an instance of the class provided to the accessor
      */
     public DBTable create(DBConnection db, DBTable incomingData) {
+        AccessorMetrics.Operation operation = this.metrics.start("create");
         try {
-            // Get the name of the table based on the class
-            String tableName = this.tableName;
+            DBTable record = insertOne(db, incomingData, false);
+            if (record == null) {
+                return null;
+            }
+            operation.rows(1);
 
-            // Get all the fields and values
-            List<String> fieldNames = new ArrayList<>();
-            List<Object> fieldValues = new ArrayList<>();
-            for (Field field : incomingData.getClass().getDeclaredFields()) {
-                Object value = field.get(incomingData);
+            // Once the new record has been committed, it can go in the cache (and out to anyone following the changes)
+            UUID id = this.metadata.getId(record);
+            DBTable published = this.metadata.copy(record);
+            long cacheStamp = this.cache.startLoad();
+            db.afterFinish(committed -> {
+                if (committed) {
+                    this.cache.put(id, record, cacheStamp);
+                    this.changes.publish(ChangeEvent.Type.CREATED, id, published);
+                }
+            });
 
-                // Ignore the id field as we're inserting, the db will give us an id
-                if (field.getName().equals("id")) {
-                    continue;
+            return record;
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+    }
+
+    /**
+     * Insert a single record with its non-null fields.
+     * If the database is sharded, the record is given its id here (so we know which shard it goes to),
+     * and the values of its unique fields are claimed on the primary first (see UniqueKeys).
+     * @param db A DBConnection instance
+     * @param incomingData Data to be used to insert a new record into the db
+     * @param keepId true to insert the record with the id it has (if it has one), false to give it a new one
+     * @return the newly created record, or null if there was nothing to insert
+     * @throws SQLException if the database rejects the insert
+     */
+    private DBTable insertOne(DBConnection db, DBTable incomingData, boolean keepId) throws SQLException {
+        DBTable row = incomingData;
+        boolean hasId = keepId && this.metadata.getId(incomingData) != null;
+        if (DBConnection.isSharded() && !hasId) {
+            row = this.metadata.copy(incomingData);
+            this.metadata.getColumn("id").set(row, UUID.randomUUID());
+        }
+
+        // Get all the fields and values
+        // We're using JsonProperty to mean it's a DB field, the cached metadata only contains those fields
+        long columnSet = 0;
+        List<Object> fieldValues = new ArrayList<>();
+        for (ModelMetadata.Column column : this.metadata.getColumns()) {
+            // Ignore the version field as we're inserting, the db will give us that (and the id, unless it has one already)
+            if ((column.getName().equals("id") && row == incomingData && !hasId) || column == this.metadata.getVersionColumn()) {
+                continue;
+            }
+
+            // We only want non-null fields to be inserted into the DB
+            Object value = column.get(row);
+            if (value != null) {
+                columnSet |= SqlTemplates.bit(column);
+                fieldValues.add(value);
+            }
+        }
+
+        // Can't do an insert if we have no fields!
+        if ((columnSet & ~fixedColumns()) == 0) {
+            return null;
+        }
+
+        // Claim the unique values before the record is written, so nobody on another shard can take them
+        DBConnection target = db;
+        if (DBConnection.isSharded()) {
+            if (this.uniqueKeys.isActive()) {
+                this.uniqueKeys.claimAll(db, row);
+            }
+            target = db.forId(this.metadata.getId(row));
+        }
+
+        // Get the insert statement for this set of fields (built once, then reused) and bind the values to it
+        PreparedStatement stmt = target.prepareStatement(this.metadata.getSqlTemplates().insert(columnSet));
+        for (int i = 0; i < fieldValues.size(); i++) {
+            stmt.setObject(i + 1, fieldValues.get(i));
+        }
+
+        // Execute the insert statement (we're going to get the newly created record back)
+        ResultSet dbResults = target.query(stmt);
+
+        // Get the row mapper for the shape of the results (compiled the first time this shape is seen)
+        RowMapper mapper = this.metadata.mapperFor(dbResults.getMetaData());
+
+        // If there's a result, create the resulting DBTable object and return it
+        return dbResults.next() ? mapper.map(dbResults) : null;
+    }
+
+    /**
+     * Insert many records at once. The records are inserted with multi-row inserts, and if one of those fails
+     * (e.g. a unique key violation), its rows are retried one at a time so only the offending rows fail.
+     * If the database is sharded, the rows are inserted one at a time (each on its own shard).
+     * The caller is responsible for committing; nothing is rolled back other than the failed rows.
+     * @param db A DBConnection instance
+     * @param incomingData Data to be used to insert the new records into the db
+     * @return the created records (in the same order as the incoming data) and the rows that failed
+     */
+    public BatchResult createBatch(DBConnection db, List<? extends DBTable> incomingData) {
+        return createBatch(db, incomingData, false);
+    }
+
+    /**
+     * Insert many records at once, like createBatch, optionally keeping the ids the records already have
+     * (e.g. reloading an export). Records without an id are given a new one either way.
+     * @param db A DBConnection instance
+     * @param incomingData Data to be used to insert the new records into the db
+     * @param keepIds true to insert records with the ids they have, false to give every record a new one
+     * @return the created records (in the same order as the incoming data) and the rows that failed
+     */
+    public BatchResult createBatch(DBConnection db, List<? extends DBTable> incomingData, boolean keepIds) {
+        BatchResult result = new BatchResult();
+        if (incomingData.isEmpty()) {
+            return result;
+        }
+
+        AccessorMetrics.Operation operation = this.metrics.start("createBatch");
+        try {
+            // Try the whole batch as one statement, rolling back to here if anything in it fails
+            // (a multi-row insert can't span shards, so a sharded database goes straight to one row at a time)
+            boolean sharded = DBConnection.isSharded();
+            List<DBTable> created = null;
+            if (!sharded) {
+                Savepoint savepoint = db.setSavepoint();
+                try {
+                    created = insertRows(db, incomingData, keepIds);
+                    db.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    db.rollback(savepoint);
                 }
+            }
 
-                // Check for annotations on the current field
-                // We want to filter out anything that doesn't have JsonProperty
-                // We're using JsonProperty to mean it's a DB field
-                boolean ignoreField = true;
-                Annotation[] annotations = field.getAnnotations();
-                for (Annotation ant : annotations) {
-                    if (ant.annotationType().getSimpleName().equals("JsonProperty")) {
-                        ignoreField = false;
-                        break;
+            if (created != null) {
+                for (DBTable record : created) {
+                    result.addCreated(record);
+                }
+            } else {
+                // Something in the batch was rejected, go through the rows one at a time to find out which
+                // A failed row insert on a shard is undone by the shard, the savepoint undoes its unique key claims
+                for (int i = 0; i < incomingData.size(); i++) {
+                    Savepoint rowSavepoint = db.setSavepoint();
+                    try {
+                        DBTable row = incomingData.get(i);
+                        result.addCreated(sharded ? insertOne(db, row, keepIds) : insertRows(db, List.of(row), keepIds).get(0));
+                        db.releaseSavepoint(rowSavepoint);
+                    } catch (SQLException e) {
+                        db.rollback(rowSavepoint);
+                        result.addFailure(i, e.getSQLState(), e.getMessage());
                     }
                 }
-                if (ignoreField) {
-                    continue;
+            }
+            operation.rows(result.created);
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+
+        // Once the new records have been committed, they can go in the cache (and out to anyone following the changes)
+        List<DBTable> records = new ArrayList<>(result.records.size());
+        for (DBTable record : result.records) {
+            if (record != null) {
+                records.add(this.metadata.copy(record));
+            }
+        }
+        long cacheStamp = this.cache.startLoad();
+        db.afterFinish(committed -> {
+            if (committed) {
+                for (DBTable record : records) {
+                    UUID id = this.metadata.getId(record);
+                    this.cache.put(id, record, cacheStamp);
+                    this.changes.publish(ChangeEvent.Type.CREATED, id, record);
                 }
+            }
+        });
 
-                // We only want non-null fields to be inserted into the DB
-                if (value != null) {
-                    fieldNames.add(field.getName());
-                    fieldValues.add(value);
+        return result;
+    }
+
+    /**
+     * Insert many records, updating the existing record instead wherever one already has the same value of a unique field
+     * (upsert). The existing records of the whole batch are found (and locked) up front, a few queries for the batch
+     * rather than one per row. Each of them is updated with the non-null fields of its row, and the other rows are
+     * inserted with createBatch.
+     * Values are matched ignoring case, like the default collation. Two new rows with the same value in one batch
+     * aren't merged, the second one fails like it would with createBatch.
+     * The caller is responsible for committing; nothing is rolled back other than the failed rows.
+     * @param db A DBConnection instance
+     * @param incomingData Data to be used to insert or update the records
+     * @param keyJsonName the JSON name of the unique field records are matched on
+     * @param keepIds true to insert new records with the ids they have (see createBatch), existing records keep theirs either way
+     * @return the created or updated records (in the same order as the incoming data) and the rows that failed
+     * @throws IllegalArgumentException if there's no such field, or it isn't unique
+     */
+    public BatchResult upsertBatch(DBConnection db, List<? extends DBTable> incomingData, String keyJsonName, boolean keepIds) {
+        ModelMetadata.Column key = getUniqueKey(keyJsonName);
+        BatchResult result = new BatchResult();
+        if (incomingData.isEmpty()) {
+            return result;
+        }
+
+        // Find (and lock) the existing records with the values of the batch
+        List<Object> values = new ArrayList<>();
+        for (DBTable row : incomingData) {
+            Object value = key.get(row);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        Map<String, DBTable> existing = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        AccessorMetrics.Operation operation = this.metrics.start("upsertBatch");
+        try {
+            for (int start = 0; start < values.size(); start += MAX_IDS_PER_QUERY) {
+                List<Object> chunk = values.subList(start, Math.min(start + MAX_IDS_PER_QUERY, values.size()));
+
+                // Pad the values up to the bucket size by repeating the last one, like loadByIds
+                int bucket = idBucket(chunk.size());
+                String sql = String.format("SELECT * FROM %s WHERE %s IN (%s) FOR UPDATE", this.tableName, key.getName(),
+                        String.join(",", Collections.nCopies(bucket, "?")));
+                DBConnection.StatementBinder binder = stmt -> {
+                    for (int i = 0; i < bucket; i++) {
+                        stmt.setObject(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                    }
+                };
+
+                // Execute the select statement (on every shard if the database is sharded, the records could be anywhere)
+                for (ResultSet dbResults : queryTable(db, sql, false, binder)) {
+                    RowMapper mapper = this.metadata.mapperFor(dbResults.getMetaData());
+                    while (dbResults.next()) {
+                        DBTable record = mapper.map(dbResults);
+                        existing.put(key.get(record).toString(), record);
+                    }
                 }
             }
+            operation.rows(existing.size());
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
 
-            // Can't do an insert if we have no fields!
-            if (fieldNames.isEmpty()) {
-                return null;
+        // Insert the rows that don't have a record yet
+        List<DBTable> newRows = new ArrayList<>();
+        for (DBTable row : incomingData) {
+            Object value = key.get(row);
+            if (value == null || !existing.containsKey(value.toString())) {
+                newRows.add(row);
             }
+        }
+        BatchResult created = createBatch(db, newRows, keepIds);
+        Map<Integer, BatchResult.Failure> createFailures = new HashMap<>();
+        for (BatchResult.Failure failure : created.failures) {
+            createFailures.put(failure.index, failure);
+        }
+
+        // Update the others one at a time (each only fails on its own), collecting every outcome in row order
+        ModelMetadata.Column versionColumn = this.metadata.getVersionColumn();
+        int newIndex = 0;
+        try {
+            for (int i = 0; i < incomingData.size(); i++) {
+                DBTable row = incomingData.get(i);
+                Object value = key.get(row);
+                DBTable current = value == null ? null : existing.get(value.toString());
+                if (current == null) {
+                    DBTable record = created.records.get(newIndex);
+                    if (record != null) {
+                        result.addCreated(record);
+                    } else {
+                        BatchResult.Failure failure = createFailures.get(newIndex);
+                        result.addFailure(i, failure.sqlState, failure.message);
+                    }
+                    newIndex++;
+                    continue;
+                }
 
-            // Dynamically build the insert query
-            StringBuilder queryString = new StringBuilder(String.format("INSERT INTO %s (", tableName));
-            for (String fieldName : fieldNames) {
-                queryString.append(String.format("%s,", fieldName));
+                // We only want non-null fields to be updated
+                long columnSet = 0;
+                for (ModelMetadata.Column column : this.metadata.getColumns()) {
+                    if (column.get(row) != null) {
+                        columnSet |= SqlTemplates.bit(column);
+                    }
+                }
+
+                // The record is locked, so it's still at the version we read (a row that changes nothing keeps that version)
+                Savepoint savepoint = db.setSavepoint();
+                try {
+                    Long version = versionColumn == null ? null : (Long) versionColumn.get(current);
+                    result.addUpdated(update(db, this.metadata.getId(current), row, columnSet, version));
+                    db.releaseSavepoint(savepoint);
+                } catch (RuntimeException e) {
+                    db.rollback(savepoint);
+                    if (!(e.getCause() instanceof SQLException sqlException)) {
+                        throw e;
+                    }
+                    result.addFailure(i, sqlException.getSQLState(), sqlException.getMessage());
+                }
             }
-            queryString.setLength(queryString.length() - 1); // trim trailing comma
-            queryString.append(") VALUES (");
-            for (Object fieldValue : fieldValues) {
-                    // Looks a little nasty, but surround strings/uuids with single quotes. Otherwise, should be ok to just output the value
-                    queryString.append(fieldValue.getClass().equals(String.class) || fieldValue.getClass().equals(UUID.class) ? String.format("'%s',", fieldValue.toString()) : String.format("%s,", fieldValue.toString()));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Insert records with a single multi-row insert statement
+     * @param db A DBConnection instance
+     * @param incomingData Data to be used to insert the new records into the db
+     * @param keepIds true to insert records with the ids they have, false to let the db give them new ones
+     * @return the newly created records, in the same order as the incoming data
+     * @throws SQLException if the database rejects the insert
+     */
+    private List<DBTable> insertRows(DBConnection db, List<? extends DBTable> incomingData, boolean keepIds) throws SQLException {
+        // Every row uses the same column list (everything but the version, and the id unless we keep it, the db will give us those)
+        // A row without an id gets the column's default, like any other null field
+        List<ModelMetadata.Column> columns = new ArrayList<>();
+        for (ModelMetadata.Column column : this.metadata.getColumns()) {
+            if ((keepIds || !column.getName().equals("id")) && column != this.metadata.getVersionColumn()) {
+                columns.add(column);
+            }
+        }
+
+        // Dynamically build the insert query, null fields get the column's default
+        StringBuilder queryString = new StringBuilder(String.format("INSERT INTO %s (", this.tableName));
+        for (ModelMetadata.Column column : columns) {
+            queryString.append(String.format("%s,", column.getName()));
+        }
+        queryString.setLength(queryString.length() - 1); // trim trailing comma
+        queryString.append(") VALUES ");
+
+        List<Object> values = new ArrayList<>();
+        for (DBTable row : incomingData) {
+            queryString.append("(");
+            for (ModelMetadata.Column column : columns) {
+                Object value = column.get(row);
+                if (value == null) {
+                    queryString.append("DEFAULT,");
+                } else {
+                    queryString.append("?,");
+                    values.add(value);
+                }
             }
             queryString.setLength(queryString.length() - 1); // trim trailing comma
-            queryString.append(") RETURNING *");
-            PreparedStatement stmt = db.prepareStatement(queryString.toString());
+            queryString.append("),");
+        }
+        queryString.setLength(queryString.length() - 1); // trim trailing comma
+        queryString.append(" RETURNING *");
 
-            // Execute the insert statement (we're going to get the newly created record back)
-            ResultSet dbResults = db.query(stmt);
+        PreparedStatement stmt = db.prepareStatement(queryString.toString());
+        for (int i = 0; i < values.size(); i++) {
+            stmt.setObject(i + 1, values.get(i));
+        }
 
-            // Get the metadata from the database results (we'll use this to dynamically find and assign fields to our object instance)
-            ResultSetMetaData meta = dbResults.getMetaData();
+        // Execute the insert statement (we're going to get the newly created records back, in insert order)
+        ResultSet dbResults = db.query(stmt);
 
-            // If there's a result, create the resulting DBTable object and return them
-            if (dbResults.next()) {
-                return dynamicSet(dbResults, meta);
+        // Get the row mapper for the shape of the results (compiled the first time this shape is seen)
+        RowMapper mapper = this.metadata.mapperFor(dbResults.getMetaData());
+
+        List<DBTable> returnObjects = new ArrayList<>(incomingData.size());
+        while (dbResults.next()) {
+            returnObjects.add(mapper.map(dbResults));
+        }
+        return returnObjects;
+    }
+
+    /**
+     * Perform an update on an existing record in the database. Only the non-null fields of the incoming data are updated.
+     * @param db A DBConnection instance
+     * @param recordId the UUID of the record that already exists in the database
+     * @param incomingData Data to be used to update the chosen record
+     * @return the updated record, or null if there's no such record
+     */
+    public DBTable update(DBConnection db, UUID recordId, DBTable incomingData) {
+        return update(db, recordId, incomingData, (Long) null);
+    }
+
+    /**
+     * Perform an update on an existing record in the database, if it's still at the version the client last saw.
+     * Only the non-null fields of the incoming data are updated.
+     * @param db A DBConnection instance
+     * @param recordId the UUID of the record that already exists in the database
+     * @param incomingData Data to be used to update the chosen record
+     * @param expectedVersion the version the record must be at (see RowVersion), or null to update it whatever its version
+     * @return the updated record, or null if there's no such record
+     * @throws VersionConflictException if the record isn't at the expected version (or doesn't exist)
+     */
+    public DBTable update(DBConnection db, UUID recordId, DBTable incomingData, Long expectedVersion) {
+        // We only want non-null fields to be updated
+        long columnSet = 0;
+        for (ModelMetadata.Column column : this.metadata.getColumns()) {
+            if (column.get(incomingData) != null) {
+                columnSet |= SqlTemplates.bit(column);
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
-        return null;
+
+        return update(db, recordId, incomingData, columnSet, expectedVersion);
     }
 
     /**
-     * Perform an update on an existing record in the database
+     * Perform a partial update on an existing record in the database. Only the given fields are updated (including null values).
      * @param db A DBConnection instance
      * @param recordId the UUID of the record that already exists in the database
      * @param incomingData Data to be used to update the chosen record
+     * @param jsonNames the JSON names of the fields to update
+     * @return the updated record, or null if there's no such record
+     * @throws IllegalArgumentException if one of the fields isn't a DB field of the class
      */
-    public void update(DBConnection db, UUID recordId, DBTable incomingData) {
-        try {
-            // Get the name of the table based on the class
-            String tableName = this.tableName;
+    public DBTable patch(DBConnection db, UUID recordId, DBTable incomingData, Collection<String> jsonNames) {
+        return patch(db, recordId, incomingData, jsonNames, null);
+    }
 
-            // Get all the fields and values
-            List<String> fieldNames = new ArrayList<>();
-            List<Object> fieldValues = new ArrayList<>();
-            for (Field field : incomingData.getClass().getDeclaredFields()) {
-                Object value = field.get(incomingData);
-
-                // Check for annotations on the current field
-                // We want to filter out anything that doesn't have JsonProperty
-                // We're using JsonProperty to mean it's a DB field
-                boolean ignoreField = true;
-                Annotation[] annotations = field.getAnnotations();
-                for (Annotation ant : annotations) {
-                    if (ant.annotationType().getSimpleName().equals("JsonProperty")) {
-                        ignoreField = false;
-                        break;
+    /**
+     * Perform a partial update on an existing record in the database, if it's still at the version the client last saw.
+     * Only the given fields are updated (including null values).
+     * @param db A DBConnection instance
+     * @param recordId the UUID of the record that already exists in the database
+     * @param incomingData Data to be used to update the chosen record
+     * @param jsonNames the JSON names of the fields to update
+     * @param expectedVersion the version the record must be at (see RowVersion), or null to update it whatever its version
+     * @return the updated record, or null if there's no such record
+     * @throws IllegalArgumentException if one of the fields isn't a DB field of the class
+     * @throws VersionConflictException if the record isn't at the expected version (or doesn't exist)
+     */
+    public DBTable patch(DBConnection db, UUID recordId, DBTable incomingData, Collection<String> jsonNames, Long expectedVersion) {
+        return update(db, recordId, incomingData, this.metadata.getColumnSet(jsonNames), expectedVersion);
+    }
+
+    /**
+     * Update a set of columns of an existing record, only writing the ones whose value actually changes.
+     * If every column is being set, this is a single statement that only matches the record if one of its values is
+     * different (the record is only read if nothing matched, to tell a missing record or a version conflict from a record
+     * that already has these values). Otherwise, the current record is read (and locked) first so we know what's
+     * changing and can send back the whole record without reading it again afterwards.
+     * If the class is versioned (see RowVersion), the version of the record goes up by one when anything changes, and
+     * stays the same when nothing does.
+     * If unique values are being claimed across shards (see UniqueKeys), the record is always read first so the claims
+     * of any unique fields that change can be moved.
+     * @param db A DBConnection instance
+     * @param recordId the UUID of the record that already exists in the database
+     * @param incomingData Data to be used to update the chosen record
+     * @param columnSet bitmask of the columns to update
+     * @param expectedVersion the version the record must be at, or null to update it whatever its version (ignored if the class isn't versioned)
+     * @return the updated record, or null if there's no such record
+     * @throws VersionConflictException if the record isn't at the expected version (or doesn't exist)
+     */
+    private DBTable update(DBConnection db, UUID recordId, DBTable incomingData, long columnSet, Long expectedVersion) {
+        // The id of a record can't be changed, and its version is only ever counted up by us
+        ModelMetadata.Column idColumn = this.metadata.getColumn("id");
+        ModelMetadata.Column versionColumn = this.metadata.getVersionColumn();
+        columnSet &= ~fixedColumns();
+        if (versionColumn == null) {
+            expectedVersion = null;
+        }
+
+        AccessorMetrics.Operation operation = this.metrics.start("update");
+        try {
+            // Start from the current record, unless every column is being replaced (in which case we don't need it)
+            // A versioned record is read anyway if we don't know which version it's at, so we can send back its new version
+            DBTable record;
+            DBTable before = null;
+            long allColumns = this.metadata.getColumnSet() & ~fixedColumns();
+            boolean claimUnique = this.uniqueKeys.isActive();
+            boolean blind = columnSet == allColumns && (versionColumn == null || expectedVersion != null) && !claimUnique;
+            if (blind) {
+                // We don't know the current values, so every column is written and the statement checks whether any differ
+                // (and that the record is at the expected version)
+                record = this.metadata.newInstance();
+                idColumn.set(record, recordId);
+                if (versionColumn != null) {
+                    versionColumn.set(record, expectedVersion);
+                }
+            } else {
+                record = getForUpdate(db, recordId);
+                if (record == null) {
+                    if (expectedVersion != null) {
+                        throw new VersionConflictException(recordId, expectedVersion);
                     }
+                    return null;
                 }
-                if (ignoreField) {
+
+                // The record is locked, so its version can't change between this check and the update
+                if (expectedVersion != null && !expectedVersion.equals(versionColumn.get(record))) {
+                    throw new VersionConflictException(recordId, expectedVersion);
+                }
+                if (claimUnique) {
+                    before = this.metadata.copy(record);
+                }
+            }
+
+            // Get all the fields and values that are actually changing
+            long changedSet = 0;
+            List<Object> fieldValues = new ArrayList<>();
+            for (ModelMetadata.Column column : this.metadata.getColumns()) {
+                if ((columnSet & SqlTemplates.bit(column)) == 0) {
                     continue;
                 }
 
-                // We only want non-null fields to be inserted into the DB
-                if (value != null) {
-                    fieldNames.add(field.getName());
+                Object value = column.get(incomingData);
+                if (blind || !Objects.equals(column.get(record), value)) {
+                    changedSet |= SqlTemplates.bit(column);
                     fieldValues.add(value);
+                    column.set(record, value);
                 }
             }
 
-            // Can't do an insert if we have no fields!
-            if (fieldNames.isEmpty()) {
-                return;
+            // Nothing is changing, so there's nothing to write
+            if (changedSet == 0) {
+                return record;
+            }
+
+            // Move the claims of any unique values that are changing before the record is written
+            if (claimUnique) {
+                this.uniqueKeys.reclaim(db, before, record);
+            }
+
+            // Get the update statement for this set of fields (built once, then reused) and bind the values to it
+            // The record is updated on its shard if the database is sharded
+            SqlTemplates templates = this.metadata.getSqlTemplates();
+            DBConnection target = db.forId(recordId);
+            PreparedStatement stmt = target.prepareStatement(blind ? templates.updateIfChanged(changedSet) : templates.update(changedSet));
+            for (int i = 0; i < fieldValues.size(); i++) {
+                stmt.setObject(i + 1, fieldValues.get(i));
             }
+            int index = fieldValues.size() + 1;
+            stmt.setObject(index++, recordId);
+            if (blind) {
+                if (expectedVersion != null) {
+                    stmt.setLong(index++, expectedVersion);
+                }
+                for (Object value : fieldValues) {
+                    stmt.setObject(index++, value);
+                }
+            }
+
+            // The cached copy of the record is out of date now (and again once the change is committed or rolled back,
+            // in case it was read back into the cache during the transaction)
+            invalidateCached(db, recordId);
 
-            // Dynamically build the update query
-            StringBuilder queryString = new StringBuilder(String.format("UPDATE %s SET", tableName));
-            for (int i = 0; i < fieldNames.size(); i++) {
-                String fieldName = fieldNames.get(i);
-                Object fieldValue = fieldValues.get(i);
+            // Execute the update statement (the count is of matching records, whether or not their values changed)
+            int matched = target.execute(stmt);
+            operation.rows(matched);
+            if (matched == 0) {
+                if (!blind) {
+                    return null;
+                }
 
-                queryString.append(String.format(" %s=", fieldName));
+                // Either the record is missing, it isn't at the expected version, or it already has these values
+                // (in which case nothing was written, and its version stays the same)
+                DBTable current = getForUpdate(db, recordId);
+                if (current == null) {
+                    if (expectedVersion != null) {
+                        throw new VersionConflictException(recordId, expectedVersion);
+                    }
+                    return null;
+                }
+                if (expectedVersion != null && !expectedVersion.equals(versionColumn.get(current))) {
+                    throw new VersionConflictException(recordId, expectedVersion);
+                }
+                return current;
+            }
 
-                // Looks a little nasty, but surround strings/uuids with single quotes. Otherwise, should be ok to just output the value
-                queryString.append(fieldValue.getClass().equals(String.class) || fieldValue.getClass().equals(UUID.class) ? String.format("'%s',", fieldValue.toString()) : String.format("%s,", fieldValue.toString()));
+            // The statement counted the version up
+            if (versionColumn != null) {
+                versionColumn.set(record, (Long) versionColumn.get(record) + 1);
             }
-            queryString.setLength(queryString.length() - 1); // trim trailing comma
-            queryString.append(String.format(" WHERE id='%s'", recordId.toString()));
-            PreparedStatement stmt = db.prepareStatement(queryString.toString());
 
-            // Execute the update statement
-            db.query(stmt);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            // Once the change has been committed, let anyone following the changes know
+            publishAfterCommit(db, ChangeEvent.Type.UPDATED, recordId, this.metadata.copy(record));
+            return record;
+        } catch (SQLException e) {
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
         }
     }
 
+    /**
+     * Read a record and lock it for the rest of the transaction (bypasses the cache)
+     * @param db A DBConnection instance
+     * @param id The UUID of the record to be found
+     * @return an instance of the class provided to the accessor, or null if there's no such record
+     * @throws SQLException
+     */
+    private DBTable getForUpdate(DBConnection db, UUID id) throws SQLException {
+        DBConnection target = db.forId(id);
+        PreparedStatement stmt = target.prepareStatement(String.format("SELECT * FROM %s WHERE id = ? FOR UPDATE", this.tableName));
+        stmt.setObject(1, id);
+
+        ResultSet dbResults = target.query(stmt);
+        RowMapper mapper = this.metadata.mapperFor(dbResults.getMetaData());
+        return dbResults.next() ? mapper.map(dbResults) : null;
+    }
+
     /**
      * Delete an existing record in the database
      * @param db A DBConnection instance
      * @param id the UUID of the record to be deleted
      */
     public void delete(DBConnection db, UUID id) {
+        delete(db, id, null);
+    }
+
+    /**
+     * Delete an existing record in the database, if it's still at the version the client last saw
+     * @param db A DBConnection instance
+     * @param id the UUID of the record to be deleted
+     * @param expectedVersion the version the record must be at (see RowVersion), or null to delete it whatever its version
+     * (ignored if the class isn't versioned)
+     * @throws VersionConflictException if the record isn't at the expected version (or doesn't exist)
+     */
+    public void delete(DBConnection db, UUID id, Long expectedVersion) {
+        ModelMetadata.Column versionColumn = this.metadata.getVersionColumn();
+        boolean checkVersion = expectedVersion != null && versionColumn != null;
+
+        AccessorMetrics.Operation operation = this.metrics.start("delete");
         try {
-            // Build the delete statement
-            PreparedStatement stmt = db.prepareStatement(String.format("DELETE FROM %s WHERE id = ?", this.tableName));
-            stmt.setObject(1, id);
+            // If unique values are being claimed across shards, read (and lock) the record first so we know which to release
+            DBTable record = null;
+            if (this.uniqueKeys.isActive()) {
+                record = getForUpdate(db, id);
+                if (record == null) {
+                    if (checkVersion) {
+                        throw new VersionConflictException(id, expectedVersion);
+                    }
+                    return;
+                }
+            }
+
+            // Build the delete statement (on the record's shard if the database is sharded)
+            DBConnection target = db.forId(id);
+            PreparedStatement stmt;
+            if (checkVersion) {
+                stmt = target.prepareStatement(String.format("DELETE FROM %s WHERE id = ? AND %s = ?", this.tableName, versionColumn.getName()));
+                stmt.setObject(1, id);
+                stmt.setLong(2, expectedVersion);
+            } else {
+                stmt = target.prepareStatement(String.format("DELETE FROM %s WHERE id = ?", this.tableName));
+                stmt.setObject(1, id);
+            }
+
+            // The cached copy of the record is out of date now (and again once the change is committed or rolled back,
+            // in case it was read back into the cache during the transaction)
+            invalidateCached(db, id);
 
             // Execute the delete statement
-            db.query(stmt);
+            int deleted = target.execute(stmt);
+            operation.rows(deleted);
+            if (deleted == 0 && checkVersion) {
+                throw new VersionConflictException(id, expectedVersion);
+            }
+            if (deleted > 0) {
+                if (record != null) {
+                    this.uniqueKeys.releaseAll(db, record);
+                }
+                publishAfterCommit(db, ChangeEvent.Type.DELETED, id, null);
+            }
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            throw operation.failed(e);
+        } finally {
+            operation.stop();
+        }
+    }
+
+    /**
+     * Run a query on the table, on every shard at once if the database is sharded
+     * @param db A DBConnection instance
+     * @param sql raw sql string of the query
+     * @param streaming true to stream the results rather than buffer them (see DBConnection.prepareStreamingStatement)
+     * @param binder sets the bind values of the statement
+     * @return the results (one per shard if the database is sharded)
+     * @throws SQLException
+     */
+    private List<ResultSet> queryTable(DBConnection db, String sql, boolean streaming, DBConnection.StatementBinder binder) throws SQLException {
+        if (DBConnection.isSharded()) {
+            return db.queryShards(sql, streaming, binder);
+        }
+
+        PreparedStatement stmt = streaming ? db.prepareStreamingStatement(sql) : db.prepareStatement(sql);
+        binder.bind(stmt);
+        return List.of(db.query(stmt));
+    }
+
+    /**
+     * Run a query that's ordered by id on the table (see queryTable), merging the results of the shards in id order
+     * @param db A DBConnection instance
+     * @param sql raw sql string of the query, which must select the id column and order by it
+     * @param streaming true to stream the results rather than buffer them
+     * @param binder sets the bind values of the statement
+     * @return the rows of the results
+     * @throws SQLException
+     */
+    private RowCursor queryById(DBConnection db, String sql, boolean streaming, DBConnection.StatementBinder binder) throws SQLException {
+        return RowCursor.merge(queryTable(db, sql, streaming, binder), dbResults -> dbResults.getObject("id", UUID.class), UuidOrder.COMPARATOR);
+    }
+
+    /**
+     * Bind the cursor and limit of a page query (each only if it's given)
+     * @param stmt the statement of the page query
+     * @param after only records after this id, or null to start from the beginning
+     * @param limit the number of records to ask for, or null for all of them
+     * @throws SQLException
+     */
+    private static void bindPage(PreparedStatement stmt, UUID after, Integer limit) throws SQLException {
+        int paramIndex = 1;
+        if (after != null) {
+            stmt.setObject(paramIndex++, after);
+        }
+        if (limit != null) {
+            stmt.setInt(paramIndex, limit);
+        }
+    }
+
+    /**
+     * @return bitmask of the columns clients can't change: the id, and the version if the class has one
+     */
+    private long fixedColumns() {
+        ModelMetadata.Column versionColumn = this.metadata.getVersionColumn();
+        return SqlTemplates.bit(this.metadata.getColumn("id")) | (versionColumn == null ? 0 : SqlTemplates.bit(versionColumn));
+    }
+
+    /**
+     * @param count number of ids being looked up (at most MAX_IDS_PER_QUERY)
+     * @return the number of ids to bind for the IN query
+     */
+    private static int idBucket(int count) {
+        for (int bucket : ID_BUCKETS) {
+            if (bucket >= count) {
+                return bucket;
+            }
         }
+        return MAX_IDS_PER_QUERY;
+    }
+
+    /**
+     * Publish a change to the change feed once the transaction of the given connection has been committed
+     * @param db the DBConnection the record is being changed with
+     * @param type what happened to the record
+     * @param id the UUID of the record
+     * @param record a copy of the record after the change, or null if it was deleted
+     */
+    private void publishAfterCommit(DBConnection db, ChangeEvent.Type type, UUID id, DBTable record) {
+        db.afterFinish(committed -> {
+            if (committed) {
+                this.changes.publish(type, id, record);
+            }
+        });
+    }
+
+    /**
+     * Drop a record from the cache (and stop sharing in-flight lookups of it) now,
+     * and again once the transaction of the given connection has finished
+     * @param db the DBConnection the record is being changed with
+     * @param id the UUID of the record being changed
+     */
+    private void invalidateCached(DBConnection db, UUID id) {
+        this.cache.invalidate(id);
+        this.coalescer.forget(id);
+        db.afterFinish(committed -> {
+            this.cache.invalidate(id);
+            this.coalescer.forget(id);
+        });
     }
 }
@@ -0,0 +1,351 @@
+package tech.simard.thinkon.accessors;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import tech.simard.thinkon.models.DBTable;
+import tech.simard.thinkon.models.Indexed;
+import tech.simard.thinkon.models.RowVersion;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything we need to know about a DBTable class to move data between it and the database.
+ * The reflection is done once per class, the results are cached in a registry keyed by class.
+ */
+public final class ModelMetadata {
+    private static final ConcurrentMap<Class<?>, ModelMetadata> REGISTRY = new ConcurrentHashMap<>();
+
+    private final Class<?> cls;
+    private final String tableName;
+    private final MethodHandle constructor;
+    private final List<Column> columns;
+    private final Map<String, Column> columnsByName;
+    private final Map<String, Column> columnsByJsonName;
+    private final Column versionColumn;
+    private final SqlTemplates sqlTemplates;
+
+    // Row mappers compiled for each result set shape (keyed by the column labels of the result set)
+    private final ConcurrentMap<String, RowMapper> mappers = new ConcurrentHashMap<>();
+
+    // JSON writers compiled for each result set shape (keyed the same way)
+    private final ConcurrentMap<String, JsonRowWriter> writers = new ConcurrentHashMap<>();
+
+    private ModelMetadata(Class<?> cls) throws ReflectiveOperationException {
+        this.cls = cls;
+
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(cls, MethodHandles.lookup());
+        this.constructor = lookup.findConstructor(cls, MethodType.methodType(void.class));
+
+        // Figure out the table name based on the field
+        this.tableName = cls.getDeclaredField("TABLE_NAME").get(cls.getDeclaredConstructor().newInstance()).toString();
+
+        // We're using JsonProperty to mean it's a DB field (the field name is the column name)
+        List<Column> columns = new ArrayList<>();
+        Map<String, Column> columnsByName = new HashMap<>();
+        Map<String, Column> columnsByJsonName = new HashMap<>();
+        Column versionColumn = null;
+        for (Field field : cls.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || !field.isAnnotationPresent(JsonProperty.class)) {
+                continue;
+            }
+
+            String jsonName = field.getAnnotation(JsonProperty.class).value();
+            Indexed indexed = field.getAnnotation(Indexed.class);
+            Column column = new Column(columns.size(), field.getName(), jsonName.isEmpty() ? field.getName() : jsonName,
+                    field.getType(), indexed != null, indexed != null && indexed.unique(), lookup.unreflectVarHandle(field));
+            columns.add(column);
+            columnsByName.put(column.name, column);
+            columnsByJsonName.put(column.jsonName, column);
+
+            // The version of a record is kept up to date by the accessor, so it must be a number we can count up
+            if (field.isAnnotationPresent(RowVersion.class)) {
+                if (field.getType() != Long.class || versionColumn != null) {
+                    throw new IllegalStateException(String.format("Model class %s must have at most one RowVersion field, of type Long", cls.getName()));
+                }
+                versionColumn = column;
+            }
+        }
+        this.columns = List.copyOf(columns);
+        this.columnsByName = Map.copyOf(columnsByName);
+        this.columnsByJsonName = Map.copyOf(columnsByJsonName);
+        this.versionColumn = versionColumn;
+        this.sqlTemplates = new SqlTemplates(this.tableName, this.columns, this.versionColumn);
+    }
+
+    /**
+     * Get the (cached) metadata of a DBTable class
+     * @param cls a DBTable subclass with a public no argument constructor
+     * @return the metadata of the class
+     */
+    public static ModelMetadata of(Class<?> cls) {
+        return REGISTRY.computeIfAbsent(cls, key -> {
+            try {
+                return new ModelMetadata(key);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(String.format("Unable to read model class %s", key.getName()), e);
+            }
+        });
+    }
+
+    /**
+     * @return the class described by this metadata
+     */
+    public Class<?> getModelClass() {
+        return this.cls;
+    }
+
+    /**
+     * @return the name of the DB table of the class
+     */
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    /**
+     * @return the cached insert/update statements of the class
+     */
+    public SqlTemplates getSqlTemplates() {
+        return this.sqlTemplates;
+    }
+
+    /**
+     * @return the DB columns of the class, in declaration order
+     */
+    public List<Column> getColumns() {
+        return this.columns;
+    }
+
+    /**
+     * @param name the name of the column
+     * @return the column, or null if the class has no such column
+     */
+    public Column getColumn(String name) {
+        return this.columnsByName.get(name);
+    }
+
+    /**
+     * @param jsonName the name used for the column in JSON
+     * @return the column, or null if the class has no such column
+     */
+    public Column getColumnByJsonName(String jsonName) {
+        return this.columnsByJsonName.get(jsonName);
+    }
+
+    /**
+     * @return the column holding the version of a record (see RowVersion), or null if the class isn't versioned
+     */
+    public Column getVersionColumn() {
+        return this.versionColumn;
+    }
+
+    /**
+     * @return bitmask of every column of the class (see SqlTemplates)
+     */
+    public long getColumnSet() {
+        return this.columns.size() == Long.SIZE ? -1L : (1L << this.columns.size()) - 1;
+    }
+
+    /**
+     * Get the bitmask of a set of columns, by the names they use in JSON
+     * @param jsonNames the JSON names of the columns
+     * @return bitmask of the columns (see SqlTemplates)
+     * @throws IllegalArgumentException if the class has no column with one of the names
+     */
+    public long getColumnSet(Collection<String> jsonNames) {
+        long columnSet = 0;
+        for (String jsonName : jsonNames) {
+            Column column = this.columnsByJsonName.get(jsonName);
+            if (column == null) {
+                throw new IllegalArgumentException(String.format("Unknown field %s", jsonName));
+            }
+            columnSet |= SqlTemplates.bit(column);
+        }
+        return columnSet;
+    }
+
+    /**
+     * @param instance an instance of the class
+     * @return the value of the instance's id column
+     */
+    public UUID getId(Object instance) {
+        return (UUID) this.columnsByName.get("id").get(instance);
+    }
+
+    /**
+     * Create an empty instance of the class
+     * @return the new instance
+     */
+    public DBTable newInstance() {
+        try {
+            return (DBTable) this.constructor.invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Unable to create an instance of %s", this.cls.getName()), e);
+        }
+    }
+
+    /**
+     * Create a copy of an instance of the class (only the DB fields are copied)
+     * @param instance the instance to copy
+     * @return the new instance
+     */
+    public DBTable copy(DBTable instance) {
+        DBTable copy = newInstance();
+        for (Column column : this.columns) {
+            column.set(copy, column.get(instance));
+        }
+        return copy;
+    }
+
+    /**
+     * Get the row mapper for a result set, compiling it the first time a result set of this shape is seen
+     * @param meta metadata of the result set the mapper will read
+     * @return a mapper that turns rows of the result set into instances of the class
+     * @throws SQLException
+     */
+    public RowMapper mapperFor(ResultSetMetaData meta) throws SQLException {
+        String[] labels = columnLabels(meta);
+        return this.mappers.computeIfAbsent(String.join(",", labels), key -> new RowMapper(this, labels));
+    }
+
+    /**
+     * Get the JSON writer for a result set, compiling it the first time a result set of this shape is seen
+     * @param meta metadata of the result set the writer will read
+     * @return a writer that turns rows of the result set into JSON objects
+     * @throws SQLException
+     */
+    public JsonRowWriter writerFor(ResultSetMetaData meta) throws SQLException {
+        String[] labels = columnLabels(meta);
+        return this.writers.computeIfAbsent(String.join(",", labels), key -> new JsonRowWriter(this, labels));
+    }
+
+    private static String[] columnLabels(ResultSetMetaData meta) throws SQLException {
+        int columnCount = meta.getColumnCount();
+        String[] labels = new String[columnCount];
+        for (int i = 1; i <= columnCount; i++) {
+            labels[i - 1] = meta.getColumnLabel(i);
+        }
+        return labels;
+    }
+
+    /**
+     * A single DB column (field) of a DBTable class
+     */
+    public static final class Column {
+        private final int index;
+        private final String name;
+        private final String jsonName;
+        private final Class<?> type;
+        private final boolean indexed;
+        private final boolean unique;
+        private final VarHandle handle;
+        private final Reader reader;
+
+        private Column(int index, String name, String jsonName, Class<?> type, boolean indexed, boolean unique, VarHandle handle) {
+            this.index = index;
+            this.name = name;
+            this.jsonName = jsonName;
+            this.type = type;
+            this.indexed = indexed;
+            this.unique = unique;
+            this.handle = handle;
+            this.reader = readerFor(type);
+        }
+
+        /**
+         * @return position of the column within the class's columns
+         */
+        public int getIndex() {
+            return this.index;
+        }
+
+        /**
+         * @return the name of the column (and field)
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the name used for the column in JSON
+         */
+        public String getJsonName() {
+            return this.jsonName;
+        }
+
+        /**
+         * @return the java type of the field
+         */
+        public Class<?> getType() {
+            return this.type;
+        }
+
+        /**
+         * @return whether the column has an index in the database (see Indexed), so it can be filtered on
+         */
+        public boolean isIndexed() {
+            return this.indexed;
+        }
+
+        /**
+         * @return whether no two records can have the same value in the column (see Indexed)
+         */
+        public boolean isUnique() {
+            return this.unique;
+        }
+
+        /**
+         * @param instance an instance of the class
+         * @return the value of the field on the instance
+         */
+        public Object get(Object instance) {
+            return this.handle.get(instance);
+        }
+
+        /**
+         * @param instance an instance of the class
+         * @param value the new value of the field
+         */
+        public void set(Object instance, Object value) {
+            this.handle.set(instance, value);
+        }
+
+        /**
+         * Read the value of this column from the current row of a result set using the getter matching the field type
+         * @param dbResults the result set, positioned on a row
+         * @param columnIndex index of the column within the result set
+         * @return the value of the column
+         * @throws SQLException
+         */
+        public Object read(ResultSet dbResults, int columnIndex) throws SQLException {
+            return this.reader.read(dbResults, columnIndex);
+        }
+
+        private static Reader readerFor(Class<?> type) {
+            if (type == String.class) {
+                return ResultSet::getString;
+            }
+            if (type == UUID.class) {
+                return (rs, i) -> rs.getObject(i, UUID.class);
+            }
+            if (type == Long.class || type == Integer.class || type == Boolean.class || type == Double.class) {
+                return (rs, i) -> rs.getObject(i, type);
+            }
+            return ResultSet::getObject;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Reader {
+        Object read(ResultSet dbResults, int columnIndex) throws SQLException;
+    }
+}
@@ -0,0 +1,190 @@
+package tech.simard.thinkon.accessors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds every DBTable class when the application starts, reads its metadata once and checks it against the database
+ * (every column of the class must exist in its table, and indexed fields must have an index).
+ * Startup fails if a class and its table don't match.
+ * <p>
+ * Each model class gets a single accessor: the accessor bean declared for it (e.g. UserAccessor),
+ * or a plain ModelAccessor if it doesn't have one.
+ * If the database is sharded, every shard is checked.
+ * The schema check can be turned off with DB_VALIDATE_SCHEMA=false (e.g. when there's no database to check against).
+ */
+@Component
+public class ModelRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(ModelRegistry.class);
+
+    // Where the DBTable classes live
+    private static final String MODELS_PACKAGE = DBTable.class.getPackageName();
+
+    private final Map<Class<?>, ModelAccessor> accessors = new HashMap<>();
+
+    public ModelRegistry(List<ModelAccessor> accessorBeans, @Value("${DB_VALIDATE_SCHEMA:true}") boolean validateSchema) throws SQLException {
+        for (ModelAccessor accessor : accessorBeans) {
+            this.accessors.put(accessor.getModelClass(), accessor);
+        }
+
+        // Read the metadata of every model (this fails if a class can't be mapped)
+        List<ModelMetadata> models = new ArrayList<>();
+        for (Class<?> cls : findModelClasses()) {
+            ModelMetadata metadata = ModelMetadata.of(cls);
+            if (metadata.getColumn("id") == null) {
+                throw new IllegalStateException(String.format("Model class %s has no id column", cls.getName()));
+            }
+            models.add(metadata);
+            this.accessors.computeIfAbsent(cls, ModelAccessor::new);
+        }
+
+        if (validateSchema) {
+            validate(models);
+        }
+        LOG.info("Registered {} model(s): {}", models.size(), models.stream().map(ModelMetadata::getTableName).toList());
+    }
+
+    /**
+     * @param cls a model class
+     * @return the accessor of the class
+     */
+    public ModelAccessor accessorFor(Class<?> cls) {
+        ModelAccessor accessor = this.accessors.get(cls);
+        if (accessor == null) {
+            throw new IllegalArgumentException(String.format("%s isn't a registered model class", cls.getName()));
+        }
+        return accessor;
+    }
+
+    /**
+     * @return the accessor of every model class
+     */
+    public Collection<ModelAccessor> getAccessors() {
+        return Collections.unmodifiableCollection(this.accessors.values());
+    }
+
+    /**
+     * Find every DBTable subclass in the models package
+     * @return the model classes
+     */
+    private static List<Class<?>> findModelClasses() {
+        ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+        scanner.addIncludeFilter(new AssignableTypeFilter(DBTable.class));
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (BeanDefinition definition : scanner.findCandidateComponents(MODELS_PACKAGE)) {
+            Class<?> cls = ClassUtils.resolveClassName(definition.getBeanClassName(), ModelRegistry.class.getClassLoader());
+            if (cls != DBTable.class) {
+                classes.add(cls);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Check that the table of each model exists and has every column of the class (on every shard if the database is sharded)
+     * @param models metadata of the model classes
+     * @throws SQLException
+     */
+    private static void validate(List<ModelMetadata> models) throws SQLException {
+        // Borrow a connection to the DB (it's rolled back and returned to the pool when we're done)
+        try (DBConnection db = new DBConnection()) {
+            if (!DBConnection.isSharded()) {
+                for (ModelMetadata metadata : models) {
+                    validate(db, metadata, "the database");
+                }
+                return;
+            }
+
+            for (int shard = 0; shard < DBConnection.getShardCount(); shard++) {
+                for (ModelMetadata metadata : models) {
+                    validate(db.forShard(shard), metadata, String.format("shard %d", shard));
+                }
+            }
+
+            // Unique fields are claimed on the primary (see UniqueKeys)
+            if (models.stream().anyMatch(metadata -> metadata.getColumns().stream().anyMatch(ModelMetadata.Column::isUnique))) {
+                try {
+                    db.query(db.prepareStatement("SELECT table_name, column_name, value, id FROM unique_key WHERE 1 = 0"));
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Table unique_key can't be read on the primary, it's needed for unique fields when the database is sharded", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that the table of a model exists and has every column of the class
+     * @param db A DBConnection instance
+     * @param metadata metadata of the model class
+     * @param where the database being checked, for error messages
+     * @throws SQLException
+     */
+    private static void validate(DBConnection db, ModelMetadata metadata, String where) throws SQLException {
+        // Select nothing, we only want the shape of the table
+        ResultSet dbResults;
+        try {
+            dbResults = db.query(db.prepareStatement(String.format("SELECT * FROM %s WHERE 1 = 0", metadata.getTableName())));
+        } catch (SQLException e) {
+            throw new IllegalStateException(String.format("Table %s of model %s can't be read on %s",
+                    metadata.getTableName(), metadata.getModelClass().getName(), where), e);
+        }
+
+        ResultSetMetaData meta = dbResults.getMetaData();
+        Set<String> tableColumns = new HashSet<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            tableColumns.add(meta.getColumnLabel(i));
+        }
+
+        // Every field must have a column, extra columns are allowed but worth knowing about
+        List<String> missing = new ArrayList<>();
+        for (ModelMetadata.Column column : metadata.getColumns()) {
+            if (!tableColumns.remove(column.getName())) {
+                missing.add(column.getName());
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException(String.format("Table %s on %s is missing column(s) %s of model %s",
+                    metadata.getTableName(), where, missing, metadata.getModelClass().getName()));
+        }
+        if (!tableColumns.isEmpty()) {
+            LOG.warn("Table {} on {} has column(s) {} that model {} doesn't map", metadata.getTableName(), where,
+                    tableColumns, metadata.getModelClass().getName());
+        }
+
+        // Fields marked as indexed must lead an index, otherwise filtering on them would scan the table
+        Set<String> indexedColumns = new HashSet<>();
+        ResultSet indexes = db.query(db.prepareStatement(String.format("SHOW INDEX FROM %s", metadata.getTableName())));
+        while (indexes.next()) {
+            if (indexes.getInt("Seq_in_index") == 1) {
+                indexedColumns.add(indexes.getString("Column_name"));
+            }
+        }
+        for (ModelMetadata.Column column : metadata.getColumns()) {
+            if (column.isIndexed() && !indexedColumns.contains(column.getName())) {
+                throw new IllegalStateException(String.format("Column %s of table %s on %s is marked as indexed but has no index",
+                        column.getName(), metadata.getTableName(), where));
+            }
+        }
+    }
+}
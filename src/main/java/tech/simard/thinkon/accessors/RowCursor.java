@@ -0,0 +1,126 @@
+package tech.simard.thinkon.accessors;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Goes through the rows of one result set, or of several result sets with the same shape merged into one ordered stream
+ * (e.g. the same query ran on every shard, each ordered the same way). Rows are read straight from the result sets.
+ */
+abstract class RowCursor {
+    /**
+     * Move to the next row
+     * @return false if there are no more rows
+     * @throws SQLException
+     */
+    abstract boolean next() throws SQLException;
+
+    /**
+     * @return the result set positioned on the current row
+     */
+    abstract ResultSet current();
+
+    /**
+     * @return metadata of the rows (the same for every result set)
+     * @throws SQLException
+     */
+    abstract ResultSetMetaData getMetaData() throws SQLException;
+
+    /**
+     * Merge result sets that are each ordered by the same key
+     * @param results the result sets
+     * @param keys reads the key of the current row of a result set
+     * @param order the order of the keys
+     * @return a cursor over the rows of every result set, in key order
+     */
+    static <K> RowCursor merge(List<ResultSet> results, KeyReader<K> keys, Comparator<? super K> order) {
+        return results.size() == 1 ? new Single(results.get(0)) : new Merged<>(results, keys, order);
+    }
+
+    /**
+     * Reads the key rows are ordered by
+     */
+    @FunctionalInterface
+    interface KeyReader<K> {
+        K read(ResultSet dbResults) throws SQLException;
+    }
+
+    private static final class Single extends RowCursor {
+        private final ResultSet dbResults;
+
+        private Single(ResultSet dbResults) {
+            this.dbResults = dbResults;
+        }
+
+        @Override
+        boolean next() throws SQLException {
+            return this.dbResults.next();
+        }
+
+        @Override
+        ResultSet current() {
+            return this.dbResults;
+        }
+
+        @Override
+        ResultSetMetaData getMetaData() throws SQLException {
+            return this.dbResults.getMetaData();
+        }
+    }
+
+    private static final class Merged<K> extends RowCursor {
+        private final List<ResultSet> results;
+        private final KeyReader<K> keys;
+
+        // The result sets that have rows left, by the key of their current row
+        private final PriorityQueue<Head<K>> heads;
+        private Head<K> current;
+        private boolean started;
+
+        private Merged(List<ResultSet> results, KeyReader<K> keys, Comparator<? super K> order) {
+            this.results = results;
+            this.keys = keys;
+            this.heads = new PriorityQueue<>(Math.max(1, results.size()), (a, b) -> order.compare(a.key, b.key));
+        }
+
+        @Override
+        boolean next() throws SQLException {
+            if (!this.started) {
+                // Start every result set on its first row
+                this.started = true;
+                for (ResultSet dbResults : this.results) {
+                    advance(dbResults);
+                }
+            } else if (this.current != null) {
+                // Move the result set we just read from on to its next row
+                advance(this.current.dbResults);
+            }
+
+            this.current = this.heads.poll();
+            return this.current != null;
+        }
+
+        @Override
+        ResultSet current() {
+            return this.current.dbResults;
+        }
+
+        @Override
+        ResultSetMetaData getMetaData() throws SQLException {
+            return this.results.get(0).getMetaData();
+        }
+
+        private void advance(ResultSet dbResults) throws SQLException {
+            if (dbResults.next()) {
+                this.heads.add(new Head<>(dbResults, this.keys.read(dbResults)));
+            }
+        }
+    }
+
+    private record Head<K>(ResultSet dbResults, K key) {
+    }
+}
@@ -0,0 +1,59 @@
+package tech.simard.thinkon.accessors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.simard.thinkon.models.DBTable;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns rows of a result set into instances of a DBTable class.
+ * A mapper is compiled once for a given result set shape: each result set column index is bound to its field up front,
+ * so mapping a row is just a typed getter and a field write per column.
+ */
+public final class RowMapper {
+    private static final Logger LOG = LoggerFactory.getLogger(RowMapper.class);
+
+    private final ModelMetadata metadata;
+    private final int[] resultIndexes;
+    private final ModelMetadata.Column[] columns;
+
+    RowMapper(ModelMetadata metadata, String[] columnLabels) {
+        this.metadata = metadata;
+
+        List<Integer> resultIndexes = new ArrayList<>();
+        List<ModelMetadata.Column> columns = new ArrayList<>();
+        for (int i = 0; i < columnLabels.length; i++) {
+            ModelMetadata.Column column = metadata.getColumn(columnLabels[i]);
+
+            // If the column names don't match the object field names, skip the column rather than failing every row
+            if (column == null) {
+                LOG.warn("Column {} has no matching field on {}, it will be ignored", columnLabels[i], metadata.getModelClass().getName());
+                continue;
+            }
+
+            resultIndexes.add(i + 1);
+            columns.add(column);
+        }
+
+        this.resultIndexes = resultIndexes.stream().mapToInt(Integer::intValue).toArray();
+        this.columns = columns.toArray(new ModelMetadata.Column[0]);
+    }
+
+    /**
+     * Create an instance of the class and populate its fields using the current row of the result set
+     * @param dbResults the result set, positioned on a row
+     * @return an instance of the class with the row's values
+     * @throws SQLException
+     */
+    public DBTable map(ResultSet dbResults) throws SQLException {
+        DBTable returnObject = this.metadata.newInstance();
+        for (int i = 0; i < this.columns.length; i++) {
+            this.columns[i].set(returnObject, this.columns[i].read(dbResults, this.resultIndexes[i]));
+        }
+        return returnObject;
+    }
+}
@@ -0,0 +1,156 @@
+package tech.simard.thinkon.accessors;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parameterised insert/update statements for a model class, built once per set of columns and reused afterwards.
+ * A set of columns is described by a bitmask of column indexes (bit n set means ModelMetadata column n is included).
+ * Reusing the exact same SQL text lets the driver and server reuse their prepared statements instead of parsing each one.
+ */
+public final class SqlTemplates {
+    private final String tableName;
+    private final List<ModelMetadata.Column> columns;
+    private final ModelMetadata.Column versionColumn;
+
+    private final ConcurrentMap<Long, String> inserts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, String> updates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, String> changingUpdates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, String> selectLists = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> selectByIds = new ConcurrentHashMap<>();
+
+    SqlTemplates(String tableName, List<ModelMetadata.Column> columns, ModelMetadata.Column versionColumn) {
+        if (columns.size() > Long.SIZE) {
+            throw new IllegalArgumentException(String.format("Table %s has more than %d columns", tableName, Long.SIZE));
+        }
+
+        this.tableName = tableName;
+        this.columns = columns;
+        this.versionColumn = versionColumn;
+    }
+
+    /**
+     * Get the bitmask bit of a column
+     * @param column the column
+     * @return the bit representing the column in a column set
+     */
+    public static long bit(ModelMetadata.Column column) {
+        return 1L << column.getIndex();
+    }
+
+    /**
+     * Get the insert statement for a set of columns, e.g. INSERT INTO user (username,email) VALUES (?,?) RETURNING *
+     * The values are bound in column order.
+     * @param columnSet bitmask of the columns being inserted
+     * @return the insert statement
+     */
+    public String insert(long columnSet) {
+        return this.inserts.computeIfAbsent(columnSet, key -> {
+            StringBuilder queryString = new StringBuilder(String.format("INSERT INTO %s (", this.tableName));
+            StringBuilder valuesString = new StringBuilder(") VALUES (");
+            for (ModelMetadata.Column column : this.columns) {
+                if ((key & bit(column)) != 0) {
+                    queryString.append(String.format("%s,", column.getName()));
+                    valuesString.append("?,");
+                }
+            }
+            queryString.setLength(queryString.length() - 1); // trim trailing comma
+            valuesString.setLength(valuesString.length() - 1); // trim trailing comma
+            return queryString.append(valuesString).append(") RETURNING *").toString();
+        });
+    }
+
+    /**
+     * Get the update statement for a set of columns, e.g. UPDATE user SET username=?,email=? WHERE id=?
+     * The values are bound in column order, followed by the id of the record.
+     * If the class is versioned (see RowVersion), the statement also counts the version up, e.g. ... version=version+1 WHERE id=?
+     * @param columnSet bitmask of the columns being updated
+     * @return the update statement
+     */
+    public String update(long columnSet) {
+        return this.updates.computeIfAbsent(columnSet, key -> updateString(key).toString());
+    }
+
+    /**
+     * Get the update statement for a set of columns that only updates the record if one of the values is different,
+     * e.g. UPDATE user SET username=?,version=version+1 WHERE id=? AND version=? AND NOT (BINARY username<=>BINARY ?)
+     * (the version is only checked if the class is versioned). Records that already have every value aren't matched,
+     * so their version doesn't go up. Values are compared as bytes, so a change that the collation would consider
+     * equal (e.g. only in case) is still written.
+     * The values are bound in column order, followed by the id (and the expected version), then the values again.
+     * @param columnSet bitmask of the columns being updated
+     * @return the update statement
+     */
+    public String updateIfChanged(long columnSet) {
+        return this.changingUpdates.computeIfAbsent(columnSet, key -> {
+            StringBuilder queryString = updateString(key);
+            if (this.versionColumn != null) {
+                queryString.append(String.format(" AND %s=?", this.versionColumn.getName()));
+            }
+            queryString.append(" AND NOT (");
+            for (ModelMetadata.Column column : this.columns) {
+                if ((key & bit(column)) != 0) {
+                    queryString.append(String.format("BINARY %s<=>BINARY ? AND ", column.getName()));
+                }
+            }
+            queryString.setLength(queryString.length() - 5); // trim trailing AND
+            return queryString.append(")").toString();
+        });
+    }
+
+    /**
+     * Get the select list for a set of columns, e.g. id,username,email (or * if every column is included)
+     * @param columnSet bitmask of the columns being selected
+     * @return the select list
+     */
+    public String selectList(long columnSet) {
+        return this.selectLists.computeIfAbsent(columnSet, key -> {
+            StringBuilder selectString = new StringBuilder();
+            for (ModelMetadata.Column column : this.columns) {
+                if ((key & bit(column)) != 0) {
+                    selectString.append(String.format("%s,", column.getName()));
+                }
+            }
+            if (selectString.length() == 0 || key == allColumns()) {
+                return "*";
+            }
+            selectString.setLength(selectString.length() - 1); // trim trailing comma
+            return selectString.toString();
+        });
+    }
+
+    /**
+     * Get the select statement for a number of ids, e.g. SELECT * FROM user WHERE id IN (?,?,?)
+     * @param idCount the number of ids being bound
+     * @return the select statement
+     */
+    public String selectByIds(int idCount) {
+        return this.selectByIds.computeIfAbsent(idCount, key -> {
+            StringBuilder queryString = new StringBuilder(String.format("SELECT * FROM %s WHERE id IN (", this.tableName));
+            for (int i = 0; i < key; i++) {
+                queryString.append("?,");
+            }
+            queryString.setLength(queryString.length() - 1); // trim trailing comma
+            return queryString.append(")").toString();
+        });
+    }
+
+    private StringBuilder updateString(long columnSet) {
+        StringBuilder queryString = new StringBuilder(String.format("UPDATE %s SET", this.tableName));
+        for (ModelMetadata.Column column : this.columns) {
+            if ((columnSet & bit(column)) != 0) {
+                queryString.append(String.format(" %s=?,", column.getName()));
+            }
+        }
+        if (this.versionColumn != null) {
+            queryString.append(String.format(" %1$s=%1$s+1,", this.versionColumn.getName()));
+        }
+        queryString.setLength(queryString.length() - 1); // trim trailing comma
+        return queryString.append(" WHERE id=?");
+    }
+
+    private long allColumns() {
+        return this.columns.size() == Long.SIZE ? -1L : (1L << this.columns.size()) - 1;
+    }
+}
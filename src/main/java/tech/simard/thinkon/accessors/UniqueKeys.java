@@ -0,0 +1,165 @@
+package tech.simard.thinkon.accessors;
+
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Keeps the values of unique fields (see Indexed) unique across shards. A unique key on a shard only covers the records
+ * on that shard, so each value is also claimed in the unique_key table of the primary before a record with it is written.
+ * <p>
+ * Claims are made on the primary connection and the record is written on its shard connection. Shards are committed
+ * before the primary (see DBConnection.finish), so a claim that's still in flight holds its row lock on the primary
+ * until the record is committed, and a second claim of the same value waits for it. A claim left behind by a record
+ * that never made it (or has since changed) is taken over by the next record that claims the value.
+ */
+final class UniqueKeys {
+    private final ModelMetadata metadata;
+    private final List<ModelMetadata.Column> columns;
+
+    UniqueKeys(ModelMetadata metadata) {
+        this.metadata = metadata;
+        this.columns = metadata.getColumns().stream().filter(ModelMetadata.Column::isUnique).toList();
+    }
+
+    /**
+     * @return whether values have to be claimed (the database is sharded and the class has unique fields)
+     */
+    boolean isActive() {
+        return DBConnection.isSharded() && !this.columns.isEmpty();
+    }
+
+    /**
+     * Claim the values of every unique field of a new record
+     * @param db the primary connection the record is being created with
+     * @param record the new record (with its id)
+     * @throws SQLException with a unique key violation if another record already has one of the values
+     */
+    void claimAll(DBConnection db, DBTable record) throws SQLException {
+        UUID id = this.metadata.getId(record);
+        for (ModelMetadata.Column column : this.columns) {
+            Object value = column.get(record);
+            if (value != null) {
+                claim(db, column, value, id);
+            }
+        }
+    }
+
+    /**
+     * Move the claims of the unique fields of a record that are changing
+     * @param db the primary connection the record is being changed with
+     * @param before the record before the change
+     * @param after the record after the change
+     * @throws SQLException with a unique key violation if another record already has one of the new values
+     */
+    void reclaim(DBConnection db, DBTable before, DBTable after) throws SQLException {
+        UUID id = this.metadata.getId(before);
+        for (ModelMetadata.Column column : this.columns) {
+            Object oldValue = column.get(before);
+            Object newValue = column.get(after);
+            if (Objects.equals(oldValue, newValue)) {
+                continue;
+            }
+            if (newValue != null) {
+                claim(db, column, newValue, id);
+            }
+            if (oldValue != null) {
+                release(db, column, oldValue, id);
+            }
+        }
+    }
+
+    /**
+     * Release the claims of a record that's being deleted
+     * @param db the primary connection the record is being deleted with
+     * @param record the record
+     * @throws SQLException
+     */
+    void releaseAll(DBConnection db, DBTable record) throws SQLException {
+        UUID id = this.metadata.getId(record);
+        for (ModelMetadata.Column column : this.columns) {
+            Object value = column.get(record);
+            if (value != null) {
+                release(db, column, value, id);
+            }
+        }
+    }
+
+    private void claim(DBConnection db, ModelMetadata.Column column, Object value, UUID id) throws SQLException {
+        PreparedStatement stmt = db.prepareStatement("INSERT INTO unique_key (table_name, column_name, value, id) VALUES (?, ?, ?, ?)");
+        stmt.setString(1, this.metadata.getTableName());
+        stmt.setString(2, column.getName());
+        stmt.setString(3, value.toString());
+        stmt.setObject(4, id);
+        try {
+            db.execute(stmt);
+            return;
+        } catch (SQLIntegrityConstraintViolationException e) {
+            // Someone has the value already, see whether they still need it
+            UUID holder = holderOf(db, column, value);
+            if (holder == null) {
+                // Released while we were looking, try again
+                claim(db, column, value, id);
+                return;
+            }
+            if (holder.equals(id)) {
+                return;
+            }
+            if (stillHolds(db, column, value, holder)) {
+                throw e;
+            }
+
+            // The claim was left behind, take it over
+            PreparedStatement takeOver = db.prepareStatement(
+                    "UPDATE unique_key SET id = ? WHERE table_name = ? AND column_name = ? AND value = ? AND id = ?");
+            takeOver.setObject(1, id);
+            takeOver.setString(2, this.metadata.getTableName());
+            takeOver.setString(3, column.getName());
+            takeOver.setString(4, value.toString());
+            takeOver.setObject(5, holder);
+            if (db.execute(takeOver) == 0) {
+                throw e;
+            }
+        }
+    }
+
+    private void release(DBConnection db, ModelMetadata.Column column, Object value, UUID id) throws SQLException {
+        PreparedStatement stmt = db.prepareStatement("DELETE FROM unique_key WHERE table_name = ? AND column_name = ? AND value = ? AND id = ?");
+        stmt.setString(1, this.metadata.getTableName());
+        stmt.setString(2, column.getName());
+        stmt.setString(3, value.toString());
+        stmt.setObject(4, id);
+        db.execute(stmt);
+    }
+
+    /**
+     * @return the id of the record holding a value (locking the claim), or null if nobody does
+     */
+    private UUID holderOf(DBConnection db, ModelMetadata.Column column, Object value) throws SQLException {
+        PreparedStatement stmt = db.prepareStatement("SELECT id FROM unique_key WHERE table_name = ? AND column_name = ? AND value = ? FOR UPDATE");
+        stmt.setString(1, this.metadata.getTableName());
+        stmt.setString(2, column.getName());
+        stmt.setString(3, value.toString());
+        ResultSet dbResults = db.query(stmt);
+        return dbResults.next() ? dbResults.getObject(1, UUID.class) : null;
+    }
+
+    /**
+     * @return whether the record holding a value still exists and has the value (compared by the shard, so with its collation)
+     */
+    private boolean stillHolds(DBConnection db, ModelMetadata.Column column, Object value, UUID holder) throws SQLException {
+        DBConnection shard = db.forId(holder);
+        PreparedStatement stmt = shard.prepareStatement(String.format("SELECT 1 FROM %s WHERE id = ? AND %s = ?",
+                this.metadata.getTableName(), column.getName()));
+        stmt.setObject(1, holder);
+        stmt.setObject(2, value);
+        return shard.query(stmt).next();
+    }
+}
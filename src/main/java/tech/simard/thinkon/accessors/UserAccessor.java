@@ -1,11 +1,11 @@
 package tech.simard.thinkon.accessors;
 
+import org.springframework.stereotype.Component;
 import tech.simard.thinkon.models.User;
 
-import java.lang.reflect.InvocationTargetException;
-
+@Component
 public class UserAccessor extends ModelAccessor {
-    public UserAccessor() throws NoSuchFieldException, InvocationTargetException, NoSuchMethodException, InstantiationException, IllegalAccessException {
+    public UserAccessor() {
         super(User.class);
     }
 
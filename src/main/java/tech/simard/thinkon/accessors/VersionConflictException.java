@@ -0,0 +1,32 @@
+package tech.simard.thinkon.accessors;
+
+import java.util.UUID;
+
+/**
+ * Thrown when a record is changed with an expected version (see RowVersion) and the record isn't at that version anymore
+ * (or doesn't exist). Nothing has been written when this is thrown.
+ */
+public class VersionConflictException extends RuntimeException {
+    private final UUID id;
+    private final long expectedVersion;
+
+    public VersionConflictException(UUID id, long expectedVersion) {
+        super(String.format("Record %s isn't at version %d", id, expectedVersion));
+        this.id = id;
+        this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * @return the id of the record
+     */
+    public UUID getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the version the record was expected to be at
+     */
+    public long getExpectedVersion() {
+        return this.expectedVersion;
+    }
+}
@@ -0,0 +1,260 @@
+package tech.simard.thinkon.accessors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Creates records in the background, so callers don't wait on the database (write-behind).
+ * Records are accepted into a bounded queue and given a tracking id. A single writer thread takes them off the queue
+ * in groups and inserts each group with createBatch and one commit. A group is written once it's full or has waited
+ * long enough, whichever comes first. The writer borrows one connection at a time straight from the pool (request
+ * work leaves one for it, see DBExecutor).
+ * <p>
+ * Statuses are kept for a while after the record is written so the caller can check on it, up to a set number of
+ * them (the oldest go first). Closing the queue stops it accepting records and waits for the ones already accepted to
+ * be written. Records that are still queued once the writer has stopped are marked as failed, never left queued.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private final ModelAccessor accessor;
+    private final int batchSize;
+    private final long flushNanos;
+    private final long statusTtlNanos;
+    private final int maxStatuses;
+    private final long drainTimeoutMillis;
+
+    private final BlockingQueue<Pending> queue;
+    private final ConcurrentMap<UUID, TrackedStatus> statuses = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Submitting holds the read lock and closing takes the write lock, so nothing is queued once the queue is closed
+    // (the writer only stops once it's closed and empty, anything queued after that would never be written)
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    // Tracking ids of finished records, oldest first (only used by the writer thread, and by close once the writer has stopped)
+    private final ArrayDeque<UUID> finished = new ArrayDeque<>();
+
+    /**
+     * Create the queue and start its writer thread
+     * @param accessor the accessor records are created with
+     * @param capacity the most records that can be waiting to be written
+     * @param batchSize the most records written (and committed) together
+     * @param flushMillis the longest a record waits for others to be written with
+     * @param statusTtlMillis how long the status of a written record is kept
+     * @param maxStatuses the most statuses of written records kept (on top of those of queued records)
+     * @param drainTimeoutMillis how long closing waits for queued records to be written
+     */
+    public WriteBehindQueue(ModelAccessor accessor, int capacity, int batchSize, long flushMillis, long statusTtlMillis,
+                            int maxStatuses, long drainTimeoutMillis) {
+        this.accessor = accessor;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.statusTtlNanos = TimeUnit.MILLISECONDS.toNanos(statusTtlMillis);
+        this.maxStatuses = Math.max(0, maxStatuses);
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+
+        this.writer = new Thread(this::run, String.format("thinkon-write-behind-%s", accessor.getModelClass().getSimpleName().toLowerCase()));
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a record to be created
+     * @param record the record to create
+     * @return the tracking id of the record, or null if the queue is full (or closed)
+     */
+    public UUID submit(DBTable record) {
+        this.closeLock.readLock().lock();
+        try {
+            if (this.closed) {
+                return null;
+            }
+
+            UUID trackingId = UUID.randomUUID();
+            this.statuses.put(trackingId, new TrackedStatus(WriteStatus.QUEUED, 0));
+            if (!this.queue.offer(new Pending(trackingId, record))) {
+                this.statuses.remove(trackingId);
+                return null;
+            }
+            return trackingId;
+        } finally {
+            this.closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param trackingId the tracking id returned by submit
+     * @return the status of the record, or null if the tracking id is unknown (or its status has expired)
+     */
+    public WriteStatus getStatus(UUID trackingId) {
+        TrackedStatus tracked = this.statuses.get(trackingId);
+        return tracked == null ? null : tracked.status;
+    }
+
+    /**
+     * @return the number of records waiting to be written
+     */
+    public int size() {
+        return this.queue.size();
+    }
+
+    /**
+     * Stop accepting records and wait for the queued ones to be written
+     */
+    @Override
+    public void close() {
+        this.closeLock.writeLock().lock();
+        try {
+            this.closed = true;
+        } finally {
+            this.closeLock.writeLock().unlock();
+        }
+
+        try {
+            this.writer.join(this.drainTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.writer.isAlive()) {
+            LOG.warn("Gave up waiting for {} queued record(s) to be written", this.queue.size());
+            return;
+        }
+
+        // The writer only stops once the queue is empty, unless it died, anything left won't be written now
+        List<Pending> left = new ArrayList<>();
+        this.queue.drainTo(left);
+        if (!left.isEmpty()) {
+            LOG.error("{} queued record(s) weren't written before the queue closed", left.size());
+            WriteStatus status = new WriteStatus(WriteStatus.State.FAILED, null, null, "The queue closed before the record was written");
+            for (Pending pending : left) {
+                finish(pending.trackingId, status);
+            }
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(this.batchSize);
+        while (!this.closed || !this.queue.isEmpty()) {
+            try {
+                // Wait for something to write (waking up now and then to check whether we're closing)
+                Pending first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Give the group a chance to fill up, unless we're closing
+                long deadline = System.nanoTime() + this.flushNanos;
+                while (batch.size() < this.batchSize) {
+                    this.queue.drainTo(batch, this.batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= this.batchSize || remaining <= 0 || this.closed) {
+                        break;
+                    }
+                    Pending next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                write(batch);
+            } catch (InterruptedException e) {
+                // Only stop once everything accepted has been written
+                this.closed = true;
+            } finally {
+                batch.clear();
+                expireStatuses();
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<DBTable> records = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            records.add(pending.record);
+        }
+
+        Map<Integer, BatchResult.Failure> failures = new HashMap<>();
+        BatchResult result;
+        try (DBConnection db = new DBConnection()) {
+            // Insert the whole group and commit it once
+            result = this.accessor.createBatch(db, records);
+            db.finish(true);
+        } catch (Exception e) {
+            // Nothing in the group was committed
+            LOG.error("Unable to write {} queued record(s)", batch.size(), e);
+            WriteStatus status = new WriteStatus(WriteStatus.State.FAILED, null, null, e.getMessage());
+            for (Pending pending : batch) {
+                finish(pending.trackingId, status);
+            }
+            return;
+        }
+
+        for (BatchResult.Failure failure : result.failures) {
+            failures.put(failure.index, failure);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            DBTable record = result.records.get(i);
+            WriteStatus status;
+            if (record != null) {
+                status = new WriteStatus(WriteStatus.State.CREATED, this.accessor.metadata.getId(record), null, null);
+            } else {
+                BatchResult.Failure failure = failures.get(i);
+                status = new WriteStatus(WriteStatus.State.FAILED, null, failure.sqlState, failure.message);
+            }
+            finish(batch.get(i).trackingId, status);
+        }
+    }
+
+    /**
+     * Record the final status of a record, dropping the oldest finished statuses if there are too many
+     * @param trackingId the tracking id of the record
+     * @param status its status
+     */
+    private void finish(UUID trackingId, WriteStatus status) {
+        this.statuses.put(trackingId, new TrackedStatus(status, System.nanoTime()));
+        this.finished.add(trackingId);
+        while (this.finished.size() > this.maxStatuses) {
+            this.statuses.remove(this.finished.poll());
+        }
+    }
+
+    private void expireStatuses() {
+        // Statuses finish in order, so the expired ones are all at the front
+        long now = System.nanoTime();
+        while (!this.finished.isEmpty()) {
+            TrackedStatus tracked = this.statuses.get(this.finished.peek());
+            if (tracked != null && now - tracked.finishedAt <= this.statusTtlNanos) {
+                break;
+            }
+            this.statuses.remove(this.finished.poll());
+        }
+    }
+
+    private record Pending(UUID trackingId, DBTable record) {
+    }
+
+    // finishedAt is 0 while the record is still queued
+    private record TrackedStatus(WriteStatus status, long finishedAt) {
+    }
+}
@@ -0,0 +1,25 @@
+package tech.simard.thinkon.accessors;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.UUID;
+
+/**
+ * Where a record queued for creation by a WriteBehindQueue is up to
+ * @param state QUEUED until the record has been written, then CREATED or FAILED
+ * @param id the id of the created record (only once it's CREATED)
+ * @param sqlState the SQLState reported by the database (only if it FAILED)
+ * @param message the error reported by the database (only if it FAILED)
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record WriteStatus(@JsonProperty("state") State state, @JsonProperty("id") UUID id,
+                          @JsonProperty("sqlState") String sqlState, @JsonProperty("message") String message) {
+    static final WriteStatus QUEUED = new WriteStatus(State.QUEUED, null, null, null);
+
+    public enum State {
+        QUEUED,
+        CREATED,
+        FAILED
+    }
+}
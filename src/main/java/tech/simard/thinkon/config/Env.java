@@ -0,0 +1,72 @@
+package tech.simard.thinkon.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Small helper for reading settings from environment variables with a fallback value.
+ * Everything outside of Spring's own configuration is tuned this way (the same as the DB credentials).
+ * A JVM system property with the same name takes precedence over the environment variable (handy for benchmarks and tests).
+ */
+public final class Env {
+    private Env() {}
+
+    /**
+     * Read a string setting
+     * @param name name of the environment variable (or system property)
+     * @param fallback value used when the variable isn't set
+     * @return the value of the variable, or the fallback
+     */
+    public static String getString(String name, String fallback) {
+        return Optional.ofNullable(System.getProperty(name))
+                .or(() -> Optional.ofNullable(System.getenv(name)))
+                .filter(value -> !value.isBlank())
+                .orElse(fallback);
+    }
+
+    /**
+     * Read an integer setting
+     * @param name name of the environment variable
+     * @param fallback value used when the variable isn't set
+     * @return the value of the variable, or the fallback
+     */
+    public static int getInt(String name, int fallback) {
+        return Integer.parseInt(getString(name, Integer.toString(fallback)).trim());
+    }
+
+    /**
+     * Read a long setting
+     * @param name name of the environment variable
+     * @param fallback value used when the variable isn't set
+     * @return the value of the variable, or the fallback
+     */
+    public static long getLong(String name, long fallback) {
+        return Long.parseLong(getString(name, Long.toString(fallback)).trim());
+    }
+
+    /**
+     * Read a boolean setting ("true"/"false", case-insensitive)
+     * @param name name of the environment variable
+     * @param fallback value used when the variable isn't set
+     * @return the value of the variable, or the fallback
+     */
+    public static boolean getBoolean(String name, boolean fallback) {
+        return Boolean.parseBoolean(getString(name, Boolean.toString(fallback)).trim());
+    }
+
+    /**
+     * Read a comma separated list setting. Blank entries are dropped.
+     * @param name name of the environment variable
+     * @return the entries of the list, or an empty list if the variable isn't set
+     */
+    public static List<String> getList(String name) {
+        List<String> values = new ArrayList<>();
+        for (String value : getString(name, "").split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,466 @@
+package tech.simard.thinkon.controllers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tech.simard.thinkon.accessors.ChangeBus;
+import tech.simard.thinkon.accessors.ChangeEvent;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the changes of a ChangeBus to the clients following them (GET /users/changes), as server-sent events or one
+ * change per line. Nothing waits on the feed per follower: the feed tells us when there are new changes, and each
+ * follower that has some to send gets a task on a small pool of threads of our own, which writes them out and returns.
+ * So followers don't hold request threads (or the threads streaming response bodies run on) while they're idle.
+ * <p>
+ * At most maxFollowers clients can follow at once, more are turned away (follow returns null, see UserController).
+ * Streams close after streamMillis, and idle event streams get a keep-alive comment every heartbeatMillis.
+ * A follower only ever has one task queued or running, so all of its writes happen in order, one at a time.
+ * <p>
+ * A client that stops reading (without going away) would leave a write stuck, holding one of the few threads every
+ * follower shares. So writes have a deadline: a follower whose write takes longer than writeTimeoutMillis is dropped
+ * (the write is interrupted, and the client can resume from the last change it got), and the pool gets an extra thread
+ * until the stuck write returns, so the other followers keep getting their changes.
+ */
+public class ChangeFeed implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class);
+
+    // The most changes written to a follower at once
+    private static final int BATCH_SIZE = 100;
+
+    // Extra time given to the request past the end of the stream, so the stream is always closed by us (not timed out)
+    private static final long TIMEOUT_MARGIN_MS = 5000;
+
+    // States of the writes to a follower
+    private static final int IDLE = 0;
+    private static final int WRITING = 1;
+    private static final int STALLED = 2;
+
+    private final ChangeBus changes;
+    private final ObjectMapper objectMapper;
+    private final int maxFollowers;
+    private final long streamMillis;
+    private final long heartbeatNanos;
+    private final long writeTimeoutNanos;
+    private final ThreadPoolExecutor writers;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Runnable listener = this::changed;
+
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger followerCount = new AtomicInteger();
+    private final Counter rejections;
+    private final Counter stalls;
+
+    /**
+     * @param changes the changes to follow
+     * @param objectMapper writes the records of the changes
+     * @param maxFollowers the most clients following at once
+     * @param threads the threads writing changes out to the followers
+     * @param streamMillis how long a stream stays open before the client has to reconnect
+     * @param heartbeatMillis how often an idle event stream gets a keep-alive comment
+     * @param writeTimeoutMillis how long a write to a follower can take before the follower is dropped
+     */
+    public ChangeFeed(ChangeBus changes, ObjectMapper objectMapper, int maxFollowers, int threads, long streamMillis,
+                      long heartbeatMillis, long writeTimeoutMillis) {
+        this.changes = changes;
+        this.objectMapper = objectMapper;
+        this.maxFollowers = maxFollowers;
+        this.streamMillis = streamMillis;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+
+        // Changes are written out by a pool of threads, and the timers (which keep an eye on the writes) have one of their own
+        AtomicLong threadCount = new AtomicLong();
+        int poolSize = Math.max(1, threads);
+        this.writers = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, String.format("thinkon-change-feed-%d", threadCount.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "thinkon-change-feed-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Streams are closed straight away on shutdown, their timers don't need to run
+        this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.timer.setRemoveOnCancelPolicy(true);
+
+        // Idle event streams are checked for a keep-alive every so often, rather than each follower having a timer,
+        // and so are writes that are taking too long
+        long tickMillis = Math.max(1, heartbeatMillis / 2);
+        this.timer.scheduleWithFixedDelay(this::heartbeat, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        long checkMillis = Math.max(1, writeTimeoutMillis / 2);
+        this.timer.scheduleWithFixedDelay(this::checkWrites, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        this.changes.addListener(this.listener);
+
+        // Publish how many clients are following, and how many were turned away
+        Gauge.builder("thinkon.changes.followers", this.followerCount, AtomicInteger::get)
+                .description("Clients following the change feed")
+                .register(Metrics.globalRegistry);
+        this.rejections = Counter.builder("thinkon.changes.rejections")
+                .description("Clients turned away because too many were already following the change feed")
+                .register(Metrics.globalRegistry);
+        this.stalls = Counter.builder("thinkon.changes.stalls")
+                .description("Followers dropped because a write to them took longer than the write timeout")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Start following the changes
+     * @param after the sequence of the last change the client has seen, or null to only get changes from now on
+     * @param eventStream true to send server-sent events, false to send one change per line
+     * @return the emitter the changes are sent through, or null if too many clients are already following
+     * @throws IOException if the start of the stream can't be written
+     */
+    public ResponseBodyEmitter follow(Long after, boolean eventStream) throws IOException {
+        if (this.followerCount.incrementAndGet() > this.maxFollowers) {
+            this.followerCount.decrementAndGet();
+            this.rejections.increment();
+            return null;
+        }
+
+        long start = after != null ? after : this.changes.getLatestSequence();
+        long timeout = this.streamMillis + TIMEOUT_MARGIN_MS;
+        ResponseBodyEmitter emitter = createEmitter(eventStream, timeout);
+        Follower follower = new Follower(emitter, eventStream, start);
+        emitter.onCompletion(() -> remove(follower));
+        emitter.onTimeout(() -> remove(follower));
+        emitter.onError(e -> remove(follower));
+
+        // Tell the client where the stream starts, so it can resume from there even if nothing changes while it's open
+        // (the emitter holds on to this until the response has started)
+        try {
+            send(follower, "start", start, null);
+        } catch (IOException e) {
+            remove(follower);
+            throw e;
+        }
+
+        // Send whatever changed after the client's sequence straight away, then close the stream once it's been open long enough
+        this.followers.add(follower);
+        follower.closeTask = this.timer.schedule(() -> {
+            follower.closing = true;
+            schedule(follower);
+        }, this.streamMillis, TimeUnit.MILLISECONDS);
+        schedule(follower);
+        return emitter;
+    }
+
+    /**
+     * @return the number of clients following the changes
+     */
+    public int getFollowerCount() {
+        return this.followerCount.get();
+    }
+
+    /**
+     * Stop following the changes, closing every stream
+     */
+    @Override
+    public void close() {
+        this.changes.removeListener(this.listener);
+        for (Follower follower : this.followers) {
+            follower.closing = true;
+            schedule(follower);
+        }
+        this.timer.shutdown();
+        this.writers.shutdown();
+        try {
+            if (!this.writers.awaitTermination(5, TimeUnit.SECONDS)) {
+                this.writers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create the emitter a follower's changes are sent through
+     * @param eventStream true to send server-sent events, false to send one change per line
+     * @param timeout how long the request can stay open
+     * @return the emitter
+     */
+    ResponseBodyEmitter createEmitter(boolean eventStream, long timeout) {
+        return eventStream ? new SseEmitter(timeout) : new ResponseBodyEmitter(timeout);
+    }
+
+    /**
+     * Told by the change bus that something changed, on the thread that published the change
+     */
+    private void changed() {
+        for (Follower follower : this.followers) {
+            schedule(follower);
+        }
+    }
+
+    /**
+     * Ask for a keep-alive on the idle event streams
+     */
+    private void heartbeat() {
+        long now = System.nanoTime();
+        for (Follower follower : this.followers) {
+            if (follower.eventStream && now - follower.lastSentAt >= this.heartbeatNanos) {
+                follower.heartbeatDue = true;
+                schedule(follower);
+            }
+        }
+    }
+
+    /**
+     * Drop the followers whose writes are taking too long (their clients have stopped reading), so they don't hold
+     * on to the threads the other followers need
+     */
+    private void checkWrites() {
+        long now = System.nanoTime();
+        for (Follower follower : this.followers) {
+            if (follower.writeState.get() != WRITING || now - follower.writeStartedAt < this.writeTimeoutNanos) {
+                continue;
+            }
+
+            // Another thread carries on writing to the other followers, until the stuck one is back (see write)
+            synchronized (follower) {
+                if (!follower.writeState.compareAndSet(WRITING, STALLED)) {
+                    continue;
+                }
+                resizeWriters(1);
+                if (follower.writer != null) {
+                    follower.writer.interrupt();
+                }
+            }
+            LOG.info("Dropped a change feed follower, a write to it took over {} ms", TimeUnit.NANOSECONDS.toMillis(this.writeTimeoutNanos));
+            this.stalls.increment();
+            remove(follower);
+        }
+    }
+
+    /**
+     * Add threads to (or take them from) the pool writing the changes
+     * @param delta the number of threads to add, negative to take them away
+     */
+    private void resizeWriters(int delta) {
+        synchronized (this.writers) {
+            // The core size can't be over the maximum, so the maximum goes up first and down last
+            int size = this.writers.getCorePoolSize() + delta;
+            if (delta > 0) {
+                this.writers.setMaximumPoolSize(size);
+                this.writers.setCorePoolSize(size);
+            } else {
+                this.writers.setCorePoolSize(size);
+                this.writers.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * Give a follower a task to catch up, unless it already has one queued or running
+     */
+    private void schedule(Follower follower) {
+        if (follower.scheduled.compareAndSet(false, true)) {
+            try {
+                this.writers.execute(() -> catchUp(follower));
+            } catch (RuntimeException e) {
+                // Shutting down, the stream is closed with the request
+                follower.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Send a follower every change it hasn't seen yet (or a resync if it can't catch up), a keep-alive if one is due,
+     * and close its stream if it's time to
+     */
+    private void catchUp(Follower follower) {
+        try {
+            while (!follower.done) {
+                List<ChangeEvent> events = this.changes.poll(follower.sequence, BATCH_SIZE, 0);
+
+                // The client missed some changes, it has to read the users again and follow on from the latest sequence
+                if (events == null) {
+                    send(follower, "resync", this.changes.getLatestSequence(), null);
+                    finish(follower);
+                    break;
+                }
+                if (events.isEmpty()) {
+                    break;
+                }
+
+                for (ChangeEvent event : events) {
+                    send(follower, event.type().name().toLowerCase(), event.sequence(), event);
+                    follower.sequence = event.sequence();
+                }
+            }
+
+            if (!follower.done && follower.heartbeatDue) {
+                // Keeps proxies from closing the connection, and finds out if the client has gone away
+                write(follower, () -> ((SseEmitter) follower.emitter).send(SseEmitter.event().comment("")));
+            }
+            follower.heartbeatDue = false;
+
+            if (!follower.done && follower.closing) {
+                finish(follower);
+            }
+        } catch (IOException | IllegalStateException | InterruptedException e) {
+            // The client has gone away (or the request has already finished), or stopped reading and was dropped
+            LOG.debug("Stopped sending changes to a follower", e);
+            follower.done = true;
+            remove(follower);
+            if (follower.writeState.get() == STALLED) {
+                follower.emitter.completeWithError(e);
+            }
+        } finally {
+            follower.scheduled.set(false);
+        }
+
+        // Anything published after the last poll, but before the flag was cleared, would otherwise wait for the next change
+        if (!follower.done && (follower.closing || this.changes.getLatestSequence() > follower.sequence)) {
+            schedule(follower);
+        }
+    }
+
+    private void finish(Follower follower) {
+        follower.done = true;
+        follower.emitter.complete();
+        remove(follower);
+    }
+
+    private void remove(Follower follower) {
+        follower.done = true;
+        this.followers.remove(follower);
+        ScheduledFuture<?> closeTask = follower.closeTask;
+        if (closeTask != null) {
+            closeTask.cancel(false);
+        }
+
+        // This is called by the emitter's callbacks as well, the follower is only counted out once
+        if (follower.released.compareAndSet(false, true)) {
+            this.followerCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send a change, e.g. {"sequence":12,"type":"updated","id":"...","user":{...}}
+     * @param follower who it's sent to
+     * @param type the type of change (or start/resync)
+     * @param sequence the sequence of the change
+     * @param event the change, or null for start/resync
+     * @throws IOException if the change can't be sent
+     */
+    private void send(Follower follower, String type, long sequence, ChangeEvent event) throws IOException {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = this.objectMapper.getFactory().createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("sequence", sequence);
+            generator.writeStringField("type", type);
+            if (event != null) {
+                generator.writeStringField("id", event.id().toString());
+                if (event.record() != null) {
+                    generator.writeObjectField("user", event.record());
+                }
+            }
+            generator.writeEndObject();
+        }
+
+        if (follower.eventStream) {
+            write(follower, () -> ((SseEmitter) follower.emitter).send(SseEmitter.event().id(Long.toString(sequence)).name(type).data(json.toString())));
+        } else {
+            write(follower, () -> follower.emitter.send(json.append('\n').toString(), MediaType.TEXT_PLAIN));
+        }
+    }
+
+    /**
+     * Write to a follower, keeping track of how long the write takes so it can be dropped if the write gets stuck
+     * (see checkWrites)
+     * @param follower who it's written to
+     * @param write writes to the follower's emitter
+     * @throws IOException if the write fails, or the follower was dropped while it was stuck
+     */
+    private void write(Follower follower, Write write) throws IOException {
+        synchronized (follower) {
+            follower.writer = Thread.currentThread();
+        }
+        follower.writeStartedAt = System.nanoTime();
+        follower.writeState.set(WRITING);
+
+        boolean dropped;
+        try {
+            write.run();
+        } finally {
+            synchronized (follower) {
+                dropped = !follower.writeState.compareAndSet(WRITING, IDLE);
+                follower.writer = null;
+                if (dropped) {
+                    // The pool got an extra thread while we were stuck, it goes back to its size now we're not.
+                    // The interrupt (if the write didn't notice it) isn't for whatever this thread runs next
+                    resizeWriters(-1);
+                    Thread.interrupted();
+                }
+            }
+        }
+        if (dropped) {
+            throw new IOException("The follower was dropped, it stopped reading its changes");
+        }
+        follower.lastSentAt = System.nanoTime();
+    }
+
+    @FunctionalInterface
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    /**
+     * A client following the changes
+     */
+    private static final class Follower {
+        // Guarded by synchronizing on the follower, so it's only interrupted while it's still writing to this follower
+        private Thread writer;
+
+        private final ResponseBodyEmitter emitter;
+        private final boolean eventStream;
+
+        // Sequence of the last change sent, only changed by the follower's task (there's never more than one at a time)
+        private volatile long sequence;
+
+        // Set while the follower has a task queued or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        // Set once the follower has been counted out of the followers
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private volatile long lastSentAt = System.nanoTime();
+        private volatile boolean heartbeatDue;
+        private volatile boolean closing;
+        private volatile boolean done;
+        private volatile ScheduledFuture<?> closeTask;
+
+        // Whether a write is under way (and when it started), or stuck and dropped by checkWrites
+        private final AtomicInteger writeState = new AtomicInteger(IDLE);
+        private volatile long writeStartedAt;
+
+        private Follower(ResponseBodyEmitter emitter, boolean eventStream, long sequence) {
+            this.emitter = emitter;
+            this.eventStream = eventStream;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package tech.simard.thinkon.controllers;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import tech.simard.thinkon.config.Env;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the database work of requests with a limit on how much of it runs at once, so a slow database doesn't tie up
+ * every request thread. Work waits in a bounded queue for its turn; requests are turned away with a 503 straight away
+ * if the queue is full, or once they've waited longer than the queue timeout.
+ * <p>
+ * Work submitted with submit runs on virtual threads where the runtime has them (Java 21+), otherwise on a pool of
+ * platform threads sized to the concurrency limit. Spring sends the response once the returned future completes,
+ * so the request thread is free in the meantime.
+ * <p>
+ * Tuned with DB_EXECUTOR_MAX_CONCURRENCY, DB_EXECUTOR_MAX_QUEUE, DB_EXECUTOR_QUEUE_TIMEOUT_MS and DB_EXECUTOR_VIRTUAL_THREADS.
+ * The concurrency defaults to one less than DB_POOL_MAX_SIZE (read the same way as the connection pool reads it, so the
+ * two always agree): the write-behind writer (see WriteBehindQueue) borrows its connection outside of the executor,
+ * and this leaves one for it, so requests never wait on the pool behind it.
+ */
+@Component
+public class DBExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(DBExecutor.class);
+
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    // Work that has been accepted but hasn't started yet
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final Timer queueTimer;
+    private final Counter queueFullRejections;
+    private final Counter queueTimeoutRejections;
+
+    @Autowired
+    public DBExecutor() {
+        this(Env.getInt("DB_EXECUTOR_MAX_CONCURRENCY", Math.max(1, Env.getInt("DB_POOL_MAX_SIZE", 10) - 1)),
+                Env.getInt("DB_EXECUTOR_MAX_QUEUE", 200),
+                Env.getLong("DB_EXECUTOR_QUEUE_TIMEOUT_MS", 2000),
+                Env.getBoolean("DB_EXECUTOR_VIRTUAL_THREADS", true));
+    }
+
+    /**
+     * @param maxConcurrency the most database work running at once
+     * @param maxQueued the most database work waiting for its turn
+     * @param queueTimeoutMillis how long work waits for its turn before it's turned away
+     * @param virtualThreads true to run submitted work on virtual threads, where the runtime has them
+     */
+    public DBExecutor(int maxConcurrency, int maxQueued, long queueTimeoutMillis, boolean virtualThreads) {
+        this.maxQueued = maxQueued;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.executor = newExecutor(maxConcurrency, virtualThreads);
+
+        // Publish how busy we are, and how much work is being turned away
+        Gauge.builder("thinkon.db.executor.queued", this.queued, AtomicInteger::get)
+                .description("Database work waiting for its turn")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.db.executor.active", this, executor -> maxConcurrency - executor.permits.availablePermits())
+                .description("Database work currently running")
+                .register(Metrics.globalRegistry);
+        this.queueTimer = Timer.builder("thinkon.db.executor.queue")
+                .description("Time database work waited for its turn")
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry);
+        this.queueFullRejections = rejections("queue_full");
+        this.queueTimeoutRejections = rejections("queue_timeout");
+    }
+
+    /**
+     * Run database work on the executor once there's room for it
+     * @param work the work to run
+     * @return the result of the work, completed with the work's exception if it fails (or a 503 if it waited too long)
+     * @throws ResponseStatusException with a 503 if too much work is already waiting
+     */
+    public <T> CompletableFuture<T> submit(Work<T> work) {
+        admit();
+        long queuedAt = System.nanoTime();
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        this.executor.execute(() -> {
+            try {
+                acquire(queuedAt);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            try {
+                result.complete(work.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                this.permits.release();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Run database work on the calling thread once there's room for it (for work that's already off the request thread,
+     * like a streaming response body)
+     * @param work the work to run
+     * @return the result of the work
+     * @throws IOException if the work fails writing its output
+     * @throws ResponseStatusException with a 503 if too much work is already waiting, or it waited too long
+     */
+    public <T> T run(Work<T> work) throws IOException {
+        admit();
+        acquire(System.nanoTime());
+        try {
+            return work.call();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warn("Database work was still running at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accept work into the queue, unless it's full
+     */
+    private void admit() {
+        if (this.queued.incrementAndGet() > this.maxQueued) {
+            this.queued.decrementAndGet();
+            this.queueFullRejections.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many requests are waiting on the database, try again later");
+        }
+    }
+
+    /**
+     * Wait for a permit to run (leaving the queue either way)
+     * @param queuedAt when the work was accepted
+     */
+    private void acquire(long queuedAt) {
+        boolean acquired;
+        try {
+            long remaining = queuedAt + this.queueTimeoutNanos - System.nanoTime();
+            acquired = remaining > 0 && this.permits.tryAcquire(remaining, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            this.queued.decrementAndGet();
+            this.queueTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+        }
+
+        if (!acquired) {
+            this.queueTimeoutRejections.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Timed out waiting on the database, try again later");
+        }
+    }
+
+    private static Counter rejections(String reason) {
+        return Counter.builder("thinkon.db.executor.rejections")
+                .description("Database work turned away")
+                .tag("reason", reason)
+                .register(Metrics.globalRegistry);
+    }
+
+    private static ExecutorService newExecutor(int threads, boolean virtualThreads) {
+        if (virtualThreads) {
+            // Looked up at runtime since we still build for Java 17
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.info("Virtual threads aren't available, database work will run on {} platform threads", threads);
+            }
+        }
+
+        AtomicLong count = new AtomicLong();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, String.format("thinkon-db-%d", count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Database work run by the executor
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T call() throws SQLException, IOException;
+    }
+}
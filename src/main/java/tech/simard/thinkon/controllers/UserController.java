@@ -1,145 +1,725 @@
 package tech.simard.thinkon.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tech.simard.thinkon.accessors.BatchResult;
+import tech.simard.thinkon.accessors.Filter;
 import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.accessors.VersionConflictException;
+import tech.simard.thinkon.accessors.WriteBehindQueue;
+import tech.simard.thinkon.accessors.WriteStatus;
+import tech.simard.thinkon.config.Env;
 import tech.simard.thinkon.db.DBConnection;
 import tech.simard.thinkon.models.DBTable;
 import tech.simard.thinkon.models.User;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @RestController
 public class UserController {
+    private static final Logger LOG = LoggerFactory.getLogger(UserController.class);
+
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String CSV = "text/csv";
+
+    // CSV is read and written with a header line, empty values are read as nulls (which is how the export writes them)
+    // Columns User doesn't have are rejected, like unknown fields of JSON bodies
+    private static final CsvMapper CSV_MAPPER = CsvMapper.builder()
+            .enable(CsvParser.Feature.EMPTY_STRING_AS_NULL)
+            .enable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .build();
+
+    // Buffer size of the gzip streams of exports and imports
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    // Page sizes used when the client doesn't ask for one, and the most a client can ask for
+    private static final int DEFAULT_PAGE_LIMIT = 100;
+    private static final int MAX_PAGE_LIMIT = 1000;
+
+    // Parameters of GET /users that aren't filters, and the suffix of prefix filters
+    private static final Set<String> RESERVED_PARAMS = Set.of("after", "limit", "fields", "ids");
+    private static final String PREFIX_SUFFIX = "_prefix";
+
+    // Number of users inserted (and committed) together by the batch endpoint
+    private static final int BATCH_CHUNK_SIZE = Env.getInt("BATCH_CHUNK_SIZE", 500);
+
+    private final ObjectMapper objectMapper;
+    private final UserAccessor userAccessor;
+    private final WriteBehindQueue userWriteQueue;
+    private final DBExecutor dbExecutor;
+    private final ChangeFeed changeFeed;
+
+    // Rows of bulk requests (batch and import) by outcome, counted as each chunk is committed
+    private final Counter importedCreated;
+    private final Counter importedUpdated;
+    private final Counter importedFailed;
+
+    public UserController(ObjectMapper objectMapper, UserAccessor userAccessor, WriteBehindQueue userWriteQueue, DBExecutor dbExecutor,
+                          ChangeFeed changeFeed) {
+        this.objectMapper = objectMapper;
+        this.userAccessor = userAccessor;
+        this.userWriteQueue = userWriteQueue;
+        this.dbExecutor = dbExecutor;
+        this.changeFeed = changeFeed;
+        this.importedCreated = importedRows("created");
+        this.importedUpdated = importedRows("updated");
+        this.importedFailed = importedRows("failed");
+    }
 
     @GetMapping("/users")
-    public List<DBTable> getUsers() throws SQLException {
-        DBConnection db = null;
-        try {
-            // Establish a connection to the DB
-            db = new DBConnection();
+    public ResponseEntity<StreamingResponseBody> getUsers(@RequestParam(required = false) UUID after, @RequestParam(required = false) Integer limit,
+                                                          @RequestParam(required = false) List<String> fields,
+                                                          @RequestParam(required = false) List<UUID> ids,
+                                                          @RequestParam Map<String, String> params,
+                                                          @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) throws IOException {
+        // Only the fields asked for are read from the DB and written out
+        long columnSet = columnSet(fields);
 
-            // Get all user records from the DB
-            UserAccessor accessor = new UserAccessor();
-            List<DBTable> users = accessor.getAll(db);
+        // Asking for specific users is the same as the lookup endpoint
+        if (ids != null) {
+            checkLookupSize(ids);
+            StreamingResponseBody body = outputStream -> this.objectMapper.writeValue(outputStream, this.dbExecutor.run(() -> lookup(ids, columnSet, fields != null)));
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+        }
 
-            // Commit any changes
-            db.finish(true);
+        // Any other parameters filter the users (e.g. email=... or username_prefix=...)
+        List<Filter> filters = filters(params);
+        if (!filters.isEmpty() && after != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Filters can't be combined with after");
+        }
+
+        // Pages (and the whole list) are tagged with their current state, worked out by the database from the id and version
+        // of each user in them (it still reads them, but doesn't send them back)
+        // A client polling with the tag it last got back doesn't get the users again until something changes
+        // A page's tag only reads the page, but the whole list's tag reads every user, so the whole list is only tagged for
+        // clients polling with a tag (If-None-Match) rather than on every request
+        String eTag = null;
+        boolean paged = after != null || limit != null;
+        if (filters.isEmpty() && (paged || ifNoneMatch != null)) {
+            Integer pageLimit = paged ? pageLimit(limit) : null;
+            String tag = this.dbExecutor.run(() -> {
+                try (DBConnection db = DBConnection.forRead()) {
+                    String collectionTag = this.userAccessor.getCollectionTag(db, after, pageLimit);
+                    db.finish(true);
+                    return collectionTag;
+                }
+            });
+            if (tag != null) {
+                eTag = String.format("\"%s\"", tag);
+                if (ifNoneMatch != null && eTagMatches(ifNoneMatch, eTag)) {
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+                }
+            }
+        }
+
+        // Users are written to the response straight from the DB results, without creating a User for each row
+        // The DB work waits for its turn on the DB executor
+        StreamingResponseBody body = outputStream -> this.dbExecutor.run(() -> {
+            JsonGenerator generator = this.objectMapper.getFactory().createGenerator(outputStream);
+
+            // Borrow a read only connection to the DB, from a replica if there are any (it's returned to the pool when we're done)
+            try (DBConnection db = DBConnection.forRead()) {
+                if (!filters.isEmpty()) {
+                    // Only write the users matching the filters
+                    generator.writeStartArray();
+                    this.userAccessor.writeWhere(db, filters, pageLimit(limit), columnSet, generator);
+                    generator.writeEndArray();
+                } else if (after != null || limit != null) {
+                    // If the client asked for a page, only write that page of user records
+                    generator.writeStartObject();
+                    generator.writeFieldName("items");
+                    generator.writeStartArray();
+                    UUID next = this.userAccessor.writePage(db, after, pageLimit(limit), columnSet, generator);
+                    generator.writeEndArray();
+                    generator.writeObjectField("next", next);
+                    generator.writeEndObject();
+                } else {
+                    // Write all user records
+                    generator.writeStartArray();
+                    this.userAccessor.writeAll(db, null, columnSet, generator);
+                    generator.writeEndArray();
+                }
+
+                // Commit any changes
+                db.finish(true);
+            } finally {
+                generator.flush();
+            }
+            return null;
+        });
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (eTag != null) {
+            response.eTag(eTag);
+        }
+        return response.body(body);
+    }
+
+    @GetMapping(value = "/users", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamUsers(@RequestParam(required = false) UUID after, @RequestParam(required = false) List<String> fields) {
+        long columnSet = columnSet(fields);
+
+        // Users are written out one per line as they're read from the DB, so nothing holds the whole table in memory
+        StreamingResponseBody body = outputStream -> this.dbExecutor.run(() -> {
+            JsonGenerator generator = this.objectMapper.getFactory().createGenerator(outputStream);
+            generator.setRootValueSeparator(new SerializedString("\n"));
+
+            // Borrow a read only connection to the DB, from a replica if there are any (it's returned to the pool when we're done)
+            try (DBConnection db = DBConnection.forRead()) {
+                if (this.userAccessor.writeAll(db, after, columnSet, generator) > 0) {
+                    // The separator only goes between users, finish the last line too
+                    generator.writeRaw('\n');
+                }
+                db.finish(true);
+            } finally {
+                generator.flush();
+            }
+            return null;
+        });
+
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    @GetMapping("/users/export")
+    public ResponseEntity<StreamingResponseBody> exportUsers(@RequestParam(defaultValue = "csv") String format,
+                                                             @RequestParam(required = false) List<String> fields,
+                                                             @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        boolean csv = switch (format) {
+            case "csv" -> true;
+            case "ndjson" -> false;
+            default -> throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Export format must be csv or ndjson");
+        };
+        long columnSet = columnSet(fields);
+
+        // Compressed as it's written if the client can take it (e.g. curl --compressed)
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+
+        // Users are written out as they're read from a streaming cursor, so nothing holds the whole table in memory
+        StreamingResponseBody body = outputStream -> this.dbExecutor.run(() -> {
+            OutputStream out = gzip ? new GZIPOutputStream(outputStream, GZIP_BUFFER_SIZE) : outputStream;
 
-            return users;
-        } catch (SQLException e) {
-            db.finish(false);
-            return new ArrayList<>();
-        } catch (NoSuchFieldException | NoSuchMethodException | InstantiationException | IllegalAccessException |
-                 InvocationTargetException e) {
-            throw new RuntimeException(e);
+            // The CSV columns are the fields being exported, in the order they're written
+            JsonGenerator generator;
+            if (csv) {
+                CsvSchema.Builder schema = CsvSchema.builder().setUseHeader(true);
+                for (String jsonName : this.userAccessor.getJsonNames(columnSet)) {
+                    schema.addColumn(jsonName);
+                }
+                generator = CSV_MAPPER.writer(schema.build()).createGenerator(out);
+            } else {
+                generator = this.objectMapper.getFactory().createGenerator(out);
+                generator.setRootValueSeparator(new SerializedString("\n"));
+            }
+
+            // Borrow a read only connection to the DB, from a replica if there are any (it's returned to the pool when we're done)
+            try (DBConnection db = DBConnection.forRead()) {
+                if (this.userAccessor.writeAll(db, null, columnSet, generator) > 0 && !csv) {
+                    // The separator only goes between users, finish the last line too
+                    generator.writeRaw('\n');
+                }
+                db.finish(true);
+            } finally {
+                generator.flush();
+                if (gzip) {
+                    ((GZIPOutputStream) out).finish();
+                }
+            }
+            return null;
+        });
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(csv ? CSV : NDJSON))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(csv ? "users.csv" : "users.ndjson").build().toString())
+                .varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
         }
+        return response.body(body);
+    }
+
+    @GetMapping("/users/changes")
+    public ResponseEntity<ResponseBodyEmitter> followChanges(@RequestParam(required = false) Long after,
+                                                             @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) throws IOException {
+        // Browsers reconnect on their own, sending the id of the last event they got
+        return changeStream(after != null ? after : lastEventId, true);
+    }
+
+    @GetMapping(value = "/users/changes", produces = NDJSON)
+    public ResponseEntity<ResponseBodyEmitter> streamChanges(@RequestParam(required = false) Long after) throws IOException {
+        return changeStream(after, false);
+    }
+
+    /**
+     * Stream the changes to users as they're committed, for a while
+     * @param after the sequence of the last change the client has seen, or null to only get changes from now on
+     * @param eventStream true to send server-sent events, false to send one change per line
+     * @return the response
+     * @throws IOException if the start of the stream can't be written
+     */
+    private ResponseEntity<ResponseBodyEmitter> changeStream(Long after, boolean eventStream) throws IOException {
+        // Nothing here touches the DB, changes come from the in-process feed (see ChangeBus), and are sent by the
+        // feed's own threads as they're published, so the request thread is handed back straight away
+        ResponseBodyEmitter emitter = this.changeFeed.follow(after, eventStream);
+        if (emitter == null) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many clients are following the changes, try again later");
+        }
+
+        MediaType contentType = eventStream ? MediaType.TEXT_EVENT_STREAM : MediaType.parseMediaType(NDJSON);
+        return ResponseEntity.ok().contentType(contentType).body(emitter);
     }
 
     @GetMapping("/users/{id}")
-    public User getUserByID(@PathVariable UUID id) throws SQLException {
-        DBConnection db = null;
-        try {
-            // Establish a connection to the DB
-            db = new DBConnection();
+    public CompletableFuture<ResponseEntity<Object>> getUserByID(@PathVariable UUID id, @RequestParam(required = false) List<String> fields,
+                                                                 @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        long columnSet = columnSet(fields);
+
+        return this.dbExecutor.submit(() -> {
+            // The client already has a copy of the user, if it hasn't changed there's no need to read (or send) the whole user
+            if (ifNoneMatch != null) {
+                Long version;
+                try (DBConnection db = DBConnection.forRead()) {
+                    version = this.userAccessor.getVersion(db, id);
+                    db.finish(true);
+                }
+                if (version != null && eTagMatches(ifNoneMatch, versionTag(version, fields != null))) {
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(versionTag(version, fields != null)).build();
+                }
+            }
+
+            if (fields == null) {
+                // Get a user record by the provided id
+                // The query is shared with other requests looking up users at the same time, so it uses a connection of its own
+                User user = (User) this.userAccessor.getByIdCoalesced(id);
+                return withVersion(user, user == null ? null : user.version, false);
+            }
+
+            // Borrow a read only connection to the DB, from a replica if there are any (it's returned to the pool when we're done)
+            try (DBConnection db = DBConnection.forRead()) {
+                // Get only the fields asked for from the user record with the provided id (the version always comes along)
+                Map<String, Object> user = this.userAccessor.getById(db, id, columnSet);
+
+                // Commit any changes
+                db.finish(true);
+
+                return withVersion(user, user == null ? null : (Long) user.get("version"), true);
+            }
+        });
+    }
 
-            // Get a user record by the provided id
-            UserAccessor accessor = new UserAccessor();
-            DBTable user = accessor.getById(db, id);
+    @PostMapping("/users/lookup")
+    public CompletableFuture<List<Object>> lookupUsers(@RequestBody List<UUID> ids, @RequestParam(required = false) List<String> fields) {
+        checkLookupSize(ids);
+        long columnSet = columnSet(fields);
+        return this.dbExecutor.submit(() -> lookup(ids, columnSet, fields != null));
+    }
+
+    /**
+     * Get users by id
+     * @param ids the ids of the users
+     * @param columnSet bitmask of the columns to send back
+     * @param project whether to only send back some of the columns (otherwise the whole user is sent back)
+     * @return the users found, in the order of the ids
+     * @throws SQLException
+     */
+    private List<Object> lookup(List<UUID> ids, long columnSet, boolean project) throws SQLException {
+        // Borrow a read only connection to the DB, from a replica if there are any (it's returned to the pool when we're done)
+        try (DBConnection db = DBConnection.forRead()) {
+            // Get every user record asked for with as few queries as possible
+            List<DBTable> users = this.userAccessor.getByIds(db, ids);
 
             // Commit any changes
             db.finish(true);
 
-            return (User) user;
-        } catch (SQLException e) {
-            db.finish(false);
-            return null;
-        } catch (NoSuchFieldException | InvocationTargetException | InstantiationException | IllegalAccessException |
-                 NoSuchMethodException e) {
-            throw new RuntimeException(e);
+            // Only send back the fields asked for
+            List<Object> returnObjects = new ArrayList<>(users.size());
+            for (DBTable user : users) {
+                returnObjects.add(project ? this.userAccessor.project(user, columnSet) : user);
+            }
+            return returnObjects;
         }
     }
 
     @PostMapping("/users")
-    public User createUser(@RequestBody String body) throws SQLException, JsonProcessingException {
-        DBConnection db = null;
-        try {
-            // Convert the body JSON to a User instance
-            User tempUser = (new ObjectMapper()).readValue(body, User.class);
+    public CompletableFuture<User> createUser(@RequestBody User tempUser) {
+        // The body JSON is read straight into a User instance by the shared mapper
+        return this.dbExecutor.submit(() -> {
+            // Borrow a connection to the DB (it's rolled back and returned to the pool if we don't finish)
+            try (DBConnection db = new DBConnection()) {
+                // Create a new user record using the request's JSON
+                DBTable user = this.userAccessor.create(db, tempUser);
 
-            // Establish a connection to the DB
-            db = new DBConnection();
+                // Commit the new record
+                db.finish(true);
 
-            // Create a new user record using the request's JSON
-            UserAccessor accessor = new UserAccessor();
-            DBTable user = accessor.create(db, tempUser);
+                return (User) user;
+            }
+        });
+    }
 
-            // Commit the new record
-            db.finish(true);
+    @PostMapping("/users/async")
+    public ResponseEntity<Map<String, UUID>> createUserAsync(@RequestBody User tempUser) {
+        // Queue the user to be created in the background, along with other users created around the same time
+        UUID trackingId = this.userWriteQueue.submit(tempUser);
+        if (trackingId == null) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many users are waiting to be created, try again later");
+        }
 
-            return (User) user;
-        } catch (SQLException e) {
-            db.finish(false);
-            return null;
-        } catch (NoSuchFieldException | InvocationTargetException | NoSuchMethodException | InstantiationException |
-                 IllegalAccessException e) {
-            throw new RuntimeException(e);
+        // The client can follow the status to find out when (and whether) the user was created
+        return ResponseEntity.accepted()
+                .location(URI.create(String.format("/users/async/%s", trackingId)))
+                .body(Map.of("trackingId", trackingId));
+    }
+
+    @GetMapping("/users/async/{trackingId}")
+    public WriteStatus getCreateStatus(@PathVariable UUID trackingId) {
+        WriteStatus status = this.userWriteQueue.getStatus(trackingId);
+        if (status == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown (or expired) tracking id");
         }
+        return status;
     }
 
-    @PutMapping("/users/{id}")
-    public User updateUser(@PathVariable UUID id, @RequestBody String body) throws SQLException, JsonProcessingException {
-        DBConnection db = null;
-        try {
-            // Convert the body JSON to a User instance
-            User tempUser = (new ObjectMapper()).readValue(body, User.class);
+    @PostMapping(value = "/users/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, NDJSON})
+    public BatchResult createUsers(InputStream body) throws IOException {
+        // The body is read as the users are inserted, so this runs on the request thread (once the DB executor has room)
+        return this.dbExecutor.run(() -> insertUsers(this.objectMapper.readerFor(User.class), body, null, false));
+    }
 
-            // Establish a connection to the DB
-            db = new DBConnection();
+    @PostMapping(value = "/users/import", consumes = {CSV, NDJSON, MediaType.APPLICATION_JSON_VALUE})
+    public BatchResult importUsers(InputStream body, @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                   @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding,
+                                   @RequestParam(required = false) String upsert) throws IOException {
+        // Existing users can be updated rather than rejected, matched on one of their unique fields (e.g. upsert=email)
+        if (upsert != null) {
+            try {
+                this.userAccessor.getUniqueKey(upsert);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+            }
+        }
 
-            // Update existing user record using the request's JSON
-            UserAccessor accessor = new UserAccessor();
-            accessor.update(db, id, tempUser);
+        // CSV needs a header line naming the fields (like the export writes), JSON is an array or one user per line
+        ObjectReader reader = MediaType.parseMediaType(contentType).isCompatibleWith(MediaType.parseMediaType(CSV))
+                ? CSV_MAPPER.readerFor(User.class).with(CsvSchema.emptySchema().withHeader())
+                : this.objectMapper.readerFor(User.class);
 
-            // Retrieve the record so we can send it back to the client
-            DBTable user = accessor.getById(db, id);
+        // The body is decompressed as it's read if it was sent compressed
+        InputStream in = "gzip".equalsIgnoreCase(contentEncoding) ? new GZIPInputStream(body, GZIP_BUFFER_SIZE) : body;
+        // Users keep the ids they were exported with, so reloading an export doesn't change them
+        return this.dbExecutor.run(() -> insertUsers(reader, in, upsert, true));
+    }
 
-            // Commit changes to the updated record
+    /**
+     * Insert (or upsert) the users of a bulk request, in chunks
+     * @param reader reads users from the body (JSON or CSV)
+     * @param body the body of the request
+     * @param upsertKey the JSON name of the unique field existing users are matched on, or null to only insert
+     * @param keepIds true to create users with the ids they have, false to give every new user a new id
+     * @return the outcome of the request
+     * @throws IOException if the body can't be read
+     * @throws SQLException
+     */
+    private BatchResult insertUsers(ObjectReader reader, InputStream body, String upsertKey, boolean keepIds) throws IOException, SQLException {
+        BatchResult result = new BatchResult();
+        int rowCount = 0;
+        long startedAt = System.nanoTime();
+
+        // The body is read one user at a time rather than all at once
+        // Borrow a connection to the DB (it's rolled back and returned to the pool if we don't finish)
+        try (MappingIterator<User> users = reader.readValues(body);
+             DBConnection db = new DBConnection()) {
+            // Insert the users in chunks, committing each chunk
+            List<User> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+            while (users.hasNextValue()) {
+                chunk.add(users.nextValue());
+                rowCount++;
+
+                if (chunk.size() == BATCH_CHUNK_SIZE) {
+                    BatchResult chunkResult = writeChunk(db, chunk, upsertKey, keepIds);
+                    db.commit();
+                    countImported(chunkResult);
+                    result.merge(chunkResult, rowCount - chunk.size());
+                    chunk.clear();
+                    LOG.debug("Bulk request has written {} users so far ({} created, {} updated, {} failed)",
+                            rowCount, result.created, result.updated, result.failed);
+                }
+            }
+            BatchResult lastResult = chunk.isEmpty() ? null : writeChunk(db, chunk, upsertKey, keepIds);
+
+            // Commit the last chunk
             db.finish(true);
+            if (lastResult != null) {
+                countImported(lastResult);
+                result.merge(lastResult, rowCount - chunk.size());
+            }
+        } catch (JsonProcessingException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("Invalid user at index %d (%d users before it were written)", rowCount, result.created + result.updated), e);
+        }
 
-            return (User) user;
-        } catch (SQLException e) {
-            db.finish(false);
-            return null;
-        } catch (NoSuchFieldException | InvocationTargetException | NoSuchMethodException | InstantiationException |
-                 IllegalAccessException e) {
-            throw new RuntimeException(e);
+        LOG.info("Bulk request wrote {} users in {} ms ({} created, {} updated, {} failed)", rowCount,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), result.created, result.updated, result.failed);
+        return result;
+    }
+
+    /**
+     * Insert (or upsert) a chunk of users
+     * @param db A DBConnection instance
+     * @param chunk the users
+     * @param upsertKey the JSON name of the unique field existing users are matched on, or null to only insert
+     * @param keepIds true to create users with the ids they have, false to give every new user a new id
+     * @return the outcome of the chunk
+     */
+    private BatchResult writeChunk(DBConnection db, List<User> chunk, String upsertKey, boolean keepIds) {
+        return upsertKey == null ? this.userAccessor.createBatch(db, chunk, keepIds) : this.userAccessor.upsertBatch(db, chunk, upsertKey, keepIds);
+    }
+
+    /**
+     * Count the rows of a committed chunk of a bulk request
+     * @param chunkResult the outcome of the chunk
+     */
+    private void countImported(BatchResult chunkResult) {
+        this.importedCreated.increment(chunkResult.created);
+        this.importedUpdated.increment(chunkResult.updated);
+        this.importedFailed.increment(chunkResult.failed);
+    }
+
+    private static Counter importedRows(String outcome) {
+        return Counter.builder("thinkon.import.rows")
+                .description("Rows of bulk requests written to the database")
+                .tag("outcome", outcome)
+                .register(Metrics.globalRegistry);
+    }
+
+    @PutMapping("/users/{id}")
+    public CompletableFuture<ResponseEntity<User>> updateUser(@PathVariable UUID id, @RequestBody User tempUser,
+                                                              @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        // The body JSON is read straight into a User instance by the shared mapper
+        // If the client sent the version it last saw, the user is only updated if nobody else has changed it since
+        Long expectedVersion = expectedVersion(ifMatch);
+
+        return this.dbExecutor.submit(() -> {
+            // Borrow a connection to the DB (it's rolled back and returned to the pool if we don't finish)
+            try (DBConnection db = new DBConnection()) {
+                // Update existing user record using the request's JSON (we get the updated record back to send to the client)
+                User user = (User) this.userAccessor.update(db, id, tempUser, expectedVersion);
+
+                // Commit changes to the updated record
+                db.finish(true);
+
+                return withVersion(user, user == null ? null : user.version, false);
+            } catch (VersionConflictException e) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, e.getMessage(), e);
+            }
+        });
+    }
+
+    @PatchMapping("/users/{id}")
+    public CompletableFuture<ResponseEntity<User>> patchUser(@PathVariable UUID id, @RequestBody JsonNode json,
+                                                             @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) throws JsonProcessingException {
+        // Convert the body JSON to a User instance, keeping track of which fields were actually sent
+        if (json == null || !json.isObject()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Expected a JSON object");
         }
+        User tempUser = this.objectMapper.treeToValue(json, User.class);
+        List<String> fields = new ArrayList<>();
+        json.fieldNames().forEachRemaining(fields::add);
+        Long expectedVersion = expectedVersion(ifMatch);
+
+        return this.dbExecutor.submit(() -> {
+            // Borrow a connection to the DB (it's rolled back and returned to the pool if we don't finish)
+            try (DBConnection db = new DBConnection()) {
+                // Update only the fields that were sent (we get the updated record back to send to the client)
+                User user = (User) this.userAccessor.patch(db, id, tempUser, fields, expectedVersion);
+
+                // Commit changes to the updated record
+                db.finish(true);
+
+                return withVersion(user, user == null ? null : user.version, false);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+            } catch (VersionConflictException e) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, e.getMessage(), e);
+            }
+        });
     }
 
     @DeleteMapping("/users/{id}")
-    public void deleteUser(@PathVariable UUID id) throws SQLException {
-        DBConnection db = null;
+    public CompletableFuture<Void> deleteUser(@PathVariable UUID id, @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        Long expectedVersion = expectedVersion(ifMatch);
+
+        return this.dbExecutor.submit(() -> {
+            // Borrow a connection to the DB (it's rolled back and returned to the pool if we don't finish)
+            try (DBConnection db = new DBConnection()) {
+                // Update existing user record using the request's JSON
+                this.userAccessor.delete(db, id, expectedVersion);
+
+                // Commit changes to the updated record
+                db.finish(true);
+            } catch (VersionConflictException e) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, e.getMessage(), e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Build a response for a user, tagged with its version
+     * @param user the user (or the fields of it that were asked for), or null if there's no such user
+     * @param version the version of the user
+     * @param projected whether only some of the fields are being sent back
+     * @return the response
+     */
+    private static <T> ResponseEntity<T> withVersion(T user, Long version, boolean projected) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (version != null) {
+            response.eTag(versionTag(version, projected));
+        }
+        return response.body(user);
+    }
+
+    /**
+     * @param version the version of a user
+     * @param projected whether only some of the fields are being sent back (those get weak tags, they're not the whole user)
+     * @return the ETag of the user at that version
+     */
+    private static String versionTag(long version, boolean projected) {
+        return String.format(projected ? "W/\"%d\"" : "\"%d\"", version);
+    }
+
+    /**
+     * Check an If-None-Match header against the current ETag (weak comparison, so W/ prefixes are ignored)
+     * @param ifNoneMatch the If-None-Match header
+     * @param eTag the current ETag
+     * @return whether the client already has the current version
+     */
+    static boolean eTagMatches(String ifNoneMatch, String eTag) {
+        String current = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || (candidate.startsWith("W/") ? candidate.substring(2) : candidate).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the version a client expects a user to be at from an If-Match header
+     * @param ifMatch the If-Match header, or null
+     * @return the expected version, or null if any version will do
+     */
+    static Long expectedVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+
+        // If-Match uses strong comparison, so a weak tag (or anything else we didn't hand out) can never match
+        String tag = ifMatch.trim();
+        if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+            try {
+                return Long.parseLong(tag.substring(1, tag.length() - 1));
+            } catch (NumberFormatException e) {
+                // Falls through to the failed precondition
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "If-Match doesn't match the current version of the user");
+    }
+
+    /**
+     * Make sure a lookup by ids isn't too big
+     * @param ids the ids being looked up
+     */
+    private static void checkLookupSize(List<UUID> ids) {
+        if (ids.size() > MAX_PAGE_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("At most %d users can be looked up at once", MAX_PAGE_LIMIT));
+        }
+    }
+
+    /**
+     * Work out the columns to read for a request
+     * @param fields the fields requested by the client (can be null for every field)
+     * @return bitmask of the columns to read
+     */
+    private long columnSet(List<String> fields) {
         try {
-            // Establish a connection to the DB
-            db = new DBConnection();
+            return this.userAccessor.getColumnSet(fields);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
 
-            // Update existing user record using the request's JSON
-            UserAccessor accessor = new UserAccessor();
-            accessor.delete(db, id);
+    /**
+     * Turn the filtering parameters of a request into filters
+     * @param params every parameter of the request
+     * @return the filters, one per parameter other than after, limit and fields
+     */
+    private List<Filter> filters(Map<String, String> params) {
+        List<Filter> filters = new ArrayList<>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String name = param.getKey();
+            if (RESERVED_PARAMS.contains(name)) {
+                continue;
+            }
 
-            // Commit changes to the updated record
-            db.finish(true);
-        } catch (SQLException e) {
-            db.finish(false);
-        } catch (NoSuchFieldException | InvocationTargetException | NoSuchMethodException | InstantiationException |
-                 IllegalAccessException e) {
-            throw new RuntimeException(e);
+            try {
+                // A _prefix suffix means match the start of the value rather than the whole value
+                if (name.endsWith(PREFIX_SUFFIX)) {
+                    filters.add(this.userAccessor.filter(name.substring(0, name.length() - PREFIX_SUFFIX.length()), true, param.getValue()));
+                } else {
+                    filters.add(this.userAccessor.filter(name, false, param.getValue()));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Work out the page size to use for a request
+     * @param limit the limit requested by the client (can be null)
+     * @return the limit to use, clamped between 1 and the max page limit
+     */
+    private static int pageLimit(Integer limit) {
+        if (limit == null) {
+            return DEFAULT_PAGE_LIMIT;
         }
+        return Math.max(1, Math.min(limit, MAX_PAGE_LIMIT));
     }
 }
@@ -0,0 +1,147 @@
+package tech.simard.thinkon.db;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import tech.simard.thinkon.config.Env;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of database connections for a single connection url.
+ * Connections handed out have auto commit turned off and are validated before being borrowed if they've been idle.
+ * Connections held past the leak detection threshold get logged along with the stack that acquired them.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private final HikariDataSource dataSource;
+
+    // Acquire latency tracking (the pool itself only tracks how many connections are in use)
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireFailures = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAccumulator maxAcquireNanos = new LongAccumulator(Math::max, 0);
+    private final Timer acquireTimer;
+
+    /**
+     * Create a pool for the given database
+     * @param name name of the pool (shows up in logs and leak reports)
+     * @param connectionUrl jdbc url of the database
+     * @param username database username
+     * @param password database password
+     */
+    public ConnectionPool(String name, String connectionUrl, String username, String password) {
+        this(name, connectionUrl, username, password, Env.getLong("DB_POOL_ACQUIRE_TIMEOUT_MS", 5000), true);
+    }
+
+    /**
+     * Create a pool for the given database
+     * @param name name of the pool (shows up in logs and leak reports)
+     * @param connectionUrl jdbc url of the database
+     * @param username database username
+     * @param password database password
+     * @param acquireTimeoutMillis how long acquire waits for a connection before failing
+     * @param failFast whether creating the pool fails if the database can't be reached (otherwise only acquiring fails)
+     */
+    public ConnectionPool(String name, String connectionUrl, String username, String password, long acquireTimeoutMillis, boolean failFast) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setJdbcUrl(connectionUrl);
+        config.setUsername(username);
+        config.setPassword(password);
+
+        // Turn off auto commit so that we can manage the commit/rollback manually
+        config.setAutoCommit(false);
+
+        // Pool sizing and timeouts
+        config.setMinimumIdle(Env.getInt("DB_POOL_MIN_IDLE", 2));
+        config.setMaximumPoolSize(Env.getInt("DB_POOL_MAX_SIZE", 10));
+        config.setConnectionTimeout(acquireTimeoutMillis);
+        config.setIdleTimeout(Env.getLong("DB_POOL_IDLE_TIMEOUT_MS", 600000));
+        config.setMaxLifetime(Env.getLong("DB_POOL_MAX_LIFETIME_MS", 1800000));
+
+        // Either check the database can be reached now, or leave it until the first connection is needed
+        config.setInitializationFailTimeout(failFast ? 1 : -1);
+
+        // Connections that sat idle are checked with a ping before being handed out
+        config.setValidationTimeout(Env.getLong("DB_POOL_VALIDATION_TIMEOUT_MS", 1000));
+
+        // Have the driver use server side prepared statements and keep them cached per connection,
+        // so statements that are ran repeatedly are only parsed by the server once
+        config.addDataSourceProperty("useServerPrepStmts", Env.getString("DB_USE_SERVER_PREP_STMTS", "true"));
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", Env.getString("DB_PREP_STMT_CACHE_SIZE", "250"));
+
+        // Log the acquiring stack when a connection isn't returned within the threshold (0 turns it off)
+        config.setLeakDetectionThreshold(Env.getLong("DB_POOL_LEAK_THRESHOLD_MS", 30000));
+
+        this.dataSource = new HikariDataSource(config);
+
+        // Publish the pool's statistics
+        this.acquireTimer = Timer.builder("thinkon.db.pool.acquire")
+                .description("Time spent waiting for a connection from the pool")
+                .tag("pool", name)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.db.pool.active", this, pool -> pool.getStats().active()).tag("pool", name).register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.db.pool.idle", this, pool -> pool.getStats().idle()).tag("pool", name).register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.db.pool.total", this, pool -> pool.getStats().total()).tag("pool", name).register(Metrics.globalRegistry);
+        Gauge.builder("thinkon.db.pool.waiting", this, pool -> pool.getStats().waiting()).tag("pool", name).register(Metrics.globalRegistry);
+        FunctionCounter.builder("thinkon.db.pool.acquire.failures", this.acquireFailures, LongAdder::sum).tag("pool", name).register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Borrow a connection from the pool, waiting up to the acquire timeout for one to become free.
+     * The connection must be closed to return it to the pool.
+     * @return a connection with auto commit turned off
+     * @throws SQLException if no connection could be acquired in time
+     */
+    public Connection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Connection conn = this.dataSource.getConnection();
+
+            long elapsed = System.nanoTime() - start;
+            this.acquireCount.increment();
+            this.acquireNanos.add(elapsed);
+            this.maxAcquireNanos.accumulate(elapsed);
+            this.acquireTimer.record(elapsed, TimeUnit.NANOSECONDS);
+
+            return conn;
+        } catch (SQLException e) {
+            this.acquireFailures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the current statistics of the pool
+     */
+    public PoolStats getStats() {
+        HikariPoolMXBean bean = this.dataSource.getHikariPoolMXBean();
+        long count = this.acquireCount.sum();
+        double meanMillis = count == 0 ? 0 : this.acquireNanos.sum() / (double) count / 1_000_000;
+        double maxMillis = this.maxAcquireNanos.get() / 1_000_000.0;
+
+        if (bean == null) {
+            return new PoolStats(0, 0, 0, 0, count, this.acquireFailures.sum(), meanMillis, maxMillis);
+        }
+        return new PoolStats(bean.getActiveConnections(), bean.getIdleConnections(), bean.getTotalConnections(),
+                bean.getThreadsAwaitingConnection(), count, this.acquireFailures.sum(), meanMillis, maxMillis);
+    }
+
+    /**
+     * Close every connection in the pool
+     */
+    @Override
+    public void close() {
+        this.dataSource.close();
+    }
+}
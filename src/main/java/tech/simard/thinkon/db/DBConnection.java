@@ -1,52 +1,384 @@
 package tech.simard.thinkon.db;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.simard.thinkon.config.Env;
+
 import java.sql.*;
-import java.util.Optional;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class DBConnection implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DBConnection.class);
+
+    // Shared by every DBConnection, created the first time a connection is needed
+    private static volatile ConnectionPool pool;
+    private static volatile ReplicaPools replicas;
+    private static volatile ShardMap shards;
+
+    // Read replicas (comma separated jdbc urls), reads can be sent to these rather than the primary
+    private static final List<String> REPLICA_URLS = Env.getList("DB_REPLICA_URLS");
+
+    // Shards (comma separated jdbc urls, in a fixed order), records are spread over these by id rather than kept on the primary
+    private static final List<String> SHARD_URLS = Env.getList("DB_SHARD_URLS");
+
+    // Number of rows fetched at a time by streaming statements
+    private static final int STREAMING_FETCH_SIZE = Env.getInt("DB_STREAMING_FETCH_SIZE", 500);
+
+    // Statements taking longer than this are logged (0 logs everything, a negative value turns it off)
+    private static final long SLOW_QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(Env.getLong("DB_SLOW_QUERY_MS", 500));
+
+    private static final Timer PREPARE_TIMER = statementTimer("prepare");
+    private static final Timer QUERY_TIMER = statementTimer("query");
+    private static final Timer UPDATE_TIMER = statementTimer("update");
 
-public class DBConnection {
     Connection conn;
 
+    // Whether the connection is to a read replica (so it can't be written with)
+    private final boolean replica;
+
+    // Statements created on this connection (and their sql), closed (along with their result sets) when we're finished
+    private final Map<Statement, String> statements = new IdentityHashMap<>();
+
+    // Called once the transaction has been committed or rolled back
+    private final List<TransactionCallback> callbacks = new ArrayList<>();
+
+    // Connections to the shards, borrowed the first time each shard is used and finished along with this connection
+    private DBConnection[] shardConnections;
+
     /**
-     * Create a connection to the database using the provided authentication and connection details
+     * Borrow a connection to the database from the shared connection pool
      */
     public DBConnection() {
-        // Use environment variables if they're available
-        String username = Optional.ofNullable(System.getenv("DB_USER")).orElse("*YOUR USERNAME*");
-        String password = Optional.ofNullable(System.getenv("DB_PASSWORD")).orElse("*YOUR PASSWORD*");
-        String connectionUrl = Optional.ofNullable(System.getenv("DB_CONNECTION_URL")).orElse("*YOUR CONNECTION URL*");
+        try {
+            // Borrow a connection from the pool (auto commit is already off for pooled connections)
+            this.conn = getPool().acquire();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        this.replica = false;
+    }
+
+    /**
+     * Wrap a connection that didn't come from the shared pool (e.g. one set up by a benchmark).
+     * The connection is closed when we're finished with it.
+     * @param conn the connection, with auto commit turned off
+     */
+    public DBConnection(Connection conn) {
+        this(conn, false);
+    }
 
-        // Setup db connection auth
-        Properties connConfig = new Properties();
-        connConfig.setProperty("user", username);
-        connConfig.setProperty("password", password);
+    private DBConnection(Connection conn, boolean replica) {
+        this.conn = conn;
+        this.replica = replica;
+    }
 
+    /**
+     * Borrow a connection for reading only. It comes from the least busy read replica if there are any (DB_REPLICA_URLS),
+     * falling back to the primary if there aren't or none of them can provide a connection.
+     * Replicas can be slightly behind the primary, so reads that are part of a write (or need to see a write
+     * that was just made) should use a normal connection instead.
+     * @return the read only connection
+     */
+    public static DBConnection forRead() {
+        ReplicaPools current = getReplicas();
+        Connection conn = current == null ? null : current.acquire();
+        if (conn == null) {
+            return new DBConnection();
+        }
+        return new DBConnection(conn, true);
+    }
+
+    /**
+     * @return whether the connection is to a read replica
+     */
+    public boolean isReplica() {
+        return this.replica;
+    }
+
+    /**
+     * @return whether records are spread over shards (DB_SHARD_URLS) rather than kept on the primary
+     */
+    public static boolean isSharded() {
+        return !SHARD_URLS.isEmpty();
+    }
+
+    /**
+     * @return the number of shards (0 if the database isn't sharded)
+     */
+    public static int getShardCount() {
+        return SHARD_URLS.size();
+    }
+
+    /**
+     * Get the connection to use for a record. That's the shard the record lives on if the database is sharded,
+     * otherwise this connection. Shard connections are part of this connection: they're committed or rolled back along with it.
+     * @param id the id of the record
+     * @return the connection to use for the record
+     * @throws SQLException if the shard can't provide a connection
+     */
+    public DBConnection forId(UUID id) throws SQLException {
+        if (!isSharded()) {
+            return this;
+        }
+        return forShard(getShards().shardOf(id));
+    }
+
+    /**
+     * Get the connection to a shard, borrowing it the first time it's used
+     * @param shard the shard (0 to getShardCount() - 1)
+     * @return the connection to the shard
+     * @throws SQLException if the shard can't provide a connection
+     */
+    public DBConnection forShard(int shard) throws SQLException {
+        if (this.shardConnections == null) {
+            this.shardConnections = new DBConnection[getShardCount()];
+        }
+        if (this.shardConnections[shard] == null) {
+            this.shardConnections[shard] = new DBConnection(getShards().acquire(shard), false);
+        }
+        return this.shardConnections[shard];
+    }
+
+    /**
+     * Run the same query on every shard at once
+     * @param sql raw sql string of the query
+     * @param streaming true to stream the results of each shard (see prepareStreamingStatement)
+     * @param binder sets the bind values of each shard's statement
+     * @return the results of each shard, in shard order
+     * @throws SQLException if the query fails on any of the shards
+     */
+    public List<ResultSet> queryShards(String sql, boolean streaming, StatementBinder binder) throws SQLException {
+        // Prepare every statement here, then run them in parallel (each on its own connection)
+        List<Future<ResultSet>> results = new ArrayList<>();
+        for (int i = 0; i < getShardCount(); i++) {
+            DBConnection shard = forShard(i);
+            PreparedStatement stmt = streaming ? shard.prepareStreamingStatement(sql) : shard.prepareStatement(sql);
+            binder.bind(stmt);
+            results.add(getShards().getQueryExecutor().submit(() -> shard.query(stmt)));
+        }
+
+        List<ResultSet> resultSets = new ArrayList<>(results.size());
         try {
-            // Establish a connection to the database
-            this.conn = DriverManager.getConnection(connectionUrl, connConfig);
+            for (Future<ResultSet> result : results) {
+                resultSets.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw new SQLException("Query failed on a shard", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying the shards", e);
+        }
+        return resultSets;
+    }
 
-            // Turn off auto commit so that we can manage the commit/rollback manually
-            this.conn.setAutoCommit(false);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    /**
+     * Get the shared connection pool, creating it using the provided authentication and connection details if needed
+     * @return the shared connection pool
+     */
+    static ConnectionPool getPool() {
+        ConnectionPool current = pool;
+        if (current == null) {
+            synchronized (DBConnection.class) {
+                current = pool;
+                if (current == null) {
+                    // Use environment variables if they're available
+                    String username = Env.getString("DB_USER", "*YOUR USERNAME*");
+                    String password = Env.getString("DB_PASSWORD", "*YOUR PASSWORD*");
+                    String connectionUrl = Env.getString("DB_CONNECTION_URL", "*YOUR CONNECTION URL*");
+
+                    current = new ConnectionPool("thinkon-primary", connectionUrl, username, password);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Get the read replica pools, creating them if needed
+     * @return the replica pools, or null if there are no replicas
+     */
+    static ReplicaPools getReplicas() {
+        List<String> urls = REPLICA_URLS;
+        if (urls.isEmpty()) {
+            return null;
+        }
+
+        ReplicaPools current = replicas;
+        if (current == null) {
+            synchronized (DBConnection.class) {
+                current = replicas;
+                if (current == null) {
+                    // Replicas use the same credentials as the primary
+                    String username = Env.getString("DB_USER", "*YOUR USERNAME*");
+                    String password = Env.getString("DB_PASSWORD", "*YOUR PASSWORD*");
+
+                    current = new ReplicaPools(urls, username, password,
+                            Env.getLong("DB_REPLICA_ACQUIRE_TIMEOUT_MS", 1000), Env.getLong("DB_REPLICA_RETRY_MS", 5000));
+                    replicas = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Get the shards, creating their pools if needed
+     * @return the shards
+     */
+    static ShardMap getShards() {
+        ShardMap current = shards;
+        if (current == null) {
+            synchronized (DBConnection.class) {
+                current = shards;
+                if (current == null) {
+                    // Shards use the same credentials as the primary
+                    String username = Env.getString("DB_USER", "*YOUR USERNAME*");
+                    String password = Env.getString("DB_PASSWORD", "*YOUR PASSWORD*");
+
+                    current = new ShardMap(SHARD_URLS, username, password);
+                    shards = current;
+                }
+            }
         }
+        return current;
+    }
+
+    /**
+     * @return statistics of each shard's connection pool (empty if the database isn't sharded, or no shard has been used)
+     */
+    public static List<PoolStats> getShardPoolStats() {
+        ShardMap current = shards;
+        return current == null ? List.of() : current.getStats();
     }
 
     /**
-     * Close the DB connection. Will perform a transaction commit or rollback depending on the value provided for isSuccess.
+     * @return statistics of each read replica's connection pool (empty if there are no replicas, or none have been used)
+     */
+    public static List<PoolStats> getReplicaPoolStats() {
+        ReplicaPools current = replicas;
+        return current == null ? List.of() : current.getStats();
+    }
+
+    /**
+     * @return statistics of the shared connection pool (empty if no connection has been requested yet)
+     */
+    public static PoolStats getPoolStats() {
+        ConnectionPool current = pool;
+        return current == null ? PoolStats.EMPTY : current.getStats();
+    }
+
+    /**
+     * Finish with the DB connection. Will perform a transaction commit or rollback depending on the value provided for isSuccess,
+     * then hand the connection back to the pool. Calling this more than once does nothing.
+     * Shard connections are committed first, one at a time, so this isn't atomic across shards. A failing shard stops
+     * the rest (including this connection) from being committed.
      * @param isSuccess true will commit the transaction, false will roll it back
      * @throws SQLException
      */
     public void finish(boolean isSuccess) throws SQLException {
-        // Commit changes to DB if successful, otherwise rollback
-        if (isSuccess) {
-            this.conn.commit();
-        } else {
-            this.conn.rollback();
+        if (this.conn == null) {
+            return;
+        }
+
+        boolean committed = false;
+        try {
+            // Close anything still open on the connection before ending the transaction
+            closeStatements();
+
+            // Commit changes to DB if successful, otherwise rollback
+            if (isSuccess) {
+                commitShards();
+                this.conn.commit();
+                committed = true;
+            } else {
+                this.conn.rollback();
+            }
+        } finally {
+            // Roll back (and return) any shard connection that wasn't committed
+            finishShards();
+
+            // Return the connection to the pool
+            this.conn.close();
+            this.conn = null;
+
+            runCallbacks(committed);
         }
+    }
+
+    /**
+     * Commit the current transaction but keep the connection, so it can be used for another transaction.
+     * Statements created so far are closed.
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+        closeStatements();
+        if (this.shardConnections != null) {
+            for (DBConnection shard : this.shardConnections) {
+                if (shard != null) {
+                    shard.commit();
+                }
+            }
+        }
+        this.conn.commit();
+        runCallbacks(true);
+    }
+
+    /**
+     * Mark a point in the current transaction that can be rolled back to without losing the rest of the transaction
+     * @return the new savepoint
+     * @throws SQLException
+     */
+    public Savepoint setSavepoint() throws SQLException {
+        return this.conn.setSavepoint();
+    }
 
-        // Close the connection to the DB
-        this.conn.close();
+    /**
+     * Undo everything done in the current transaction since the savepoint was set
+     * @param savepoint the savepoint to roll back to
+     * @throws SQLException
+     */
+    public void rollback(Savepoint savepoint) throws SQLException {
+        this.conn.rollback(savepoint);
+    }
+
+    /**
+     * Release a savepoint that's no longer needed
+     * @param savepoint the savepoint to release
+     * @throws SQLException
+     */
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        this.conn.releaseSavepoint(savepoint);
+    }
+
+    /**
+     * Register a callback to run once the transaction is finished (whether it was committed or rolled back)
+     * If the transaction is committed with commit(), the callback runs then.
+     * @param callback the callback to run, told whether the transaction was committed
+     */
+    public void afterFinish(TransactionCallback callback) {
+        this.callbacks.add(callback);
+    }
+
+    /**
+     * Roll back and return the connection to the pool if finish wasn't called (e.g. an exception was thrown)
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        finish(false);
     }
 
     /**
@@ -56,8 +388,32 @@ public class DBConnection {
      * @throws SQLException
      */
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        // Create a new prepared statement
-        return this.conn.prepareStatement(sql);
+        // Create a new prepared statement, keeping track of it so it gets closed when we're finished
+        long start = System.nanoTime();
+        PreparedStatement stmt = this.conn.prepareStatement(sql);
+        PREPARE_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        this.statements.put(stmt, sql);
+        return stmt;
+    }
+
+    /**
+     * Create a prepared statement whose results are streamed from the database as they're read,
+     * rather than the whole result set being buffered in memory first.
+     * Nothing else can be ran on the connection until the results have been read (or the statement closed).
+     * @param sql raw sql string used to build the foundation of the prepared statement
+     * @return the newly created prepared statement
+     * @throws SQLException
+     */
+    public PreparedStatement prepareStreamingStatement(String sql) throws SQLException {
+        // A forward only cursor with a fetch size makes the driver fetch rows in chunks instead of all at once
+        long start = System.nanoTime();
+        PreparedStatement stmt = this.conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        PREPARE_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        stmt.setFetchSize(STREAMING_FETCH_SIZE);
+        this.statements.put(stmt, sql);
+        return stmt;
     }
 
     /**
@@ -68,6 +424,147 @@ public class DBConnection {
      */
     public ResultSet query(PreparedStatement query) throws SQLException {
         // Execute the query and retrieve the result set
-        return query.executeQuery();
+        long start = System.nanoTime();
+        try {
+            return query.executeQuery();
+        } finally {
+            recordStatement(QUERY_TIMER, query, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Run the provided prepared statement (an insert, update or delete) and return the number of records it matched.
+     * @param statement the prepared statement that will be ran against the db
+     * @return number of records matched by the statement
+     * @throws SQLException
+     */
+    public int execute(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        } finally {
+            recordStatement(UPDATE_TIMER, statement, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record how long a statement took to run, logging it if it was slow
+     * @param timer the timer for the kind of statement
+     * @param statement the statement that was ran
+     * @param elapsedNanos how long the statement took
+     */
+    private void recordStatement(Timer timer, Statement statement, long elapsedNanos) {
+        timer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+        if (SLOW_QUERY_NANOS >= 0 && elapsedNanos >= SLOW_QUERY_NANOS) {
+            String sql = this.statements.getOrDefault(statement, "(unknown)");
+            LOG.warn("Slow query ({} ms, {} bind values): {}", TimeUnit.NANOSECONDS.toMillis(elapsedNanos), countBinds(sql), sql);
+        }
+    }
+
+    /**
+     * @param sql raw sql string of a prepared statement
+     * @return the number of bind values (placeholders) in the sql
+     */
+    private static int countBinds(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param type kind of statement work being timed (prepare, query or update)
+     * @return the timer for that kind of work
+     */
+    private static Timer statementTimer(String type) {
+        return Timer.builder("thinkon.db.statement")
+                .description("Time taken to prepare or run statements")
+                .tag("type", type)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Run the registered transaction callbacks. A failing callback doesn't stop the others from running.
+     * @param committed whether the transaction was committed
+     */
+    private void runCallbacks(boolean committed) {
+        for (TransactionCallback callback : this.callbacks) {
+            try {
+                callback.finished(committed);
+            } catch (RuntimeException e) {
+                LOG.error("Transaction callback failed", e);
+            }
+        }
+        this.callbacks.clear();
+    }
+
+    /**
+     * Commit every shard connection (they're returned to their pools by finishShards)
+     * @throws SQLException
+     */
+    private void commitShards() throws SQLException {
+        if (this.shardConnections == null) {
+            return;
+        }
+        for (DBConnection shard : this.shardConnections) {
+            if (shard != null) {
+                shard.finish(true);
+            }
+        }
+    }
+
+    /**
+     * Roll back any shard connection that's still open and return them all to their pools
+     */
+    private void finishShards() {
+        if (this.shardConnections == null) {
+            return;
+        }
+        for (DBConnection shard : this.shardConnections) {
+            if (shard == null) {
+                continue;
+            }
+            try {
+                shard.finish(false);
+            } catch (SQLException e) {
+                LOG.warn("Unable to roll back a shard connection", e);
+            }
+        }
+        this.shardConnections = null;
+    }
+
+    /**
+     * Close every statement (and their result sets) created on this connection
+     */
+    private void closeStatements() {
+        for (Statement stmt : this.statements.keySet()) {
+            try {
+                stmt.close();
+            } catch (SQLException ignored) {
+                // Nothing useful to do here, the connection is being reset either way
+            }
+        }
+        this.statements.clear();
+    }
+
+    /**
+     * Sets the bind values of a statement
+     */
+    @FunctionalInterface
+    public interface StatementBinder {
+        void bind(PreparedStatement stmt) throws SQLException;
+    }
+
+    /**
+     * Work to be done once a transaction has been committed or rolled back
+     */
+    @FunctionalInterface
+    public interface TransactionCallback {
+        void finished(boolean committed);
     }
 }
@@ -0,0 +1,20 @@
+package tech.simard.thinkon.db;
+
+/**
+ * Point-in-time statistics of a connection pool
+ * @param active connections currently borrowed by callers
+ * @param idle connections sitting in the pool ready to be borrowed
+ * @param total all connections (active + idle) currently opened by the pool
+ * @param waiting threads blocked waiting for a connection
+ * @param acquireCount number of successful connection acquisitions
+ * @param acquireFailures number of acquisitions that timed out or failed
+ * @param meanAcquireMillis average time spent waiting for a connection
+ * @param maxAcquireMillis longest time spent waiting for a connection
+ */
+public record PoolStats(int active, int idle, int total, int waiting, long acquireCount, long acquireFailures,
+                        double meanAcquireMillis, double maxAcquireMillis) {
+    /**
+     * Statistics reported before a pool has been started
+     */
+    public static final PoolStats EMPTY = new PoolStats(0, 0, 0, 0, 0, 0, 0, 0);
+}
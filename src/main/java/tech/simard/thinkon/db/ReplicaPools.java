@@ -0,0 +1,130 @@
+package tech.simard.thinkon.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Connection pools for the read replicas of the database.
+ * Connections are borrowed from the least busy healthy replica (ties are broken round-robin).
+ * A replica that can't hand out a connection is left alone for a while, and the caller falls back to the primary.
+ */
+final class ReplicaPools implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaPools.class);
+
+    private final List<ConnectionPool> pools;
+    private final List<String> names;
+    private final long retryNanos;
+
+    // When each replica can be tried again after failing (0 if it's healthy)
+    private final AtomicLongArray unhealthyUntil;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Create a pool for each replica
+     * @param connectionUrls jdbc urls of the replicas
+     * @param username database username
+     * @param password database password
+     * @param acquireTimeoutMillis how long to wait for a connection from a replica before falling back to the primary
+     * @param retryMillis how long a failed replica is left alone before it's tried again
+     */
+    ReplicaPools(List<String> connectionUrls, String username, String password, long acquireTimeoutMillis, long retryMillis) {
+        this(createPools(connectionUrls, username, password, acquireTimeoutMillis), retryMillis);
+    }
+
+    /**
+     * Use pools that have already been created (e.g. by a test)
+     * @param pools the pool of each replica
+     * @param retryMillis how long a failed replica is left alone before it's tried again
+     */
+    ReplicaPools(List<ConnectionPool> pools, long retryMillis) {
+        this.pools = pools;
+        this.names = new ArrayList<>();
+        for (int i = 0; i < pools.size(); i++) {
+            this.names.add(name(i));
+        }
+        this.retryNanos = retryMillis * 1_000_000;
+        this.unhealthyUntil = new AtomicLongArray(pools.size());
+    }
+
+    /**
+     * Borrow a connection from the least busy healthy replica
+     * @return a connection with auto commit turned off, or null if no replica could provide one
+     */
+    Connection acquire() {
+        // Try the replicas from least to most busy, skipping the ones that recently failed
+        boolean[] tried = new boolean[this.pools.size()];
+        for (int attempt = 0; attempt < this.pools.size(); attempt++) {
+            int replica = leastBusy(tried);
+            if (replica < 0) {
+                return null;
+            }
+            tried[replica] = true;
+
+            try {
+                Connection conn = this.pools.get(replica).acquire();
+                this.unhealthyUntil.set(replica, 0);
+                return conn;
+            } catch (SQLException e) {
+                if (this.unhealthyUntil.getAndSet(replica, System.nanoTime() + this.retryNanos) == 0) {
+                    LOG.warn("Replica {} is unavailable, reads will go elsewhere for a while", this.names.get(replica), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the current statistics of each replica's pool
+     */
+    List<PoolStats> getStats() {
+        return this.pools.stream().map(ConnectionPool::getStats).toList();
+    }
+
+    /**
+     * Close every replica's pool
+     */
+    @Override
+    public void close() {
+        this.pools.forEach(ConnectionPool::close);
+    }
+
+    private static List<ConnectionPool> createPools(List<String> connectionUrls, String username, String password, long acquireTimeoutMillis) {
+        List<ConnectionPool> pools = new ArrayList<>();
+        for (int i = 0; i < connectionUrls.size(); i++) {
+            pools.add(new ConnectionPool(name(i), connectionUrls.get(i), username, password, acquireTimeoutMillis, false));
+        }
+        return pools;
+    }
+
+    private static String name(int replica) {
+        return String.format("thinkon-replica-%d", replica + 1);
+    }
+
+    private int leastBusy(boolean[] tried) {
+        long now = System.nanoTime();
+        int start = Math.floorMod(this.next.getAndIncrement(), this.pools.size());
+        int best = -1;
+        int bestActive = Integer.MAX_VALUE;
+        for (int i = 0; i < this.pools.size(); i++) {
+            int replica = (start + i) % this.pools.size();
+            long until = this.unhealthyUntil.get(replica);
+            if (tried[replica] || (until != 0 && until - now > 0)) {
+                continue;
+            }
+
+            int active = this.pools.get(replica).getStats().active();
+            if (active < bestActive) {
+                best = replica;
+                bestActive = active;
+            }
+        }
+        return best;
+    }
+}
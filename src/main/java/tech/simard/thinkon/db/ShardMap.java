@@ -0,0 +1,113 @@
+package tech.simard.thinkon.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection pools for the shards of the database, and where each record lives.
+ * A record lives on the shard picked by a hash of its id, so the shard of a record is known from its id alone.
+ * The hash depends on the number of shards: adding or removing a shard moves most records, so existing data has to be
+ * moved to match before the application is started with a different shard list.
+ */
+final class ShardMap implements AutoCloseable {
+    private final List<ConnectionPool> pools;
+
+    // Runs the queries sent to every shard at once
+    private final ExecutorService queries;
+
+    /**
+     * Create a pool for each shard
+     * @param connectionUrls jdbc urls of the shards, in shard order (the order must never change)
+     * @param username database username
+     * @param password database password
+     */
+    ShardMap(List<String> connectionUrls, String username, String password) {
+        this.pools = new ArrayList<>();
+        for (int i = 0; i < connectionUrls.size(); i++) {
+            this.pools.add(new ConnectionPool(String.format("thinkon-shard-%d", i + 1), connectionUrls.get(i), username, password));
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        this.queries = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, String.format("thinkon-shard-query-%d", count.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the number of shards
+     */
+    int size() {
+        return this.pools.size();
+    }
+
+    /**
+     * @param id the id of a record
+     * @return the shard the record lives on
+     */
+    int shardOf(UUID id) {
+        return shardOf(id, this.pools.size());
+    }
+
+    /**
+     * @param id the id of a record
+     * @param shards the number of shards
+     * @return the shard the record lives on when there are that many shards
+     */
+    static int shardOf(UUID id, int shards) {
+        return Math.floorMod(mix(id.getMostSignificantBits() ^ id.getLeastSignificantBits()), shards);
+    }
+
+    /**
+     * Borrow a connection to a shard
+     * @param shard the shard
+     * @return a connection with auto commit turned off
+     * @throws SQLException if the shard's pool can't provide one in time
+     */
+    Connection acquire(int shard) throws SQLException {
+        return this.pools.get(shard).acquire();
+    }
+
+    /**
+     * @return the executor running queries sent to every shard
+     */
+    ExecutorService getQueryExecutor() {
+        return this.queries;
+    }
+
+    /**
+     * @return the current statistics of each shard's pool
+     */
+    List<PoolStats> getStats() {
+        return this.pools.stream().map(ConnectionPool::getStats).toList();
+    }
+
+    /**
+     * Close every shard's pool
+     */
+    @Override
+    public void close() {
+        this.queries.shutdownNow();
+        this.pools.forEach(ConnectionPool::close);
+    }
+
+    /**
+     * Spread the bits of a value (the 64 bit finalizer of MurmurHash3), so ids that only differ in a few bits
+     * (e.g. time based ones created close together) still land on different shards
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
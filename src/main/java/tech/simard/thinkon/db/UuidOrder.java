@@ -0,0 +1,62 @@
+package tech.simard.thinkon.db;
+
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * Orders UUIDs the way MariaDB's uuid type does, so results ordered by id on different shards can be merged.
+ * MariaDB stores standard UUIDs (version 1 to 5) with their groups in reverse order (node, clock sequence, time high,
+ * time mid, time low) and compares them byte by byte, which isn't the order of UUID.compareTo. Other UUIDs are compared as is.
+ */
+public final class UuidOrder {
+    public static final Comparator<UUID> COMPARATOR = UuidOrder::compare;
+
+    private UuidOrder() {
+    }
+
+    /**
+     * Compare two UUIDs in MariaDB's order
+     * @param a a UUID
+     * @param b another UUID
+     * @return a negative number, zero or a positive number as a sorts before, with or after b
+     */
+    public static int compare(UUID a, UUID b) {
+        byte[] first = storageBytes(a);
+        byte[] second = storageBytes(b);
+        for (int i = 0; i < first.length; i++) {
+            int difference = Byte.toUnsignedInt(first[i]) - Byte.toUnsignedInt(second[i]);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param uuid a UUID
+     * @return the bytes of the UUID in the order MariaDB compares them
+     */
+    private static byte[] storageBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (msb >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (lsb >>> (56 - i * 8));
+        }
+
+        // Only UUIDs with a version of 1 to 5 and the standard variant have their groups swapped
+        boolean swapped = bytes[6] > 0 && bytes[6] < 0x60 && (bytes[8] & 0x80) != 0;
+        if (!swapped) {
+            return bytes;
+        }
+
+        byte[] swappedBytes = new byte[16];
+        System.arraycopy(bytes, 10, swappedBytes, 0, 6);  // node
+        System.arraycopy(bytes, 8, swappedBytes, 6, 2);   // clock sequence
+        System.arraycopy(bytes, 6, swappedBytes, 8, 2);   // time high and version
+        System.arraycopy(bytes, 4, swappedBytes, 10, 2);  // time mid
+        System.arraycopy(bytes, 0, swappedBytes, 12, 4);  // time low
+        return swappedBytes;
+    }
+}
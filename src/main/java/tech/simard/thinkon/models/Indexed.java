@@ -0,0 +1,20 @@
+package tech.simard.thinkon.models;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a DB field whose column has an index in the database (e.g. a unique key).
+ * Only indexed fields can be used to filter records, so a filter never turns into a full table scan.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+    /**
+     * @return whether no two records can have the same value. A unique key in a single database is enough for that,
+     * but when records are spread over shards the values are also claimed in the unique_key table of the primary.
+     */
+    boolean unique() default false;
+}
@@ -0,0 +1,16 @@
+package tech.simard.thinkon.models;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the DB field holding the version of a record (a Long). The version starts at the column's default when a record
+ * is created and goes up by one every time the record is changed, so it can be used to tell whether a record has changed
+ * (ETags) and to make sure nobody else changed it first (If-Match). Clients can't set it themselves.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface RowVersion {
+}
@@ -12,6 +12,7 @@ public class User extends DBTable {
     @JsonProperty("id")
     public UUID id;
 
+    @Indexed(unique = true)
     @JsonProperty("username")
     public String username;
 
@@ -21,12 +22,17 @@ public class User extends DBTable {
     @JsonProperty("lastname")
     public String lastname;
 
+    @Indexed(unique = true)
     @JsonProperty("email")
     public String email;
 
     @JsonProperty("phone")
     public String phone;
 
+    @RowVersion
+    @JsonProperty("version")
+    public Long version;
+
     public User(UUID id, String username, String firstname, String lastname, String email, String phone) {
         this.id = id;
         this.username = username;
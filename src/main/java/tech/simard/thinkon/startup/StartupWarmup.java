@@ -0,0 +1,71 @@
+package tech.simard.thinkon.startup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+import tech.simard.thinkon.accessors.ModelAccessor;
+import tech.simard.thinkon.accessors.ModelRegistry;
+import tech.simard.thinkon.config.Env;
+import tech.simard.thinkon.db.DBConnection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets the slow parts of the first requests out of the way while the application starts, so a new instance doesn't
+ * serve its first requests slowly: the connection pools are opened, each accessor compiles its row mapper and
+ * JSON writer (see ModelAccessor.warmUp), and Jackson builds the (de)serializers of the model classes.
+ * <p>
+ * This runs before the application reports itself ready (ApplicationRunners run before the readiness state changes),
+ * so a load balancer following the readiness probe only sends traffic once it's done. A warm up that fails is logged
+ * and startup carries on, the first requests are just slower (and fail the same way if the database is down).
+ * Turned off with STARTUP_WARMUP=false.
+ */
+@Component
+public class StartupWarmup implements ApplicationRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final ModelRegistry modelRegistry;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+
+    public StartupWarmup(ModelRegistry modelRegistry, ObjectMapper objectMapper) {
+        this.modelRegistry = modelRegistry;
+        this.objectMapper = objectMapper;
+        this.enabled = Env.getBoolean("STARTUP_WARMUP", true);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!this.enabled) {
+            return;
+        }
+
+        long startedAt = System.nanoTime();
+        try {
+            // Borrowing connections opens the pools (of the primary, and of the shards if there are any)
+            // Reads go to the replicas, which have pools of their own
+            try (DBConnection db = new DBConnection()) {
+                for (ModelAccessor accessor : this.modelRegistry.getAccessors()) {
+                    accessor.warmUp(db);
+                }
+                db.finish(true);
+            }
+            try (DBConnection db = DBConnection.forRead()) {
+                db.finish(true);
+            }
+
+            // Write and read back an empty instance of each model class
+            for (ModelAccessor accessor : this.modelRegistry.getAccessors()) {
+                Class<?> cls = accessor.getModelClass();
+                this.objectMapper.readValue(this.objectMapper.writeValueAsBytes(cls.getDeclaredConstructor().newInstance()), cls);
+            }
+
+            LOG.info("Warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        } catch (Exception e) {
+            LOG.warn("Warm up failed, the first requests will be slower", e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package tech.simard.thinkon.startup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import tech.simard.thinkon.ThinkonApplication;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Training run for the class data sharing (CDS) archive of the fast startup build (see the cdsArchive Gradle task).
+ * Starts the application, then calls every /users endpoint a few times through HTTP, so the classes they load
+ * (controllers, Jackson, the MariaDB driver, the accessors...) end up in the archive, then the application exits.
+ * The JVM writes the archive as it exits. The users it creates are deleted again.
+ * <p>
+ * This is a main of its own (launched instead of ThinkonApplication), not a bean, so the application never has it:
+ * a bean that's only registered for the training run wouldn't be there at all with the AOT processed context, whose
+ * beans are decided when the jar is built. The JVM exits with 1 if a request fails, so a broken training run fails
+ * the build rather than leaving a half trained archive.
+ */
+public final class TrainingRun {
+    private static final Logger LOG = LoggerFactory.getLogger(TrainingRun.class);
+
+    // Each endpoint is called this many times, enough for the classes loaded on later calls (e.g. cached paths) to be seen
+    private static final int ITERATIONS = 3;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ConfigurableApplicationContext context;
+    private final ObjectMapper objectMapper;
+
+    private TrainingRun(ConfigurableApplicationContext context, ObjectMapper objectMapper) {
+        this.context = context;
+        this.objectMapper = objectMapper;
+    }
+
+    public static void main(String[] args) {
+        // The AOT processed context is found through the main class, which would otherwise be taken to be this one
+        // The application is ready (and listening) once run returns
+        SpringApplication application = new SpringApplication(ThinkonApplication.class);
+        application.setMainApplicationClass(ThinkonApplication.class);
+        ConfigurableApplicationContext context = application.run(args);
+        int exitCode = new TrainingRun(context, context.getBean(ObjectMapper.class)).run();
+        System.exit(SpringApplication.exit(context, () -> exitCode));
+    }
+
+    /**
+     * Call every endpoint a few times
+     * @return the exit code, 0 if every request succeeded
+     */
+    private int run() {
+        int exitCode = 0;
+        try {
+            String baseUrl = String.format("http://localhost:%s", this.context.getEnvironment().getProperty("local.server.port"));
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            for (int i = 0; i < ITERATIONS; i++) {
+                exercise(client, baseUrl, i);
+            }
+            LOG.info("Training run done");
+        } catch (Exception e) {
+            LOG.error("Training run failed", e);
+            exitCode = 1;
+        }
+        return exitCode;
+    }
+
+    /**
+     * Call each endpoint once, on a user created for the purpose
+     * @param client the HTTP client requests are sent with
+     * @param baseUrl where the application is listening
+     * @param iteration the number of the iteration, which makes the usernames and emails unique
+     * @throws IOException if a request fails or gets an error status
+     * @throws InterruptedException if interrupted while waiting for a response
+     */
+    private void exercise(HttpClient client, String baseUrl, int iteration) throws IOException, InterruptedException {
+        String name = String.format("training%d-%d", System.currentTimeMillis(), iteration);
+        String created = send(client, json(baseUrl + "/users").POST(HttpRequest.BodyPublishers.ofString(newUser(name, "Training"))));
+        String id = this.objectMapper.readTree(created).path("id").asText();
+
+        send(client, request(baseUrl + "/users/" + id).GET());
+        send(client, request(baseUrl + "/users/" + id + "?fields=username,email").GET());
+        send(client, request(baseUrl + "/users?limit=10").GET());
+        send(client, request(baseUrl + "/users?limit=10&username_prefix=training").GET());
+        send(client, json(baseUrl + "/users/lookup").POST(HttpRequest.BodyPublishers.ofString(String.format("[\"%s\"]", id))));
+        send(client, json(baseUrl + "/users/" + id).method("PATCH", HttpRequest.BodyPublishers.ofString("{\"lastname\":\"Patched\"}")));
+        send(client, json(baseUrl + "/users/" + id).PUT(HttpRequest.BodyPublishers.ofString(newUser(name, "Updated"))));
+        send(client, request(baseUrl + "/users/" + id).DELETE());
+    }
+
+    private String send(HttpClient client, HttpRequest.Builder request) throws IOException, InterruptedException {
+        HttpRequest built = request.build();
+        HttpResponse<String> response = client.send(built, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(String.format("%s %s got %d: %s", built.method(), built.uri(), response.statusCode(), response.body()));
+        }
+        return response.body();
+    }
+
+    private HttpRequest.Builder request(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(REQUEST_TIMEOUT);
+    }
+
+    private HttpRequest.Builder json(String url) {
+        return request(url).header("Content-Type", "application/json");
+    }
+
+    private String newUser(String name, String lastname) throws IOException {
+        return this.objectMapper.writeValueAsString(Map.of(
+                "username", name,
+                "firstname", "Training",
+                "lastname", lastname,
+                "email", name + "@example.com",
+                "phone", "555-0100"));
+    }
+}
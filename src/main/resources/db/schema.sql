@@ -0,0 +1,26 @@
+CREATE TABLE `user` (
+	id uuid DEFAULT SYS_GUID() NOT NULL,
+	username varchar(100) NOT NULL,
+	firstname varchar(100) NOT NULL,
+	lastname varchar(100) NOT NULL,
+	email varchar(100) NOT NULL,
+	phone varchar(100) DEFAULT "" NOT NULL,
+	version bigint DEFAULT 1 NOT NULL,
+	CONSTRAINT user_pk PRIMARY KEY (id),
+	CONSTRAINT user_unique UNIQUE KEY (username),
+	CONSTRAINT user_unique_1 UNIQUE KEY (email)
+)
+ENGINE=InnoDB
+DEFAULT CHARSET=utf8mb4;
+
+-- Only used when records are spread over shards (DB_SHARD_URLS), lives on the primary
+-- Claims the values of unique fields, so two records on different shards can't have the same value
+CREATE TABLE `unique_key` (
+	table_name varchar(64) NOT NULL,
+	column_name varchar(64) NOT NULL,
+	value varchar(255) NOT NULL,
+	id uuid NOT NULL,
+	CONSTRAINT unique_key_pk PRIMARY KEY (table_name, column_name, value)
+)
+ENGINE=InnoDB
+DEFAULT CHARSET=utf8mb4;
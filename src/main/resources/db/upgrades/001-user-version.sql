@@ -0,0 +1,3 @@
+-- Adds the row version used for ETags and conditional requests to a database created before it existed
+-- Existing users start at version 1, like new ones. Safe to run more than once.
+ALTER TABLE `user` ADD COLUMN IF NOT EXISTS version bigint DEFAULT 1 NOT NULL;
@@ -3,7 +3,8 @@ package tech.simard.thinkon;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+// There's no database to check the models against here
+@SpringBootTest(properties = "DB_VALIDATE_SCHEMA=false")
 class ThinkonApplicationTests {
 
 	@Test
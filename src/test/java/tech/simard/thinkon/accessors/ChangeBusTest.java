@@ -0,0 +1,127 @@
+package tech.simard.thinkon.accessors;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeBusTest {
+    private static List<Long> sequences(List<ChangeEvent> events) {
+        return events.stream().map(ChangeEvent::sequence).toList();
+    }
+
+    private static void publish(ChangeBus changes, int count) {
+        for (int i = 0; i < count; i++) {
+            changes.publish(ChangeEvent.Type.CREATED, UUID.randomUUID(), null);
+        }
+    }
+
+    @Test
+    void pollReturnsChangesAfterSequence() throws InterruptedException {
+        ChangeBus changes = new ChangeBus("test", 8);
+        UUID id = UUID.randomUUID();
+        changes.publish(ChangeEvent.Type.CREATED, id, null);
+        changes.publish(ChangeEvent.Type.UPDATED, id, null);
+        changes.publish(ChangeEvent.Type.DELETED, id, null);
+
+        assertEquals(3, changes.getLatestSequence());
+        List<ChangeEvent> events = changes.poll(1, 10, 0);
+        assertEquals(List.of(2L, 3L), sequences(events));
+        assertEquals(ChangeEvent.Type.UPDATED, events.get(0).type());
+        assertEquals(id, events.get(1).id());
+    }
+
+    @Test
+    void pollReturnsAtMostMax() throws InterruptedException {
+        ChangeBus changes = new ChangeBus("test", 8);
+        publish(changes, 5);
+
+        assertEquals(List.of(1L, 2L), sequences(changes.poll(0, 2, 0)));
+    }
+
+    @Test
+    void pollWithoutChangesReturnsEmpty() throws InterruptedException {
+        ChangeBus changes = new ChangeBus("test", 8);
+        publish(changes, 2);
+
+        assertEquals(List.of(), changes.poll(2, 10, 0));
+        assertEquals(List.of(), changes.poll(2, 10, 10));
+    }
+
+    @Test
+    void keepsLatestChangesWhenBufferWraps() throws InterruptedException {
+        ChangeBus changes = new ChangeBus("test", 4);
+        publish(changes, 10);
+
+        // The last 4 changes are kept, a follower that saw change 6 can still catch up
+        assertEquals(List.of(7L, 8L, 9L, 10L), sequences(changes.poll(6, 10, 0)));
+        assertEquals(List.of(9L, 10L), sequences(changes.poll(8, 10, 0)));
+    }
+
+    @Test
+    void followerTooFarBehindMustResync() throws InterruptedException {
+        ChangeBus changes = new ChangeBus("test", 4);
+        publish(changes, 10);
+
+        // Change 6 was overwritten by change 10
+        assertNull(changes.poll(5, 10, 0));
+    }
+
+    @Test
+    void sequenceFromBeforeRestartMustResync() throws InterruptedException {
+        ChangeBus changes = new ChangeBus("test", 4);
+        publish(changes, 2);
+
+        assertNull(changes.poll(3, 10, 0));
+        assertNull(changes.poll(-1, 10, 0));
+    }
+
+    @Test
+    void pollWaitsForChange() throws Exception {
+        ChangeBus changes = new ChangeBus("test", 4);
+        CompletableFuture<List<ChangeEvent>> polled = CompletableFuture.supplyAsync(() -> {
+            try {
+                return changes.poll(0, 10, 10000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        Thread.sleep(50);
+        assertFalse(polled.isDone());
+        publish(changes, 1);
+        assertEquals(List.of(1L), sequences(polled.get(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void listenersAreToldAfterPublish() {
+        ChangeBus changes = new ChangeBus("test", 4);
+        AtomicInteger told = new AtomicInteger();
+        Runnable listener = () -> {
+            // The change can already be read when the listener runs
+            try {
+                assertEquals(List.of(told.get() + 1L), sequences(changes.poll(told.get(), 10, 0)));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            told.incrementAndGet();
+        };
+
+        changes.addListener(listener);
+        publish(changes, 2);
+        changes.removeListener(listener);
+        publish(changes, 1);
+
+        assertEquals(2, told.get());
+    }
+
+    @Test
+    void bufferMustKeepAChange() {
+        assertThrows(IllegalArgumentException.class, () -> new ChangeBus("test", 0));
+    }
+}
@@ -0,0 +1,128 @@
+package tech.simard.thinkon.accessors;
+
+import org.junit.jupiter.api.Test;
+import tech.simard.thinkon.models.User;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityCacheTest {
+    private static final ModelMetadata USERS = ModelMetadata.of(User.class);
+
+    private static EntityCache cache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        return new EntityCache(USERS, true, maxSize, ttlMillis, negativeTtlMillis);
+    }
+
+    private static User user(UUID id, String username) {
+        return new User(id, username, "First", "Last", username + "@example.com", "555-0100");
+    }
+
+    @Test
+    void disabledCacheKeepsNothing() {
+        EntityCache cache = new EntityCache(USERS, false, 10, 60000, 5000);
+        UUID id = UUID.randomUUID();
+        cache.put(id, user(id, "someone"), cache.startLoad());
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get(id));
+        assertEquals(0, cache.getStats().size());
+    }
+
+    @Test
+    void handsOutCopies() {
+        EntityCache cache = cache(10, 60000, 5000);
+        UUID id = UUID.randomUUID();
+        User user = user(id, "someone");
+        cache.put(id, user, cache.startLoad());
+
+        // Changing the record that was put, or one that was handed out, doesn't change what's cached
+        user.username = "changed";
+        User cached = (User) cache.get(id).getValue();
+        assertEquals("someone", cached.username);
+        cached.username = "changed";
+        assertEquals("someone", ((User) cache.get(id).getValue()).username);
+        assertEquals(2, cache.getStats().hits());
+    }
+
+    @Test
+    void expiresAfterTtl() throws InterruptedException {
+        EntityCache cache = cache(10, 1, 5000);
+        UUID id = UUID.randomUUID();
+        cache.put(id, user(id, "someone"), cache.startLoad());
+        Thread.sleep(10);
+
+        assertNull(cache.get(id));
+        CacheStats stats = cache.getStats();
+        assertEquals(0, stats.size());
+        assertEquals(1, stats.evictions());
+        assertEquals(1, stats.misses());
+    }
+
+    @Test
+    void remembersMissingRecords() {
+        EntityCache cache = cache(10, 60000, 5000);
+        UUID id = UUID.randomUUID();
+        cache.putMissing(id, cache.startLoad());
+
+        EntityCache.Entry entry = cache.get(id);
+        assertNotNull(entry);
+        assertNull(entry.getValue());
+        assertEquals(1, cache.getStats().negativeHits());
+    }
+
+    @Test
+    void negativeTtlOfZeroTurnsNegativeCachingOff() {
+        EntityCache cache = cache(10, 60000, 0);
+        UUID id = UUID.randomUUID();
+        cache.putMissing(id, cache.startLoad());
+
+        assertNull(cache.get(id));
+    }
+
+    @Test
+    void invalidateRemovesRecord() {
+        EntityCache cache = cache(10, 60000, 5000);
+        UUID id = UUID.randomUUID();
+        cache.put(id, user(id, "someone"), cache.startLoad());
+        cache.invalidate(id);
+
+        assertNull(cache.get(id));
+    }
+
+    @Test
+    void loadStartedBeforeInvalidationIsNotCached() {
+        EntityCache cache = cache(10, 60000, 5000);
+        UUID id = UUID.randomUUID();
+
+        // The record is read, then changed (and invalidated) by someone else before the read is cached
+        long stamp = cache.startLoad();
+        cache.invalidate(id);
+        cache.put(id, user(id, "stale"), stamp);
+        assertNull(cache.get(id));
+
+        // A load started after the invalidation is cached
+        cache.put(id, user(id, "fresh"), cache.startLoad());
+        assertEquals("fresh", ((User) cache.get(id).getValue()).username);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        EntityCache cache = cache(2, 60000, 5000);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        cache.put(first, user(first, "first"), cache.startLoad());
+        cache.put(second, user(second, "second"), cache.startLoad());
+
+        // Reading the first record makes the second one the least recently used
+        assertNotNull(cache.get(first));
+        cache.put(third, user(third, "third"), cache.startLoad());
+
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+        assertEquals(2, cache.getStats().size());
+        assertEquals(1, cache.getStats().evictions());
+    }
+}
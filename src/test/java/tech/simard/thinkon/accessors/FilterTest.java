@@ -0,0 +1,44 @@
+package tech.simard.thinkon.accessors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FilterTest {
+    private final UserAccessor accessor = new UserAccessor();
+
+    @Test
+    void equalityMatchesWholeValue() {
+        Filter filter = this.accessor.filter("email", false, "some_one@example.com");
+
+        assertEquals("email = ?", filter.condition());
+        assertEquals("some_one@example.com", filter.bindValue());
+    }
+
+    @Test
+    void prefixMatchesStartOfValue() {
+        Filter filter = this.accessor.filter("username", true, "som");
+
+        assertEquals("username LIKE ? ESCAPE '!'", filter.condition());
+        assertEquals("som%", filter.bindValue());
+    }
+
+    @Test
+    void prefixEscapesWildcards() {
+        // Wildcards (and the escape character itself) in the prefix are matched literally
+        assertEquals("100!%!_off!!%", this.accessor.filter("username", true, "100%_off!").bindValue());
+        assertEquals("%", this.accessor.filter("username", true, "").bindValue());
+    }
+
+    @Test
+    void rejectsUnknownField() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> this.accessor.filter("nickname", false, "x"));
+        assertEquals("Unknown field nickname", e.getMessage());
+    }
+
+    @Test
+    void rejectsFieldWithoutIndex() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> this.accessor.filter("firstname", true, "x"));
+        assertEquals("Field firstname can't be filtered on", e.getMessage());
+    }
+}
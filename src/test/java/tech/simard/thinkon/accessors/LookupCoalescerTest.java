@@ -0,0 +1,140 @@
+package tech.simard.thinkon.accessors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import tech.simard.thinkon.models.DBTable;
+import tech.simard.thinkon.models.User;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Lookups from several threads at once, against a stubbed query that holds on until the test lets it go
+// (by then the second query has started, so every lookup made while the first one was running is in it)
+class LookupCoalescerTest {
+    private static final UUID FIRST = UUID.randomUUID();
+    private static final UUID SECOND = UUID.randomUUID();
+    private static final UUID THIRD = UUID.randomUUID();
+
+    private final UserAccessor accessor = new UserAccessor();
+    private final ExecutorService callers = Executors.newFixedThreadPool(4);
+
+    // The ids of each query, in the order they were sent
+    private final List<Set<UUID>> queries = new CopyOnWriteArrayList<>();
+    private final List<User> loaded = new CopyOnWriteArrayList<>();
+    private final Semaphore queried = new Semaphore(0);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile RuntimeException failure;
+
+    // Batches wait up to half a second for more lookups, plenty for the ones a test starts together
+    private final LookupCoalescer coalescer = new LookupCoalescer(this.accessor, this::load, 500, 100);
+
+    @AfterEach
+    void stop() {
+        this.release.countDown();
+        this.callers.shutdownNow();
+    }
+
+    @Test
+    void concurrentLookupsShareOneQueryPerBatch() throws Exception {
+        // The first lookup is sent straight away, and holds the query up
+        CompletableFuture<DBTable> first = lookup(FIRST);
+        assertTrue(this.queried.tryAcquire(5, TimeUnit.SECONDS));
+
+        // These arrive while it's running, so they're sent together once the window is over
+        List<CompletableFuture<DBTable>> batched = List.of(lookup(SECOND), lookup(SECOND), lookup(THIRD));
+        assertTrue(this.queried.tryAcquire(5, TimeUnit.SECONDS));
+        this.release.countDown();
+
+        assertEquals(FIRST, ((User) first.get(5, TimeUnit.SECONDS)).id);
+        User second = (User) batched.get(0).get(5, TimeUnit.SECONDS);
+        User again = (User) batched.get(1).get(5, TimeUnit.SECONDS);
+        User third = (User) batched.get(2).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(Set.of(FIRST), Set.of(SECOND, THIRD)), this.queries);
+        assertEquals(SECOND, second.id);
+        assertEquals(THIRD, third.id);
+
+        // Callers sharing a lookup each get their own copy, and none of them is the record the query returned
+        assertEquals(SECOND, again.id);
+        assertNotSame(second, again);
+        for (User record : this.loaded) {
+            assertNotSame(record, second);
+            assertNotSame(record, again);
+        }
+        second.lastname = "Changed";
+        assertEquals("One", again.lastname);
+    }
+
+    @Test
+    void missingRecordIsNull() throws Exception {
+        this.release.countDown();
+        UUID missing = UUID.randomUUID();
+
+        assertNull(this.coalescer.get(missing));
+        assertEquals(List.of(Set.of(missing)), this.queries);
+    }
+
+    @Test
+    void failureReachesEveryWaiter() throws Exception {
+        this.failure = new IllegalStateException("The database is down");
+        CompletableFuture<DBTable> first = lookup(FIRST);
+        assertTrue(this.queried.tryAcquire(5, TimeUnit.SECONDS));
+        List<CompletableFuture<DBTable>> batched = List.of(lookup(SECOND), lookup(SECOND), lookup(THIRD));
+        assertTrue(this.queried.tryAcquire(5, TimeUnit.SECONDS));
+        this.release.countDown();
+
+        for (CompletableFuture<DBTable> lookup : List.of(first, batched.get(0), batched.get(1), batched.get(2))) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> lookup.get(5, TimeUnit.SECONDS));
+            assertSame(this.failure, e.getCause());
+        }
+        assertEquals(2, this.queries.size());
+
+        // Failed lookups aren't shared any more, the next one queries again
+        this.failure = null;
+        assertEquals(SECOND, ((User) this.coalescer.get(SECOND)).id);
+        assertEquals(3, this.queries.size());
+    }
+
+    private CompletableFuture<DBTable> lookup(UUID id) {
+        return CompletableFuture.supplyAsync(() -> this.coalescer.get(id), this.callers);
+    }
+
+    /**
+     * The stubbed query: finds the users it's asked for (except unknown ids), once the test releases it
+     */
+    private Map<UUID, DBTable> load(Collection<UUID> ids) {
+        this.queries.add(Set.copyOf(ids));
+        this.queried.release();
+        try {
+            assertTrue(this.release.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+
+        Map<UUID, DBTable> records = new HashMap<>();
+        for (UUID id : ids) {
+            if (id.equals(FIRST) || id.equals(SECOND) || id.equals(THIRD)) {
+                User user = new User(id, "user-" + id, "Some", "One", id + "@example.com", null);
+                this.loaded.add(user);
+                records.put(id, user);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,274 @@
+package tech.simard.thinkon.accessors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+// Updates against a one row user table behind a mocked JDBC connection, which applies the updates sent to it
+class ModelAccessorUpdateTest {
+    private static final UUID ID = UUID.fromString("123e4567-e89b-12d3-a456-426614174000");
+
+    private final UserAccessor accessor = new UserAccessor();
+    private UserTable table;
+    private DBConnection db;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        User user = new User(ID, "someone", "Some", "One", "someone@example.com", "555-0100");
+        user.version = 3L;
+        this.table = new UserTable(user);
+        this.db = new DBConnection(this.table.connection);
+    }
+
+    private static User sameUser() {
+        return new User(null, "someone", "Some", "One", "someone@example.com", "555-0100");
+    }
+
+    @Test
+    void patchOnlyWritesFieldsInBody() throws SQLException {
+        User incoming = new User(null, "other", "Other", "Two", "other@example.com", null);
+
+        User user = (User) this.accessor.patch(this.db, ID, incoming, List.of("lastname"));
+
+        assertEquals(List.of("UPDATE user SET lastname=?,version=version+1 WHERE id=?"), this.table.updates());
+        assertEquals("Two", this.table.row.get("lastname"));
+        assertEquals("someone", this.table.row.get("username"));
+        assertEquals("555-0100", this.table.row.get("phone"));
+        assertEquals("Two", user.lastname);
+        assertEquals("someone", user.username);
+        assertEquals(4L, user.version);
+    }
+
+    @Test
+    void patchWritesExplicitNull() throws SQLException {
+        User user = (User) this.accessor.patch(this.db, ID, new User(), List.of("phone"), 3L);
+
+        assertEquals(List.of("UPDATE user SET phone=?,version=version+1 WHERE id=?"), this.table.updates());
+        assertNull(this.table.row.get("phone"));
+        assertTrue(this.table.row.containsKey("phone"));
+        assertNull(user.phone);
+        assertEquals(4L, user.version);
+    }
+
+    @Test
+    void putLeavesNullFieldsAlone() throws SQLException {
+        // Unlike PATCH, a PUT only sets the fields that aren't null, and of those only the changed ones are written
+        User incoming = sameUser();
+        incoming.email = "other@example.com";
+        incoming.phone = null;
+
+        User user = (User) this.accessor.update(this.db, ID, incoming);
+
+        assertEquals(List.of("UPDATE user SET email=?,version=version+1 WHERE id=?"), this.table.updates());
+        assertEquals("555-0100", this.table.row.get("phone"));
+        assertEquals("555-0100", user.phone);
+        assertEquals(4L, user.version);
+    }
+
+    @Test
+    void unchangedPatchWithoutVersionDoesNotWrite() throws SQLException {
+        User user = (User) this.accessor.patch(this.db, ID, new User(null, "someone", null, null, null, "555-0100"), List.of("username", "phone"));
+
+        assertEquals(List.of(), this.table.updates());
+        assertEquals(3L, user.version);
+    }
+
+    @Test
+    void unchangedPatchDoesNotWrite() throws SQLException {
+        User incoming = new User();
+        incoming.lastname = "One";
+
+        User user = (User) this.accessor.patch(this.db, ID, incoming, List.of("lastname"), 3L);
+
+        assertEquals(List.of(), this.table.updates());
+        assertEquals(3L, user.version);
+        assertEquals(3L, this.table.row.get("version"));
+    }
+
+    @Test
+    void versionOnlyCountsChangedColumns() throws SQLException {
+        // Of the two fields sent, only one differs: it's the only one written, and the version goes up once
+        User incoming = new User();
+        incoming.firstname = "Some";
+        incoming.lastname = "Two";
+
+        User user = (User) this.accessor.patch(this.db, ID, incoming, List.of("firstname", "lastname"), 3L);
+        User again = (User) this.accessor.patch(this.db, ID, incoming, List.of("firstname", "lastname"), 4L);
+
+        assertEquals(List.of("UPDATE user SET lastname=?,version=version+1 WHERE id=?"), this.table.updates());
+        assertEquals(4L, user.version);
+        assertEquals(4L, again.version);
+        assertEquals(4L, this.table.row.get("version"));
+    }
+
+    @Test
+    void unchangedPutDoesNotWrite() throws SQLException {
+        long published = this.accessor.getChanges().getLatestSequence();
+
+        User user = (User) this.accessor.update(this.db, ID, sameUser());
+        this.db.finish(true);
+
+        // The record is read first (without a version to check), and nothing is different
+        assertEquals(List.of(), this.table.updates());
+        assertEquals(3L, user.version);
+        assertEquals(published, this.accessor.getChanges().getLatestSequence());
+    }
+
+    @Test
+    void unchangedPutWithVersionKeepsVersion() throws SQLException {
+        long published = this.accessor.getChanges().getLatestSequence();
+
+        // Every column is sent with the version the client has, so the statement has to check whether anything differs
+        // The version is what the ETag is made of, so the client's ETag stays valid too
+        User user = (User) this.accessor.update(this.db, ID, sameUser(), 3L);
+        this.db.finish(true);
+
+        assertEquals(1, this.table.updates().size());
+        assertTrue(this.table.updates().get(0).contains(" AND NOT (BINARY username<=>BINARY ? AND "));
+        assertEquals(0, this.table.changed);
+        assertEquals(3L, user.version);
+        assertEquals("someone", user.username);
+        assertEquals(3L, this.table.row.get("version"));
+        assertEquals(published, this.accessor.getChanges().getLatestSequence());
+    }
+
+    @Test
+    void changedPutWithVersionCountsVersionUp() throws SQLException {
+        long published = this.accessor.getChanges().getLatestSequence();
+        User incoming = sameUser();
+        incoming.firstname = "some";
+
+        User user = (User) this.accessor.update(this.db, ID, incoming, 3L);
+        this.db.finish(true);
+
+        assertEquals(1, this.table.changed);
+        assertEquals("some", this.table.row.get("firstname"));
+        assertEquals(4L, user.version);
+        assertEquals(4L, this.table.row.get("version"));
+        assertEquals(published + 1, this.accessor.getChanges().getLatestSequence());
+    }
+
+    @Test
+    void putWithOldVersionConflicts() {
+        assertThrows(VersionConflictException.class, () -> this.accessor.update(this.db, ID, sameUser(), 2L));
+        assertEquals(0, this.table.changed);
+    }
+
+    @Test
+    void putOfMissingRecord() throws SQLException {
+        this.table.row.clear();
+
+        assertNull(this.accessor.update(this.db, ID, sameUser()));
+        assertThrows(VersionConflictException.class, () -> this.accessor.update(this.db, ID, sameUser(), 3L));
+    }
+
+    /**
+     * A table with (at most) one user, behind a mocked JDBC connection.
+     * Selects return the row, and updates are applied to it the way the database would (a row only matches if its id,
+     * its version and any NOT (...) condition all match).
+     */
+    private static final class UserTable {
+        private static final List<String> COLUMNS = List.of("id", "username", "firstname", "lastname", "email", "phone", "version");
+
+        final Map<String, Object> row = new LinkedHashMap<>();
+        final Connection connection = mock(Connection.class);
+        final List<String> statements = new ArrayList<>();
+        int changed;
+
+        UserTable(User user) throws SQLException {
+            Object[] values = {user.id, user.username, user.firstname, user.lastname, user.email, user.phone, user.version};
+            for (int i = 0; i < COLUMNS.size(); i++) {
+                this.row.put(COLUMNS.get(i), values[i]);
+            }
+            when(this.connection.prepareStatement(anyString())).thenAnswer(invocation -> prepare(invocation.getArgument(0)));
+        }
+
+        List<String> updates() {
+            return this.statements.stream().filter(sql -> sql.startsWith("UPDATE")).toList();
+        }
+
+        private PreparedStatement prepare(String sql) throws SQLException {
+            this.statements.add(sql);
+            Map<Integer, Object> params = new HashMap<>();
+            PreparedStatement stmt = mock(PreparedStatement.class);
+            doAnswer(invocation -> params.put(invocation.getArgument(0), invocation.getArgument(1))).when(stmt).setObject(anyInt(), any());
+            doAnswer(invocation -> params.put(invocation.getArgument(0), invocation.getArgument(1))).when(stmt).setLong(anyInt(), anyLong());
+            when(stmt.executeQuery()).thenAnswer(invocation -> select());
+            when(stmt.executeUpdate()).thenAnswer(invocation -> update(sql, params));
+            return stmt;
+        }
+
+        private ResultSet select() throws SQLException {
+            ResultSetMetaData meta = mock(ResultSetMetaData.class);
+            when(meta.getColumnCount()).thenReturn(COLUMNS.size());
+            when(meta.getColumnLabel(anyInt())).thenAnswer(invocation -> COLUMNS.get((int) invocation.getArgument(0) - 1));
+
+            boolean[] remaining = {!this.row.isEmpty()};
+            ResultSet results = mock(ResultSet.class);
+            when(results.getMetaData()).thenReturn(meta);
+            when(results.next()).thenAnswer(invocation -> {
+                boolean next = remaining[0];
+                remaining[0] = false;
+                return next;
+            });
+            when(results.getString(anyInt())).thenAnswer(invocation -> this.row.get(COLUMNS.get((int) invocation.getArgument(0) - 1)));
+            when(results.getObject(anyInt(), any(Class.class))).thenAnswer(invocation -> this.row.get(COLUMNS.get((int) invocation.getArgument(0) - 1)));
+            return results;
+        }
+
+        private int update(String sql, Map<Integer, Object> params) {
+            // UPDATE user SET a=?,b=?,version=version+1 WHERE id=?[ AND version=?][ AND NOT (BINARY a<=>BINARY ? AND ...)]
+            List<String> set = new ArrayList<>();
+            for (String assignment : sql.substring(sql.indexOf(" SET ") + 5, sql.indexOf(" WHERE ")).split(",")) {
+                if (assignment.endsWith("=?")) {
+                    set.add(assignment.substring(0, assignment.length() - 2));
+                }
+            }
+            String where = sql.substring(sql.indexOf(" WHERE ") + 7);
+            int index = set.size() + 1;
+            if (this.row.isEmpty() || !this.row.get("id").equals(params.get(index++))) {
+                return 0;
+            }
+            if (where.contains(" AND version=?") && !this.row.get("version").equals(params.get(index++))) {
+                return 0;
+            }
+            if (where.contains(" AND NOT (")) {
+                List<String> compared = Arrays.stream(where.substring(where.indexOf(" AND NOT (") + 10, where.length() - 1).split(" AND "))
+                        .map(condition -> condition.substring("BINARY ".length(), condition.indexOf("<=>")))
+                        .toList();
+                boolean same = true;
+                for (String column : compared) {
+                    same &= Objects.equals(this.row.get(column), params.get(index++));
+                }
+                if (same) {
+                    return 0;
+                }
+            }
+
+            for (int i = 0; i < set.size(); i++) {
+                this.row.put(set.get(i), params.get(i + 1));
+            }
+            this.row.put("version", (Long) this.row.get("version") + 1);
+            this.changed++;
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package tech.simard.thinkon.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import tech.simard.thinkon.accessors.ChangeBus;
+import tech.simard.thinkon.accessors.ChangeEvent;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Followers read one change per line, through emitters that keep what's sent to them (or stop reading, like a stalled client)
+class ChangeFeedTest {
+    private final ChangeBus changes = new ChangeBus("test", 100);
+    private final List<TestEmitter> emitters = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean nextStalls;
+
+    // One thread writes to every follower, and writes get 200 ms
+    private final ChangeFeed feed = new ChangeFeed(this.changes, new ObjectMapper(), 10, 1, 60000, 60000, 200) {
+        @Override
+        ResponseBodyEmitter createEmitter(boolean eventStream, long timeout) {
+            TestEmitter emitter = new TestEmitter(timeout, ChangeFeedTest.this.nextStalls);
+            ChangeFeedTest.this.emitters.add(emitter);
+            return emitter;
+        }
+    };
+
+    @AfterEach
+    void close() {
+        this.release.countDown();
+        this.feed.close();
+    }
+
+    @Test
+    void sendsChangesToFollowers() throws Exception {
+        this.feed.follow(null, false);
+        TestEmitter follower = this.emitters.get(0);
+        assertTrue(follower.next().contains("\"type\":\"start\""));
+
+        UUID id = UUID.randomUUID();
+        this.changes.publish(ChangeEvent.Type.CREATED, id, null);
+        String change = follower.next();
+        assertTrue(change.contains("\"sequence\":1"));
+        assertTrue(change.contains("\"type\":\"created\""));
+        assertTrue(change.contains(id.toString()));
+    }
+
+    @Test
+    void stalledFollowerIsDropped() throws Exception {
+        this.nextStalls = true;
+        this.feed.follow(null, false);
+        this.nextStalls = false;
+        this.feed.follow(null, false);
+        TestEmitter stalled = this.emitters.get(0);
+        TestEmitter reading = this.emitters.get(1);
+        assertEquals(2, this.feed.getFollowerCount());
+
+        // The only writer gets stuck on the stalled follower (whichever of the two gets the first change first)
+        this.changes.publish(ChangeEvent.Type.CREATED, UUID.randomUUID(), null);
+        assertTrue(stalled.blocked.await(5, TimeUnit.SECONDS));
+
+        // The other follower still gets every change
+        this.changes.publish(ChangeEvent.Type.CREATED, UUID.randomUUID(), null);
+        this.changes.publish(ChangeEvent.Type.CREATED, UUID.randomUUID(), null);
+        assertTrue(reading.next().contains("\"type\":\"start\""));
+        for (int sequence = 1; sequence <= 3; sequence++) {
+            assertTrue(reading.next().contains("\"sequence\":" + sequence));
+        }
+
+        // The stuck write was interrupted, and the stalled follower was counted out and its stream ended
+        assertTrue(stalled.interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, this.feed.getFollowerCount());
+        assertTrue(stalled.failed.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Keeps the lines sent to it. A stalled one takes the first line (the start of the stream, which is sent before
+     * the response begins) and then stops reading: its next write waits until it's interrupted or the test is done.
+     */
+    private class TestEmitter extends ResponseBodyEmitter {
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private final boolean stalls;
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+        private final CountDownLatch failed = new CountDownLatch(1);
+
+        private TestEmitter(long timeout, boolean stalls) {
+            super(timeout);
+            this.stalls = stalls;
+        }
+
+        @Override
+        public void send(Object object, MediaType mediaType) throws IOException {
+            if (this.stalls && !this.lines.isEmpty()) {
+                this.blocked.countDown();
+                try {
+                    ChangeFeedTest.this.release.await();
+                } catch (InterruptedException e) {
+                    this.interrupted.countDown();
+                    throw new IOException(e);
+                }
+            }
+            this.lines.add(object.toString());
+        }
+
+        @Override
+        public void completeWithError(Throwable ex) {
+            this.failed.countDown();
+        }
+
+        private String next() throws InterruptedException {
+            String line = this.lines.poll(5, TimeUnit.SECONDS);
+            assertNotNull(line, "Nothing was sent");
+            return line;
+        }
+    }
+}
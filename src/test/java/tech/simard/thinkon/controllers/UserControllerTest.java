@@ -0,0 +1,205 @@
+package tech.simard.thinkon.controllers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedConstruction;
+import org.mockito.MockedStatic;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.server.ResponseStatusException;
+import tech.simard.thinkon.accessors.UserAccessor;
+import tech.simard.thinkon.accessors.WriteBehindQueue;
+import tech.simard.thinkon.db.DBConnection;
+import tech.simard.thinkon.models.DBTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+// The web layer only: the accessor, the write-behind queue and the change feed are mocks, and so is the database where a test needs one
+@WebMvcTest(UserController.class)
+class UserControllerTest {
+    private static final String USER = """
+            {"username": "someone", "firstname": "Some", "lastname": "One", "email": "someone@example.com", "phone": "555-0100"}""";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DBExecutor dbExecutor;
+
+    @MockBean
+    private UserAccessor userAccessor;
+
+    @MockBean
+    private WriteBehindQueue userWriteQueue;
+
+    @MockBean
+    private ChangeFeed changeFeed;
+
+    // Work holding the database executor until the test is done
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<CompletableFuture<?>> pending = new ArrayList<>();
+
+    // Database work runs one at a time, with room for one more to wait up to half a second for its turn
+    @TestConfiguration
+    static class Config {
+        @Bean
+        DBExecutor dbExecutor() {
+            return new DBExecutor(1, 1, 500, false);
+        }
+    }
+
+    @AfterEach
+    void releaseDatabase() throws Exception {
+        this.release.countDown();
+        for (CompletableFuture<?> work : this.pending) {
+            work.handle((result, e) -> null).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void createAsyncIsAccepted() throws Exception {
+        UUID trackingId = UUID.randomUUID();
+        when(this.userWriteQueue.submit(any(DBTable.class))).thenReturn(trackingId);
+
+        this.mockMvc.perform(post("/users/async").contentType(MediaType.APPLICATION_JSON).content(USER))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, "/users/async/" + trackingId))
+                .andExpect(jsonPath("$.trackingId").value(trackingId.toString()));
+    }
+
+    @Test
+    void createAsyncIsTurnedAwayWhenQueueIsFull() throws Exception {
+        when(this.userWriteQueue.submit(any(DBTable.class))).thenReturn(null);
+
+        this.mockMvc.perform(post("/users/async").contentType(MediaType.APPLICATION_JSON).content(USER))
+                .andExpect(status().isTooManyRequests());
+    }
+
+    @Test
+    void shedsWorkWhenQueueIsFull() throws Exception {
+        // One request is running, and another is waiting for its turn
+        occupyDatabase();
+        this.pending.add(this.dbExecutor.submit(() -> null));
+
+        this.mockMvc.perform(post("/users/batch").contentType(MediaType.APPLICATION_JSON).content("[]"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(status().reason("Too many requests are waiting on the database, try again later"));
+    }
+
+    @Test
+    void shedsWorkThatWaitsTooLong() throws Exception {
+        occupyDatabase();
+
+        this.mockMvc.perform(post("/users/batch").contentType(MediaType.APPLICATION_JSON).content("[]"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(status().reason("Timed out waiting on the database, try again later"));
+    }
+
+    @Test
+    void pageIsNotModifiedWhenTagMatches() throws Exception {
+        when(this.userAccessor.getCollectionTag(any(), isNull(), eq(10))).thenReturn("abc");
+
+        // The tag is worked out on the request thread, the page itself would only be read while the body is written
+        try (MockedStatic<DBConnection> connections = mockStatic(DBConnection.class)) {
+            connections.when(DBConnection::forRead).thenReturn(mock(DBConnection.class));
+
+            this.mockMvc.perform(get("/users").param("limit", "10").header(HttpHeaders.IF_NONE_MATCH, "\"old\", W/\"abc\""))
+                    .andExpect(status().isNotModified())
+                    .andExpect(header().string(HttpHeaders.ETAG, "\"abc\""));
+        }
+    }
+
+    @Test
+    void updateWithWeakTagFailsPrecondition() throws Exception {
+        this.mockMvc.perform(put("/users/" + UUID.randomUUID()).contentType(MediaType.APPLICATION_JSON).content(USER)
+                        .header(HttpHeaders.IF_MATCH, "W/\"3\""))
+                .andExpect(status().isPreconditionFailed());
+
+        // The user isn't touched
+        verifyNoInteractions(this.userAccessor);
+    }
+
+    @Test
+    void deleteWithUnknownTagFailsPrecondition() throws Exception {
+        this.mockMvc.perform(delete("/users/" + UUID.randomUUID()).header(HttpHeaders.IF_MATCH, "\"abc\""))
+                .andExpect(status().isPreconditionFailed());
+
+        verifyNoInteractions(this.userAccessor);
+    }
+
+    @Test
+    void eTagMatchesIgnoresWeakness() {
+        assertTrue(UserController.eTagMatches("\"5\"", "\"5\""));
+        assertTrue(UserController.eTagMatches("W/\"5\"", "\"5\""));
+        assertTrue(UserController.eTagMatches("\"5\"", "W/\"5\""));
+        assertTrue(UserController.eTagMatches("\"4\" , \"5\"", "\"5\""));
+        assertTrue(UserController.eTagMatches("*", "\"5\""));
+        assertFalse(UserController.eTagMatches("\"4\"", "\"5\""));
+        assertFalse(UserController.eTagMatches("\"55\"", "\"5\""));
+    }
+
+    @Test
+    void expectedVersionIsReadFromStrongTag() {
+        assertNull(UserController.expectedVersion(null));
+        assertNull(UserController.expectedVersion(" * "));
+        assertEquals(7L, UserController.expectedVersion("\"7\""));
+        assertEquals(7L, UserController.expectedVersion(" \"7\" "));
+    }
+
+    @Test
+    void expectedVersionRejectsOtherTags() {
+        for (String ifMatch : List.of("W/\"7\"", "\"\"", "\"abc\"", "7", "\"7\", \"8\"")) {
+            ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> UserController.expectedVersion(ifMatch));
+            assertEquals(HttpStatus.PRECONDITION_FAILED, e.getStatusCode());
+        }
+    }
+
+    @Test
+    void importRejectsUnknownCsvColumn() throws Exception {
+        try (MockedConstruction<DBConnection> connections = mockConstruction(DBConnection.class)) {
+            this.mockMvc.perform(post("/users/import").contentType("text/csv").content("username,nickname\nsomeone,some\n"))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(status().reason("Invalid user at index 0 (0 users before it were written)"));
+
+            // Nothing was written or committed
+            verifyNoInteractions(this.userAccessor);
+            for (DBConnection db : connections.constructed()) {
+                verify(db, never()).finish(true);
+            }
+        }
+    }
+
+    /**
+     * Keep the database executor's only permit until the test is done
+     */
+    private void occupyDatabase() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        this.pending.add(this.dbExecutor.submit(() -> {
+            running.countDown();
+            try {
+                this.release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,86 @@
+package tech.simard.thinkon.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+// Replicas are mocked pools, busy with a given number of connections, that either hand one out or time out
+class ReplicaPoolsTest {
+    private final Connection fromA = mock(Connection.class);
+    private final Connection fromB = mock(Connection.class);
+
+    @Test
+    void leastBusyReplicaIsUsed() throws SQLException {
+        ConnectionPool a = replica(3, this.fromA);
+        ConnectionPool b = replica(1, this.fromB);
+        ReplicaPools replicas = new ReplicaPools(List.of(a, b), 60000);
+
+        assertSame(this.fromB, replicas.acquire());
+        verify(a, never()).acquire();
+    }
+
+    @Test
+    void replicaThatTimesOutFallsBackToNextOne() throws SQLException {
+        // A is the least busy, but can't hand out a connection in time
+        ConnectionPool a = timesOut(0);
+        ConnectionPool b = replica(5, this.fromB);
+        ReplicaPools replicas = new ReplicaPools(List.of(a, b), 60000);
+
+        assertSame(this.fromB, replicas.acquire());
+
+        // A is left alone until it's due to be tried again
+        assertSame(this.fromB, replicas.acquire());
+        verify(a, times(1)).acquire();
+        verify(b, times(2)).acquire();
+    }
+
+    @Test
+    void failedReplicaIsTriedAgainLater() throws SQLException {
+        ConnectionPool a = timesOut(0);
+        ConnectionPool b = replica(5, this.fromB);
+        // Failed replicas are due to be tried again straight away
+        ReplicaPools replicas = new ReplicaPools(List.of(a, b), 0);
+
+        assertSame(this.fromB, replicas.acquire());
+        doReturn(this.fromA).when(a).acquire();
+        assertSame(this.fromA, replicas.acquire());
+        verify(a, times(2)).acquire();
+    }
+
+    @Test
+    void noConnectionWhenEveryReplicaTimesOut() throws SQLException {
+        // DBConnection.forRead uses the primary instead
+        ConnectionPool a = timesOut(0);
+        ConnectionPool b = timesOut(1);
+        ReplicaPools replicas = new ReplicaPools(List.of(a, b), 60000);
+
+        assertNull(replicas.acquire());
+        verify(a, times(1)).acquire();
+        verify(b, times(1)).acquire();
+
+        // Both are left alone for now, without waiting on them again
+        assertNull(replicas.acquire());
+        verify(a, times(1)).acquire();
+        verify(b, times(1)).acquire();
+    }
+
+    private static ConnectionPool replica(int active, Connection conn) throws SQLException {
+        ConnectionPool pool = mock(ConnectionPool.class);
+        when(pool.getStats()).thenReturn(new PoolStats(active, 0, active, 0, 0, 0, 0, 0));
+        when(pool.acquire()).thenReturn(conn);
+        return pool;
+    }
+
+    private static ConnectionPool timesOut(int active) throws SQLException {
+        ConnectionPool pool = mock(ConnectionPool.class);
+        when(pool.getStats()).thenReturn(new PoolStats(active, 0, active, 0, 0, 0, 0, 0));
+        when(pool.acquire()).thenThrow(new SQLTransientConnectionException("Connection is not available, request timed out after 250ms"));
+        return pool;
+    }
+}
@@ -0,0 +1,50 @@
+package tech.simard.thinkon.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardMapTest {
+    private static final int SHARDS = 4;
+    private static final int IDS = 40000;
+
+    @Test
+    void shardOfIdNeverChanges() {
+        // Records are stored on these shards, a different hash would lose track of them
+        assertEquals(0, ShardMap.shardOf(UUID.fromString("00000000-0000-0000-0000-000000000000"), 4));
+        assertEquals(1, ShardMap.shardOf(UUID.fromString("123e4567-e89b-12d3-a456-426614174000"), 4));
+        assertEquals(2, ShardMap.shardOf(UUID.fromString("f47ac10b-58cc-4372-a567-0e02b2c3d479"), 4));
+        assertEquals(3, ShardMap.shardOf(UUID.fromString("018f3a5e-7c1d-7b2a-9c3e-5f6a7b8c9d0e"), 4));
+        assertEquals(1, ShardMap.shardOf(UUID.fromString("018f3a5e-7c1d-7b2a-9c3e-5f6a7b8c9d0e"), 3));
+    }
+
+    @Test
+    void spreadsRandomIdsEvenly() {
+        Random random = new Random(42);
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < IDS; i++) {
+            counts[ShardMap.shardOf(new UUID(random.nextLong(), random.nextLong()), SHARDS)]++;
+        }
+        assertEven(counts);
+    }
+
+    @Test
+    void spreadsIdsCreatedCloseTogetherEvenly() {
+        // Time ordered ids created close together only differ in a few low bits
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < IDS; i++) {
+            counts[ShardMap.shardOf(new UUID(0x018f3a5e7c1d7000L, 0x8000000000000000L | i), SHARDS)]++;
+        }
+        assertEven(counts);
+    }
+
+    private static void assertEven(int[] counts) {
+        int expected = IDS / SHARDS;
+        for (int count : counts) {
+            assertTrue(Math.abs(count - expected) < expected / 10, String.format("%d records on a shard, expected about %d", count, expected));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package tech.simard.thinkon.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UuidOrderTest {
+    @Test
+    void standardUuidsCompareNodeFirst() {
+        // MariaDB compares version 1 to 5 UUIDs by node, clock sequence, time high, time mid then time low
+        UUID lowTime = UUID.fromString("00000001-0000-1000-8000-000000000002");
+        UUID lowNode = UUID.fromString("00000002-0000-1000-8000-000000000001");
+        assertTrue(UuidOrder.compare(lowNode, lowTime) < 0);
+        assertTrue(lowTime.compareTo(lowNode) < 0);
+
+        UUID lowClock = UUID.fromString("00000000-0000-4000-8001-000000000000");
+        UUID highClock = UUID.fromString("00000000-0000-4000-8002-000000000000");
+        assertTrue(UuidOrder.compare(lowClock, highClock) < 0);
+
+        UUID lowMid = UUID.fromString("ffffffff-0001-4000-8000-000000000000");
+        UUID highMid = UUID.fromString("00000000-0002-4000-8000-000000000000");
+        assertTrue(UuidOrder.compare(lowMid, highMid) < 0);
+    }
+
+    @Test
+    void otherUuidsCompareAsUnsignedBytes() {
+        // Version 7 (and 0, and non standard variants) aren't swapped, and bytes are unsigned unlike UUID.compareTo
+        UUID high = UUID.fromString("ffffffff-0000-7000-8000-000000000000");
+        UUID low = UUID.fromString("00000000-0000-7000-8000-000000000000");
+        assertTrue(UuidOrder.compare(low, high) < 0);
+        assertTrue(high.compareTo(low) < 0);
+
+        UUID ncsVariant = UUID.fromString("00000002-0000-4000-0000-000000000001");
+        UUID other = UUID.fromString("00000001-0000-4000-0000-000000000002");
+        assertTrue(UuidOrder.compare(other, ncsVariant) < 0);
+    }
+
+    @Test
+    void sortsLikeMariaDb() {
+        // In the order of MariaDB's uuid type: the version 1 and 4 ids sort by their node (00c0..., 0e02..., 4266...),
+        // the others by their first bytes
+        List<UUID> expected = List.of(
+                UUID.fromString("00000000-0000-0000-0000-000000000000"),
+                UUID.fromString("6ba7b810-9dad-11d1-80b4-00c04fd430c8"),
+                UUID.fromString("018f3a5e-7c1d-7b2a-9c3e-5f6a7b8c9d0e"),
+                UUID.fromString("f47ac10b-58cc-4372-a567-0e02b2c3d479"),
+                UUID.fromString("123e4567-e89b-12d3-a456-426614174000"),
+                UUID.fromString("ffffffff-ffff-ffff-ffff-ffffffffffff"));
+        List<UUID> sorted = new ArrayList<>(expected);
+        Collections.reverse(sorted);
+        sorted.sort(UuidOrder.COMPARATOR);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    void equalUuidsCompareEqual() {
+        UUID id = UUID.fromString("123e4567-e89b-12d3-a456-426614174000");
+        assertEquals(0, UuidOrder.compare(id, UUID.fromString(id.toString())));
+    }
+}